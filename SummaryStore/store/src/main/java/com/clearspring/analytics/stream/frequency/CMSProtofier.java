@@ -17,6 +17,8 @@ package com.clearspring.analytics.stream.frequency;
 
 import com.samsung.sra.protocol.SummaryStore.ProtoCMS;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.Arrays;
 import java.util.stream.Stream;
 
@@ -57,6 +59,33 @@ public class CMSProtofier {
         return new CountMinSketch(depth, width, (int) size, hashA, table);
     }
 
+    /** Number of bytes encode() writes: size followed by the table, row by row */
+    public static int getEncodedSize(int depth, int width) {
+        return Long.BYTES * (1 + depth * width);
+    }
+
+    /** Write cms at buffer's position, copying each row in bulk */
+    public static void encode(CountMinSketch cms, ByteBuffer buffer) {
+        buffer.putLong(cms.size);
+        LongBuffer cells = buffer.asLongBuffer();
+        for (long[] row : cms.table) {
+            cells.put(row);
+        }
+        buffer.position(buffer.position() + Long.BYTES * cells.position());
+    }
+
+    public static CountMinSketch decode(ByteBuffer buffer, int offset, int depth, int width, long[] hashA) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        long size = view.getLong();
+        LongBuffer cells = view.asLongBuffer();
+        long[][] table = new long[depth][width];
+        for (long[] row : table) {
+            cells.get(row);
+        }
+        return new CountMinSketch(depth, width, (int) size, hashA.clone(), table);
+    }
+
     public static CountMinSketch createEmpty(int depth, int width, long[] hashA) {
         return new CountMinSketch(depth, width, 0, hashA.clone(), new long[depth][width]);
     }
@@ -0,0 +1,95 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Growable array of longs that only supports appends, and is safe for any number of readers running concurrently with
+ * an appender (appenders must synchronize among themselves). Published elements are never modified: an append writes
+ * the new element, and if the array had to grow the new array, before the volatile size, so a reader that reads size()
+ * first can then read any element below it without locking.
+ */
+final class AppendOnlyLongArray implements Serializable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private transient volatile long[] data = new long[INITIAL_CAPACITY];
+    private transient volatile int size = 0;
+
+    /** NOTE: must externally serialize all calls to add */
+    void add(long value) {
+        long[] d = data;
+        int s = size;
+        if (s == d.length) d = Arrays.copyOf(d, 2 * s);
+        d[s] = value;
+        data = d;
+        size = s + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Element i, where i must be less than some size() the caller has already read */
+    long get(int i) {
+        return data[i];
+    }
+
+    /** Last element, or Long.MIN_VALUE if empty */
+    long last() {
+        int s = size;
+        return s > 0 ? data[s - 1] : Long.MIN_VALUE;
+    }
+
+    /** Index of the largest element <= key, or -1 if there is none. Elements must be strictly increasing */
+    int floorIndex(long key) {
+        int s = size;
+        int i = Arrays.binarySearch(data, 0, s, key);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /** Index of the smallest element >= key, or size if there is none. Elements must be strictly increasing */
+    int ceilingIndex(long key) {
+        int s = size;
+        int i = Arrays.binarySearch(data, 0, s, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int s = size;
+        long[] d = data;
+        out.writeInt(s);
+        for (int i = 0; i < s; ++i) {
+            out.writeLong(d[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int s = in.readInt();
+        long[] d = new long[Math.max(INITIAL_CAPACITY, s)];
+        for (int i = 0; i < s; ++i) {
+            d[i] = in.readLong();
+        }
+        data = d;
+        size = s;
+    }
+}
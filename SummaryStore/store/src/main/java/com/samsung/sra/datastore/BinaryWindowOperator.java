@@ -0,0 +1,34 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional specialization of WindowOperator for aggregates with a compact binary encoding. SerDe stores such
+ * aggregates with encode() instead of protofy(), and decodes them straight out of the stored window bytes, without
+ * parsing a protobuf and without decoding the window's other aggregates.
+ */
+public interface BinaryWindowOperator<A, R, E> extends WindowOperator<A, R, E> {
+    /** Number of bytes encode() will write for aggr */
+    int getEncodedSize(A aggr);
+
+    /** Write aggr at buffer's position, advancing it by getEncodedSize(aggr) bytes */
+    void encode(A aggr, ByteBuffer buffer);
+
+    /** Read an aggregate written by encode() from the length bytes at offset, without moving buffer's position */
+    A decode(ByteBuffer buffer, int offset, int length);
+}
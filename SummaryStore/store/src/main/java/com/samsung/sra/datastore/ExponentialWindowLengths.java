@@ -26,6 +26,17 @@ public class ExponentialWindowLengths implements WindowLengthsSequence {
         this.base = base;
     }
 
+    /** Equal if generating the same sequence (regardless of how far each has been advanced) */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ExponentialWindowLengths && ((ExponentialWindowLengths) o).base == base;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(base);
+    }
+
     @Override
     public long nextWindowLength() {
         double prev = next;
@@ -18,74 +18,106 @@ package com.samsung.sra.datastore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.*;
 
+/**
+ * Windowing over an arbitrary WindowLengthsSequence. Window boundaries are generated on demand into append-only tables,
+ * which can be shared by all streams whose sequences are equal (see shareTables and WindowLengthsSequence)
+ */
 public class GenericWindowing implements Windowing {
     private static final Logger logger = LoggerFactory.getLogger(GenericWindowing.class);
     private final WindowLengthsSequence windowLengths;
+    private final long firstWindowLength; // length of the first window (the one holding the newest element)
+    private volatile Tables tables;
 
     public GenericWindowing(WindowLengthsSequence windowLengths) {
         this.windowLengths = windowLengths;
-        addWindow((firstWindowLength = windowLengths.nextWindowLength()));
+        this.tables = new Tables(windowLengths);
+        this.firstWindowLength = tables.lengths.get(0);
     }
 
-    private final long firstWindowLength; // length of the first window (the one holding the newest element)
+    /**
+     * Window boundaries generated so far, and the sequence generating them. Any number of threads may read the tables
+     * concurrently; growing them synchronizes on the Tables object.
+     */
+    private static class Tables implements Serializable {
+        private final WindowLengthsSequence windowLengths; // advanced as we add windows
+        // each distinct window length, and the start marker of the first window of that length
+        private final AppendOnlyLongArray lengths = new AppendOnlyLongArray(), firstMarkers = new AppendOnlyLongArray();
+        // all window start markers
+        private final AppendOnlyLongArray markers = new AppendOnlyLongArray();
 
-    // maps window length to the start marker of the first window of that length
-    private final TreeMap<Long, Long> firstWindowOfLength = new TreeMap<>();
-    // all window start markers in an ordered set
-    private final TreeSet<Long> windowStartMarkers = new TreeSet<>();
+        private long lastWindowStart = 0L, lastWindowLength = 0L; // guarded by this
 
-    private long lastWindowStart = 0L, lastWindowLength = 0L;
+        private Tables(WindowLengthsSequence windowLengths) {
+            this.windowLengths = windowLengths;
+            addWindow(windowLengths.nextWindowLength());
+        }
 
-    private void addWindow(long length) {
-        assert length >= lastWindowLength && length > 0;
-        lastWindowStart += lastWindowLength;
-        if (length > lastWindowLength) firstWindowOfLength.put(length, lastWindowStart);
-        windowStartMarkers.add(lastWindowStart);
-        lastWindowLength = length;
-    }
+        private synchronized void addWindow(long length) {
+            assert length >= lastWindowLength && length > 0;
+            lastWindowStart += lastWindowLength;
+            if (length > lastWindowLength) {
+                firstMarkers.add(lastWindowStart); // before lengths, which readers check first
+                lengths.add(length);
+            }
+            markers.add(lastWindowStart);
+            lastWindowLength = length;
+        }
 
-    /**
-     * Add windows until we have one with length >= the specified target. Returns false
-     * if the target length isn't achievable
-     */
-    private boolean addWindowsUntilLength(long targetLength) {
-        if (targetLength > windowLengths.maxWindowSize()) {
-            return false;
-        } else {
-            while (lastWindowLength < targetLength) {
-                addWindow(windowLengths.nextWindowLength());
+        /**
+         * Add windows until we have one with length >= the specified target. Returns false
+         * if the target length isn't achievable
+         */
+        private boolean addWindowsUntilLength(long targetLength) {
+            if (targetLength > windowLengths.maxWindowSize()) {
+                return false;
+            } else if (lengths.last() < targetLength) {
+                synchronized (this) {
+                    while (lastWindowLength < targetLength) {
+                        addWindow(windowLengths.nextWindowLength());
+                    }
+                }
             }
             return true;
         }
-    }
 
-    /**
-     * Add windows until we have at least one window marker larger than the target
-     */
-    private void addWindowsPastMarker(long targetMarker) {
-        while (lastWindowStart <= targetMarker) {
-            addWindow(windowLengths.nextWindowLength());
+        /**
+         * Add windows until we have at least one window marker larger than the target
+         */
+        private void addWindowsPastMarker(long targetMarker) {
+            if (markers.last() <= targetMarker) {
+                synchronized (this) {
+                    while (lastWindowStart <= targetMarker) {
+                        addWindow(windowLengths.nextWindowLength());
+                    }
+                }
+            }
         }
-    }
 
-    /** Add windows until we have at least the specified count */
-    private void addWindowsUntilCount(int count) {
-        while (windowStartMarkers.size() < count) {
-            addWindow(windowLengths.nextWindowLength());
+        private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
         }
     }
 
+    @Override
+    public void shareTables(WindowingRegistry registry) {
+        tables = registry.intern(Arrays.asList(GenericWindowing.class, windowLengths), tables);
+    }
+
     @Override
     public long getFirstContainingTime(long Tl, long Tr, long T) {
         assert 0 <= Tl && Tl <= Tr && Tr < T;
         long l = T-1 - Tr, r = T-1 - Tl, length = Tr - Tl + 1;
+        Tables tables = this.tables;
 
-        if (!addWindowsUntilLength(length)) {
+        if (!tables.addWindowsUntilLength(length)) {
             return -1;
         }
-        long firstMarker = firstWindowOfLength.ceilingEntry(length).getValue();
+        long firstMarker = tables.firstMarkers.get(tables.lengths.ceilingIndex(length));
         if (firstMarker >= l) {
             /*logger.trace("getFirstContainingTime CASE 1: Tl = {}, Tr = {}, T = {}, [l, r] = [{}, {}], firstMarker = {}: retval = {}",
                     Tl, Tr, T, l, r, firstMarker, firstMarker + Tr + 1);*/
@@ -94,8 +126,9 @@ public class GenericWindowing implements Windowing {
         } else {
             // we've already hit the target window length, so [l, r] is either
             // already in the same window or will be once we move into the next window
-            addWindowsPastMarker(l);
-            long currWindowL = windowStartMarkers.floor(l), currWindowR = windowStartMarkers.higher(l) - 1;
+            tables.addWindowsPastMarker(l);
+            int currWindow = tables.markers.floorIndex(l);
+            long currWindowL = tables.markers.get(currWindow), currWindowR = tables.markers.get(currWindow + 1) - 1;
             /*logger.trace("getFirstContainingTime CASE 2/3: Tl = {}, Tr = {}, T = {}, [l, r] = [{}, {}], firstMarker = {}, [currWindowL, currWindowR] = [{}, {}]",
                     Tl, Tr, T, l, r, firstMarker, currWindowL, currWindowR);*/
             if (r <= currWindowR) {
@@ -117,11 +150,12 @@ public class GenericWindowing implements Windowing {
     @Override
     public List<Long> getWindowsCoveringUpto(long N) {
         if (N <= 0) return Collections.emptyList();
-        addWindowsPastMarker(N);
+        Tables tables = this.tables;
+        tables.addWindowsPastMarker(N);
         List<Long> ret = new ArrayList<>();
         long prevMarker = 0;
-        for (long currMarker: windowStartMarkers) {
-            if (currMarker == 0) continue; // first marker
+        for (int i = 1, numMarkers = tables.markers.size(); i < numMarkers; ++i) { // skipping first marker, 0
+            long currMarker = tables.markers.get(i);
             if (currMarker <= N) {
                 ret.add(currMarker - prevMarker);
                 // ret now covers the range [0, currMarker-1], of length currMarker <= N
@@ -0,0 +1,131 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Divides a store-wide ingest buffer memory budget among streams in proportion to their recent append rates, resizing
+ * each stream's ingest buffers (see Stream.resizeIngestBuffers) from a background thread. Only manages streams that
+ * were registered with a buffered CountBasedWBMH (TimeBasedWBMH has no ingest buffers). Resizes take effect at each
+ * stream's next buffer boundary, without flushing. A resize is only issued once a stream's share has drifted by more
+ * than RESIZE_FACTOR from its current buffer size, so that rate noise does not cause a stream of resizes, unless the
+ * buffers as they are would exceed the budget. Each stream gets at least MIN_BUFFERED_VALUES unless that alone would
+ * exceed the budget.
+ */
+class IngestMemoryManager implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(IngestMemoryManager.class);
+
+    /** Each managed stream gets buffers for at least this many values, however idle, budget permitting */
+    private static final int MIN_BUFFERED_VALUES = 1024;
+    private static final double RESIZE_FACTOR = 2;
+    /** Weight of the latest interval in the smoothed append rates */
+    private static final double RATE_SMOOTHING = 0.5;
+
+    private final Map<Long, Stream> streams;
+    private final long budgetBytes;
+    private final ScheduledExecutorService executor;
+
+    // per stream: number of values appended as of the last rebalance, and smoothed values appended per interval
+    private final Map<Long, Long> lastNumValues = new HashMap<>();
+    private final Map<Long, Double> rates = new HashMap<>();
+
+    IngestMemoryManager(Map<Long, Stream> streams, long budgetBytes, long intervalMillis) {
+        this.streams = streams;
+        this.budgetBytes = budgetBytes;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ingest-memory-manager");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                rebalance();
+            } catch (Exception e) {
+                logger.warn("ingest buffer rebalance failed", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void rebalance() {
+        List<Stream> managed = new ArrayList<>();
+        double totalWeight = 0;
+        for (Stream stream : streams.values()) {
+            if (!stream.hasResizableIngestBuffers()) continue;
+            long numValues = stream.stats.getNumValues();
+            Long last = lastNumValues.put(stream.streamID, numValues);
+            double rate = numValues - (last != null ? last : numValues);
+            Double prevRate = rates.get(stream.streamID);
+            rate = prevRate != null ? RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * prevRate : rate;
+            rates.put(stream.streamID, rate);
+            managed.add(stream);
+            totalWeight += rate + 1; // + 1 so idle streams still get a (minimal) share
+        }
+        int n = managed.size();
+        long[] targets = new long[n], capacities = new long[n];
+        double targetBytes = 0;
+        for (int i = 0; i < n; ++i) {
+            Stream stream = managed.get(i);
+            double share = (rates.get(stream.streamID) + 1) / totalWeight;
+            long target = (long) (share * budgetBytes / stream.getIngestBytesPerValue());
+            targets[i] = Math.max(MIN_BUFFERED_VALUES, Math.min(Integer.MAX_VALUE, target));
+            targetBytes += (double) targets[i] * stream.getIngestBytesPerValue();
+            capacities[i] = stream.getIngestBufferCapacity();
+        }
+        if (targetBytes > budgetBytes) {
+            // the MIN_BUFFERED_VALUES floors took us over budget: the budget wins
+            double scale = budgetBytes / targetBytes;
+            for (int i = 0; i < n; ++i) {
+                targets[i] = (long) (targets[i] * scale);
+            }
+        }
+        // targets now fit the budget. Only resize streams whose share has drifted by more than RESIZE_FACTOR, unless
+        // leaving some stream above its target would take the total over budget, in which case shrink all such streams
+        boolean[] resize = new boolean[n];
+        double plannedBytes = 0;
+        for (int i = 0; i < n; ++i) {
+            resize[i] = targets[i] > RESIZE_FACTOR * capacities[i] || targets[i] * RESIZE_FACTOR < capacities[i];
+            plannedBytes += (double) (resize[i] ? targets[i] : capacities[i]) * managed.get(i).getIngestBytesPerValue();
+        }
+        for (int i = 0; i < n; ++i) {
+            if (plannedBytes > budgetBytes && capacities[i] > targets[i]) resize[i] = true;
+            if (resize[i] && targets[i] != capacities[i]) {
+                logger.debug("resizing stream {} ingest buffers from {} to {} values",
+                        managed.get(i).streamID, capacities[i], targets[i]);
+                managed.get(i).resizeIngestBuffers((int) targets[i]);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
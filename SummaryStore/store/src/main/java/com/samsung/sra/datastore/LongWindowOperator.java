@@ -0,0 +1,26 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+/**
+ * Optional specialization of WindowOperator for operators over long values. When the ingest buffer holds raw longs
+ * (see CountBasedWBMH.setValuesAreLongs), StreamWindowManager feeds values to insertLong() instead of insert(), so
+ * that values never have to be boxed.
+ */
+public interface LongWindowOperator<A, R, E> extends WindowOperator<A, R, E> {
+    /** Insert val into aggr and return the updated aggregate. Unboxed equivalent of insert() */
+    A insertLong(A aggr, long timestamp, long val);
+}
@@ -0,0 +1,266 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import com.samsung.sra.datastore.ingest.CountBasedWBMH;
+import com.samsung.sra.datastore.ingest.WBMH;
+import com.samsung.sra.datastore.storage.BackingStoreException;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** The StreamProducers of one stream, and the k-way merge that moves their staged values into the stream */
+class ProducerGroup {
+    /**
+     * A producer blocked on a full buffer waits this long for producers with nothing staged to append or advanceTo,
+     * then drains without them (see StreamProducer)
+     */
+    static final long IDLE_PRODUCER_TIMEOUT_MS = 100;
+    /** Number of independently locked sets staged timestamps are spread over */
+    private static final int CLAIM_STRIPES = 64;
+
+    final long streamID;
+    /** How producers stage values: long.class or double.class if the stream buffers them unboxed, else Object.class */
+    final Class<?> valueType;
+    private final Stream stream;
+    private final List<StreamProducer> producers = new CopyOnWriteArrayList<>();
+    /** Serializes drains, so that merged runs reach the stream in timestamp order */
+    private final ReentrantLock drainLock = new ReentrantLock();
+    /**
+     * Producers may not stage values at or below this: they are (being) drained, or the stream was appended to
+     * directly. Only raised under drainLock, before the values it covers are counted (see drain)
+     */
+    private volatile long tReservedThrough = Long.MIN_VALUE;
+    /** Timestamps currently staged by some producer, so that no two producers stage the same one */
+    private final LongOpenHashSet[] claimed = new LongOpenHashSet[CLAIM_STRIPES];
+
+    ProducerGroup(Stream stream) {
+        this.stream = stream;
+        this.streamID = stream.streamID;
+        WBMH wbmh = stream.wbmh;
+        if (wbmh instanceof CountBasedWBMH && ((CountBasedWBMH) wbmh).getValuesAreLongs()) {
+            valueType = long.class;
+        } else if (wbmh instanceof CountBasedWBMH && ((CountBasedWBMH) wbmh).getValuesAreDoubles()) {
+            valueType = double.class;
+        } else {
+            valueType = Object.class;
+        }
+        for (int i = 0; i < CLAIM_STRIPES; ++i) {
+            claimed[i] = new LongOpenHashSet();
+        }
+    }
+
+    StreamProducer newProducer(int capacity) {
+        StreamProducer producer = new StreamProducer(this, capacity);
+        producers.add(producer);
+        return producer;
+    }
+
+    long getReservedThrough() {
+        return tReservedThrough;
+    }
+
+    /** Mark ts as staged by the calling producer. Returns false if another producer already staged it */
+    boolean claim(long ts) {
+        LongOpenHashSet stripe = claimed[(int) HashCommon.mix(ts) & (CLAIM_STRIPES - 1)];
+        synchronized (stripe) {
+            return stripe.add(ts);
+        }
+    }
+
+    private void unclaim(long ts) {
+        LongOpenHashSet stripe = claimed[(int) HashCommon.mix(ts) & (CLAIM_STRIPES - 1)];
+        synchronized (stripe) {
+            stripe.remove(ts);
+        }
+    }
+
+    /** Drain unless another thread is already draining */
+    void tryDrain() throws BackingStoreException {
+        if (drainLock.tryLock()) {
+            try {
+                drain(getDrainableThrough(false));
+            } finally {
+                drainLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Called by a producer whose buffer is full: drain, and if that did not free anything wait (briefly) for other
+     * producers. If skipIdle is set, producers with nothing staged do not hold back the drain
+     */
+    void drainOrWait(boolean skipIdle) throws BackingStoreException {
+        drainLock.lock();
+        int drained;
+        try {
+            drained = drain(getDrainableThrough(skipIdle));
+        } finally {
+            drainLock.unlock();
+        }
+        if (drained == 0) {
+            synchronized (this) {
+                try {
+                    wait(10);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /** Append all staged values of all producers, whether or not some producer could still append older values */
+    void drainAll() throws BackingStoreException {
+        drainLock.lock();
+        try {
+            drain(getNewestStaged());
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Called before the stream is appended to (or a landmark is started or ended) at ts other than through the
+     * producers: append staged values up to ts first, and refuse further ones up to ts
+     */
+    void holdBack(long ts) throws BackingStoreException {
+        if (drainLock.isHeldByCurrentThread()) return; // this is our own drain appending
+        drainLock.lock();
+        try {
+            drain(ts);
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /** Newest staged timestamp that no producer (except idle ones, if skipIdle) can still precede */
+    private long getDrainableThrough(boolean skipIdle) {
+        long watermark = Long.MAX_VALUE;
+        for (StreamProducer producer : producers) {
+            if (!(skipIdle && producer.isIdle())) watermark = Math.min(watermark, producer.getWatermark());
+        }
+        return Math.min(watermark, getNewestStaged());
+    }
+
+    private long getNewestStaged() {
+        long newest = Long.MIN_VALUE;
+        for (StreamProducer producer : producers) {
+            newest = Math.max(newest, producer.getNewestStaged());
+        }
+        return newest;
+    }
+
+    /**
+     * Merge all staged values with timestamp <= bound and append them to the stream in timestamp order, as one batch.
+     * Returns the number of values drained. Must hold drainLock.
+     *
+     * The bound is published before any producer's values are counted: a producer staging concurrently either gets its
+     * lock first, and its value is counted, or sees the new bound and refuses the value.
+     */
+    private int drain(long bound) throws BackingStoreException {
+        assert drainLock.isHeldByCurrentThread();
+        if (bound > tReservedThrough) tReservedThrough = bound;
+        // one cursor per producer with values to drain, ordered by the timestamp of its next value
+        PriorityQueue<Run> runs = new PriorityQueue<>();
+        int total = 0;
+        for (StreamProducer producer : producers) {
+            int n = producer.countThrough(bound);
+            if (n > 0) {
+                runs.add(new Run(producer, n));
+                total += n;
+            }
+            if (producer.isRetired()) producers.remove(producer);
+        }
+        if (total == 0) return 0;
+
+        long[] timestamps = new long[total];
+        long[] longs = valueType == long.class ? new long[total] : null;
+        double[] doubles = valueType == double.class ? new double[total] : null;
+        Object[] objects = valueType == Object.class ? new Object[total] : null;
+        List<Run> drained = new ArrayList<>(runs);
+        int n = 0;
+        while (!runs.isEmpty()) {
+            Run run = runs.poll();
+            StreamProducer producer = run.producer;
+            // copy the run up to where the next run takes over, without going back through the queue for each value
+            long limit = runs.isEmpty() ? Long.MAX_VALUE : runs.peek().nextTimestamp();
+            int from = run.pos;
+            do {
+                ++run.pos;
+            } while (run.pos < run.end && producer.timestamps[run.pos] <= limit);
+            int len = run.pos - from;
+            System.arraycopy(producer.timestamps, from, timestamps, n, len);
+            if (longs != null) {
+                System.arraycopy(producer.longValues, from, longs, n, len);
+            } else if (doubles != null) {
+                System.arraycopy(producer.doubleValues, from, doubles, n, len);
+            } else {
+                System.arraycopy(producer.objectValues, from, objects, n, len);
+            }
+            n += len;
+            if (run.pos < run.end) runs.add(run);
+        }
+        assert n == total;
+        for (Run run : drained) {
+            run.producer.removeFirst(run.end);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        // claims are redundant now that tReservedThrough covers these timestamps
+        for (long ts : timestamps) {
+            unclaim(ts);
+        }
+        try {
+            if (longs != null) {
+                stream.appendBatch(timestamps, longs, 0, n);
+            } else if (doubles != null) {
+                stream.appendBatch(timestamps, doubles, 0, n);
+            } else {
+                stream.appendBatch(timestamps, objects, 0, n);
+            }
+        } catch (StreamException e) {
+            // cannot happen: everything else appended to the stream first holds back our producers (see holdBack)
+            throw new IllegalStateException(e);
+        }
+        return total;
+    }
+
+    /** The values of one producer that are being drained */
+    private static class Run implements Comparable<Run> {
+        final StreamProducer producer;
+        final int end;
+        int pos = 0;
+
+        Run(StreamProducer producer, int end) {
+            this.producer = producer;
+            this.end = end;
+        }
+
+        long nextTimestamp() {
+            return producer.timestamps[pos];
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return Long.compare(nextTimestamp(), other.nextTimestamp());
+        }
+    }
+}
@@ -15,6 +15,9 @@
 */
 package com.samsung.sra.datastore;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -23,6 +26,7 @@ import java.util.*;
  */
 public class RationalPowerWindowing implements Windowing {
     private final long p, q, R, S;
+    private volatile Tables tables;
 
     public RationalPowerWindowing(long p, long q, long R, long S) {
         if (p < 1 || q < 0 || R < 1 || S < 1) throw new IllegalArgumentException("invalid p, q, R or S");
@@ -30,33 +34,60 @@ public class RationalPowerWindowing implements Windowing {
         this.q = q;
         this.R = R;
         this.S = S;
-
-        addOne();
+        this.tables = new Tables(p, q, R, S);
     }
 
-    /* For each distinct length l = S * k^q, k = 1, 2, 3, ... store both
-             l -> left marker of first window of size l
-       and the inverse mapping */
-    private TreeMap<Long, Long>
-            lengthToFirstMarker = new TreeMap<>(),
-            firstMarkerToLength = new TreeMap<>();
+    /**
+     * For each distinct length l = S * k^q, k = 1, 2, 3, ... the left marker of the first window of size l, in two
+     * parallel append-only arrays (both strictly increasing). Safe for concurrent readers; growing synchronizes on the
+     * Tables object.
+     */
+    private static class Tables implements Serializable {
+        private final long p, q, R, S;
+        private final AppendOnlyLongArray lengths = new AppendOnlyLongArray(), markers = new AppendOnlyLongArray();
+        private long lastLength = 0, lastMarker = 0, lastK = 0; // guarded by this
 
-    private long lastLength = 0, lastMarker = 0, lastK = 0;
+        private Tables(long p, long q, long R, long S) {
+            this.p = p;
+            this.q = q;
+            this.R = R;
+            this.S = S;
+            addOne();
+        }
 
-    private void addOne() {
-        lastLength = S * (long)Math.pow(lastK + 1, q);
-        lastMarker += R * (long)Math.pow(lastK, p + q - 1);
-        ++lastK;
-        lengthToFirstMarker.put(lastLength, lastMarker);
-        firstMarkerToLength.put(lastMarker, lastLength);
-    }
+        private synchronized void addOne() {
+            // the R * lastK^(p-1) windows of length S * lastK^q before this one span R * S * lastK^(p+q-1) elements
+            if (lastK > 0) lastMarker += R * S * (long)Math.pow(lastK, p + q - 1);
+            lastLength = S * (long)Math.pow(lastK + 1, q);
+            ++lastK;
+            markers.add(lastMarker); // before lengths, which readers check first
+            lengths.add(lastLength);
+        }
+
+        private void addUntilLength(long targetLength) {
+            if (q != 0 && lengths.last() < targetLength) {
+                synchronized (this) {
+                    while (lastLength < targetLength) addOne();
+                }
+            }
+        }
 
-    private void addUntilLength(long targetLength) {
-        if (q != 0) while (lastLength < targetLength) addOne();
+        private void addPastMarker(long targetMarker) {
+            if (q != 0 && markers.last() <= targetMarker) {
+                synchronized (this) {
+                    while (lastMarker <= targetMarker) addOne();
+                }
+            }
+        }
+
+        private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
     }
 
-    private void addPastMarker(long targetMarker) {
-        if (q != 0) while (lastMarker <= targetMarker) addOne();
+    @Override
+    public void shareTables(WindowingRegistry registry) {
+        tables = registry.intern(Arrays.asList(RationalPowerWindowing.class, p, q, R, S), tables);
     }
 
     @Override
@@ -69,21 +100,21 @@ public class RationalPowerWindowing implements Windowing {
             // (lengths are unbounded for q > 0)
             return -1;
         } else {
-            addUntilLength(length);
-            Map.Entry<Long, Long> targetLengthEntry = lengthToFirstMarker.ceilingEntry(length);
-            long lengthMarker = targetLengthEntry.getValue();
+            Tables tables = this.tables;
+            tables.addUntilLength(length);
+            long lengthMarker = tables.markers.get(tables.lengths.ceilingIndex(length));
             if (lengthMarker >= l) {
                 // at T', l' should be lengthMarker
                 return T + lengthMarker - l;
             } else {
                 // we have already hit the target length, so [l, r] is either already
                 // in the same window or will be once move into the next window
-                addPastMarker(l);
-                targetLengthEntry = firstMarkerToLength.floorEntry(l);
-                long targetLength = targetLengthEntry.getKey();
-                lengthMarker = targetLengthEntry.getValue();
+                tables.addPastMarker(l);
+                int i = tables.markers.floorIndex(l);
+                long targetLength = tables.lengths.get(i);
+                lengthMarker = tables.markers.get(i);
                 // [Wl, Wr] is the window containing l
-                long Wl = lengthMarker + (l - lengthMarker) / targetLength;
+                long Wl = lengthMarker + (l - lengthMarker) / targetLength * targetLength;
                 long Wr = Wl + targetLength - 1;
                 if (r <= Wr) {
                     // [l, r] is already in the same window, viz [Wl, Wr]
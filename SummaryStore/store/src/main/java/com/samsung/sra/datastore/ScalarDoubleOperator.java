@@ -0,0 +1,61 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Double-valued counterpart of ScalarLongOperator, for aggregates over floating-point values that are a single double
+ * (e.g. sum, max). Inserts are done on a primitive double holder, and the aggregate is only boxed once per window.
+ * Long values are converted to doubles.
+ *
+ * Stored as the 8 bytes of the double (see BinaryWindowOperator).
+ */
+public interface ScalarDoubleOperator<R, E> extends DoubleWindowOperator<Double, R, E>, LongWindowOperator<Double, R, E>,
+        BinaryWindowOperator<Double, R, E> {
+    /** Return aggr updated with val */
+    double insertScalar(double aggr, long timestamp, double val);
+
+    @Override
+    default Double insert(Double aggr, long timestamp, Object val) {
+        return insertScalar(aggr, timestamp, ((Number) val).doubleValue());
+    }
+
+    @Override
+    default Double insertDouble(Double aggr, long timestamp, double val) {
+        return insertScalar(aggr, timestamp, val);
+    }
+
+    @Override
+    default Double insertLong(Double aggr, long timestamp, long val) {
+        return insertScalar(aggr, timestamp, val);
+    }
+
+    @Override
+    default int getEncodedSize(Double aggr) {
+        return Double.BYTES;
+    }
+
+    @Override
+    default void encode(Double aggr, ByteBuffer buffer) {
+        buffer.putDouble(aggr);
+    }
+
+    @Override
+    default Double decode(ByteBuffer buffer, int offset, int length) {
+        return buffer.getDouble(offset);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LongWindowOperator whose aggregate is a single long (e.g. count, sum, max). Inserts into such aggregates are done
+ * on a primitive long holder, and the aggregate is only boxed once per window instead of once per insert.
+ *
+ * A long aggregate cannot represent the sum or max of fractional values, so double-valued streams (see
+ * CountBasedWBMH.setValuesAreDoubles) must use the ScalarDoubleOperator counterparts of such operators. Operators
+ * whose aggregate does not depend on the value (e.g. count) may accept doubles by also implementing
+ * DoubleWindowOperator.
+ *
+ * Stored as the 8 bytes of the long (see BinaryWindowOperator).
+ */
+public interface ScalarLongOperator<R, E> extends LongWindowOperator<Long, R, E>, BinaryWindowOperator<Long, R, E> {
+    /** Return aggr updated with val */
+    long insertScalar(long aggr, long timestamp, long val);
+
+    @Override
+    default Long insertLong(Long aggr, long timestamp, long val) {
+        return insertScalar(aggr, timestamp, val);
+    }
+
+    @Override
+    default int getEncodedSize(Long aggr) {
+        return Long.BYTES;
+    }
+
+    @Override
+    default void encode(Long aggr, ByteBuffer buffer) {
+        buffer.putLong(aggr);
+    }
+
+    @Override
+    default Long decode(ByteBuffer buffer, int offset, int length) {
+        return buffer.getLong(offset);
+    }
+}
@@ -16,6 +16,10 @@
 package com.samsung.sra.datastore;
 
 import com.samsung.sra.datastore.ingest.CountBasedWBMH;
+import com.samsung.sra.datastore.ingest.WBMH;
+import com.samsung.sra.datastore.ingest.InFlightSnapshot;
+import com.samsung.sra.datastore.ingest.IngestScheduler;
+import com.samsung.sra.datastore.ingest.MergeExecutor;
 import com.samsung.sra.datastore.storage.BackingStore;
 import com.samsung.sra.datastore.storage.BackingStoreException;
 import com.samsung.sra.datastore.storage.StreamWindowManager;
@@ -26,10 +30,15 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
 
 import static com.samsung.sra.datastore.Utilities.deserializeFromFile;
 import static com.samsung.sra.datastore.Utilities.serializeToFile;
@@ -50,6 +59,16 @@ class Stream implements Serializable {
     private long tLastAppend = -1, tLastLandmarkStart = -1, tLastLandmarkEnd = -1;
     private boolean isLandmarkActive = false;
 
+    /**
+     * Appends up to this much older than the newest timestamp seen so far are accepted and reordered (see
+     * setLateness); 0 means appends must be strictly in order
+     */
+    private long lateness = 0;
+    private long tMaxSeen = -1;
+    /** Appends held back until no older append can still arrive within the lateness window */
+    private transient TreeMap<Long, Object> reorderBuffer = null;
+    private static final int MAX_REORDER_BUFFER_SIZE = 1 << 20;
+
     /**
      * Lock used to serialize external write actions (append, start/end landmark, flush, close). May be turned on/off
      * via a boolean flag to SummaryStore.registerStream */
@@ -59,14 +78,25 @@ class Stream implements Serializable {
     /** Must be loaded to handle any reads/writes */
     transient StreamWindowManager windowManager;
     /** Needed to handle writes, but can be unloaded in read-only mode. Maintains write indexes internally */
-    transient CountBasedWBMH wbmh;
+    transient WBMH wbmh;
+    /** Producers appending concurrently to this stream, created on first call to newProducer */
+    private transient volatile ProducerGroup producerGroup;
 
-    void populateTransientFields(BackingStore backingStore) {
+    /**
+     * @param ingestScheduler  store-wide scheduler to run ingest stages on, or null to use dedicated threads
+     * @param mergeExecutor  store-wide pool to issue parallel merges on, or null
+     * @param windowingRegistry  store-wide registry to share windowing tables through, or null
+     */
+    void populateTransientFields(BackingStore backingStore, IngestScheduler ingestScheduler,
+                                 MergeExecutor mergeExecutor, WindowingRegistry windowingRegistry) {
         if (windowManager != null) windowManager.populateTransientFields(backingStore);
-        if (wbmh != null) wbmh.populateTransientFields(windowManager);
+        if (wbmh != null) {
+            if (windowingRegistry != null) wbmh.getWindowing().shareTables(windowingRegistry);
+            wbmh.populateTransientFields(windowManager, ingestScheduler, mergeExecutor);
+        }
     }
 
-    Stream(long streamID, boolean synchronizeWrites, CountBasedWBMH wbmh, WindowOperator[] operators, boolean keepReadIndex) {
+    Stream(long streamID, boolean synchronizeWrites, WBMH wbmh, WindowOperator[] operators, boolean keepReadIndex) {
         this.streamID = streamID;
         this.synchronizeWrites = synchronizeWrites;
         this.extLock = synchronizeWrites ? new ReentrantLock() : null;
@@ -97,13 +127,15 @@ class Stream implements Serializable {
         return loaded;
     }
 
-    void load(String directory, boolean readonly, BackingStore backingStore) throws IOException, ClassNotFoundException {
+    void load(String directory, boolean readonly, BackingStore backingStore, IngestScheduler ingestScheduler,
+              MergeExecutor mergeExecutor, WindowingRegistry windowingRegistry)
+            throws IOException, ClassNotFoundException {
         if (directory == null) return; // in-memory store, do nothing
         synchronized (loadingMonitor) {
             if (loaded) return;
             windowManager = deserializeFromFile(directory + "/read-index." + streamID);
             wbmh = readonly ? null : deserializeFromFile(directory + "/write-index." + streamID);
-            populateTransientFields(backingStore);
+            populateTransientFields(backingStore, ingestScheduler, mergeExecutor, windowingRegistry);
             loaded = true;
         }
     }
@@ -113,10 +145,12 @@ class Stream implements Serializable {
         synchronized (loadingMonitor) {
             if (!loaded) return;
             if (wbmh == null) return; // in readonly mode, unload should do nothing
-            serializeToFile(directory + "/read-index." + streamID, windowManager);
-            serializeToFile(directory + "/write-index." + streamID, wbmh);
+            // drain the pipeline and any write-back cached windows first, so the serialized indexes match the store
+            releaseReorderBuffer(Long.MAX_VALUE);
             wbmh.close();
             windowManager.flushToDisk();
+            serializeToFile(directory + "/read-index." + streamID, windowManager);
+            serializeToFile(directory + "/write-index." + streamID, wbmh);
             windowManager = null;
             wbmh = null;
             loaded = false;
@@ -124,22 +158,153 @@ class Stream implements Serializable {
     }
 
     void append(long ts, Object value) throws BackingStoreException, StreamException {
+        holdBackProducers(ts);
         if (synchronizeWrites) extLock.lock();
         try {
-            if (ts <= tLastAppend || ts < tLastLandmarkStart || ts <= tLastLandmarkEnd) {
-                throw new StreamException(String.format("out-of-order insert in stream %d: ts = %d", streamID, ts));
+            if (lateness > 0) {
+                appendToReorderBuffer(ts, value);
+            } else {
+                appendInOrder(ts, value);
+            }
+        } finally {
+            if (synchronizeWrites) extLock.unlock();
+        }
+    }
+
+    private void appendInOrder(long ts, Object value) throws BackingStoreException, StreamException {
+        if (ts <= tLastAppend || ts < tLastLandmarkStart || ts <= tLastLandmarkEnd) {
+            throw new StreamException(String.format("out-of-order insert in stream %d: ts = %d", streamID, ts));
+        }
+        tLastAppend = ts;
+        tMaxSeen = Math.max(tMaxSeen, ts);
+        stats.append(ts, value);
+        if (!isLandmarkActive) {
+            // insert into decayed window sequence
+            wbmh.append(ts, value);
+        } else {
+            // update decayed windowing, aging it by one position, but don't actually insert value into decayed window;
+            // see how LANDMARK_SENTINEL is handled in StreamWindowManager.insertIntoSummaryWindow
+            wbmh.append(ts, StreamWindowManager.LANDMARK_SENTINEL);
+            LandmarkWindow window = windowManager.getLandmarkWindow(tLastLandmarkStart);
+            window.append(ts, value);
+            windowManager.putLandmarkWindow(window);
+        }
+    }
+
+    /**
+     * Accept ts if it is within the lateness window and no later than what has already been released to the
+     * decayed/landmark windows, then release every buffered append older than the lateness window. Appends that arrive
+     * too late, or repeat a buffered timestamp, are dropped (and counted in stats)
+     */
+    private void appendToReorderBuffer(long ts, Object value) throws BackingStoreException, StreamException {
+        if (reorderBuffer == null) reorderBuffer = new TreeMap<>();
+        if (ts <= tLastAppend || ts < tLastLandmarkStart || ts <= tLastLandmarkEnd || reorderBuffer.containsKey(ts)) {
+            stats.recordDropped();
+            return;
+        }
+        if (ts < tMaxSeen) stats.recordReordered();
+        tMaxSeen = Math.max(tMaxSeen, ts);
+        reorderBuffer.put(ts, value);
+        releaseReorderBuffer(tMaxSeen - lateness);
+        while (reorderBuffer.size() > MAX_REORDER_BUFFER_SIZE) {
+            releaseReorderBuffer(reorderBuffer.firstKey());
+        }
+    }
+
+    /** Append all buffered values with timestamp <= tMax */
+    private void releaseReorderBuffer(long tMax) throws BackingStoreException {
+        if (reorderBuffer == null) return;
+        while (!reorderBuffer.isEmpty() && reorderBuffer.firstKey() <= tMax) {
+            Map.Entry<Long, Object> entry = reorderBuffer.pollFirstEntry();
+            try {
+                appendInOrder(entry.getKey(), entry.getValue());
+            } catch (StreamException e) {
+                // cannot happen: buffered timestamps are newer than anything appended or landmarked
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Accept appends up to lateness older than the newest timestamp appended so far, holding appends back in a reorder
+     * buffer until the lateness window has passed them. Held-back values are not visible to queries (including
+     * queryFresh) until then, or until the next flush. Set to 0 to require in-order appends again
+     */
+    void setLateness(long lateness) throws BackingStoreException {
+        if (lateness < 0) throw new IllegalArgumentException("negative lateness");
+        if (synchronizeWrites) extLock.lock();
+        try {
+            this.lateness = lateness;
+            releaseReorderBuffer(lateness > 0 ? tMaxSeen - lateness : Long.MAX_VALUE);
+        } finally {
+            if (synchronizeWrites) extLock.unlock();
+        }
+    }
+
+    /**
+     * Append a batch of long values, taking the write lock and checking timestamp order once for the whole batch. The
+     * batch is either appended in full or (if any timestamp is out of order) not at all.
+     */
+    void appendBatch(long[] timestamps, long[] values, int off, int len) throws BackingStoreException, StreamException {
+        appendBatch(timestamps, off, len, values.length, i -> values[i], i -> stats.append(timestamps[i], values[i]),
+                () -> wbmh.appendBatch(timestamps, values, off, len));
+    }
+
+    /** Double-valued version of appendBatch. See CountBasedWBMH.setValuesAreDoubles */
+    void appendBatch(long[] timestamps, double[] values, int off, int len) throws BackingStoreException, StreamException {
+        appendBatch(timestamps, off, len, values.length, i -> values[i], i -> stats.append(timestamps[i], values[i]),
+                () -> wbmh.appendBatch(timestamps, values, off, len));
+    }
+
+    /** Version of appendBatch for boxed values, e.g. of mixed types. Takes the write lock once for the whole batch */
+    void appendBatch(long[] timestamps, Object[] values, int off, int len) throws BackingStoreException, StreamException {
+        appendBatch(timestamps, off, len, values.length, i -> values[i], i -> stats.append(timestamps[i], values[i]),
+                () -> {
+                    for (int i = off; i < off + len; ++i) {
+                        wbmh.append(timestamps[i], values[i]);
+                    }
+                });
+    }
+
+    @FunctionalInterface
+    private interface DecayedBatchAppend {
+        void run() throws BackingStoreException;
+    }
+
+    /**
+     * Shared body of the appendBatch overloads, which differ only in how values are stored. Values are accessed through
+     * the per-element boxedValue (for the reorder buffer and landmark windows) and appendStats (unboxed where
+     * possible) sinks; appendDecayed appends the whole batch to the decayed windows.
+     */
+    private void appendBatch(long[] timestamps, int off, int len, int numValues, IntFunction<Object> boxedValue,
+                             IntConsumer appendStats, DecayedBatchAppend appendDecayed)
+            throws BackingStoreException, StreamException {
+        if (off < 0 || len < 0 || off + len > timestamps.length || off + len > numValues) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) return;
+        holdBackProducers(timestamps[off + len - 1]);
+        if (synchronizeWrites) extLock.lock();
+        try {
+            if (lateness > 0) {
+                for (int i = off; i < off + len; ++i) {
+                    appendToReorderBuffer(timestamps[i], boxedValue.apply(i));
+                }
+                return;
+            }
+            checkBatchOrder(timestamps, off, len);
+            for (int i = off; i < off + len; ++i) {
+                appendStats.accept(i);
             }
-            tLastAppend = ts;
-            stats.append(ts, value);
             if (!isLandmarkActive) {
-                // insert into decayed window sequence
-                wbmh.append(ts, value);
+                appendDecayed.run();
             } else {
-                // update decayed windowing, aging it by one position, but don't actually insert value into decayed window;
-                // see how LANDMARK_SENTINEL is handled in StreamWindowManager.insertIntoSummaryWindow
-                wbmh.append(ts, StreamWindowManager.LANDMARK_SENTINEL);
+                // see comments in append()
                 LandmarkWindow window = windowManager.getLandmarkWindow(tLastLandmarkStart);
-                window.append(ts, value);
+                for (int i = off; i < off + len; ++i) {
+                    wbmh.append(timestamps[i], StreamWindowManager.LANDMARK_SENTINEL);
+                    window.append(timestamps[i], boxedValue.apply(i));
+                }
                 windowManager.putLandmarkWindow(window);
             }
         } finally {
@@ -147,9 +312,71 @@ class Stream implements Serializable {
         }
     }
 
+    /** Check that timestamps[off..off + len) can be appended, and if so advance tLastAppend past them */
+    private void checkBatchOrder(long[] timestamps, int off, int len) throws StreamException {
+        long prev = Math.max(tLastAppend, tLastLandmarkEnd);
+        if (timestamps[off] <= prev || timestamps[off] < tLastLandmarkStart) {
+            throw new StreamException(String.format("out-of-order insert in stream %d: ts = %d", streamID, timestamps[off]));
+        }
+        for (int i = off + 1; i < off + len; ++i) {
+            if (timestamps[i] <= timestamps[i - 1]) {
+                throw new StreamException(String.format("out-of-order insert in stream %d: ts = %d", streamID, timestamps[i]));
+            }
+        }
+        tLastAppend = timestamps[off + len - 1];
+        tMaxSeen = Math.max(tMaxSeen, tLastAppend);
+    }
+
+    StreamProducer newProducer(int capacity) {
+        if (producerGroup == null) {
+            synchronized (loadingMonitor) {
+                if (producerGroup == null) producerGroup = new ProducerGroup(this);
+            }
+        }
+        return producerGroup.newProducer(capacity);
+    }
+
+    /**
+     * Before a write at ts that does not come from the producers, append their staged values up to ts and stop them
+     * staging more there, so that they refuse such values instead of staging ones the stream can no longer take. Must
+     * not hold extLock (draining takes it)
+     */
+    private void holdBackProducers(long ts) throws BackingStoreException {
+        ProducerGroup producerGroup = this.producerGroup;
+        if (producerGroup != null) producerGroup.holdBack(ts);
+    }
+
+    /** Whether IngestMemoryManager may resize this stream's ingest buffers */
+    boolean hasResizableIngestBuffers() {
+        WBMH wbmh = this.wbmh;
+        return loaded && wbmh instanceof CountBasedWBMH && ((CountBasedWBMH) wbmh).getBufferSize() > 0;
+    }
+
+    /** Total number of values the stream's ingest buffers hold, or at most will once a pending resize takes effect */
+    long getIngestBufferCapacity() {
+        CountBasedWBMH wbmh = (CountBasedWBMH) this.wbmh;
+        return wbmh.getNextBufferSize() * wbmh.getNumBuffers();
+    }
+
+    int getIngestBytesPerValue() {
+        return ((CountBasedWBMH) wbmh).getBufferBytesPerValue();
+    }
+
+    /**
+     * Reallocate the stream's ingest buffers to hold about totalBufferSize values (as few as the windowing allows while
+     * staying aligned to window boundaries), keeping the number of buffers. Takes effect at the next buffer boundary,
+     * see CountBasedWBMH.setBufferSizeAtNextBoundary
+     */
+    void resizeIngestBuffers(int totalBufferSize) {
+        if (!hasResizableIngestBuffers()) return;
+        ((CountBasedWBMH) wbmh).setBufferSizeAtNextBoundary(totalBufferSize);
+    }
+
     void startLandmark(long ts) throws StreamException, BackingStoreException {
+        holdBackProducers(ts - 1);
         if (synchronizeWrites) extLock.lock();
         try {
+            releaseReorderBuffer(ts - 1);
             if (ts <= tLastAppend || ts < tLastLandmarkStart || ts <= tLastLandmarkEnd) {
                 throw new StreamException("attempting to retroactively start landmark");
             }
@@ -165,8 +392,10 @@ class Stream implements Serializable {
     }
 
     void endLandmark(long ts) throws StreamException, BackingStoreException {
+        holdBackProducers(ts);
         if (synchronizeWrites) extLock.lock();
         try {
+            releaseReorderBuffer(ts);
             if (ts < tLastAppend || ts < tLastLandmarkStart || ts <= tLastLandmarkEnd) {
                 throw new StreamException("attempting to retroactively end landmark");
             }
@@ -181,6 +410,15 @@ class Stream implements Serializable {
     }
 
     Object query(int operatorNum, long t0, long t1, Object[] queryParams) throws BackingStoreException {
+        return query(operatorNum, t0, t1, queryParams, false);
+    }
+
+    /**
+     * @param includeInFlight  also fold in values still in the ingest pipeline (buffered or not yet written), instead of
+     *                         only what has reached the backing store
+     */
+    Object query(int operatorNum, long t0, long t1, Object[] queryParams, boolean includeInFlight)
+            throws BackingStoreException {
         long T0 = stats.getTimeRangeStart(), T1 = stats.getTimeRangeEnd();
         if (t0 > T1 || t1 < T0) { // [T0, T1] does not overlap [t0, t1]
             return operators[operatorNum].getEmptyQueryResult();
@@ -189,10 +427,28 @@ class Stream implements Serializable {
             t1 = Math.min(t1, T1);
         }
 
-        java.util.stream.Stream summaryWindows = windowManager.getSummaryWindowsOverlapping(t0, t1);
+        InFlightSnapshot inFlight = null;
+        if (includeInFlight && wbmh != null) {
+            // snapshot before reading the backing store: anything that leaves the pipeline in between is then
+            // guaranteed to show up in the read (see InFlightData)
+            if (synchronizeWrites) extLock.lock();
+            try {
+                inFlight = wbmh.snapshotInFlight(t0, t1);
+            } finally {
+                if (synchronizeWrites) extLock.unlock();
+            }
+        }
+        java.util.stream.Stream<SummaryWindow> summaryWindows = windowManager.getSummaryWindowsOverlapping(t0, t1,
+                operatorNum);
         java.util.stream.Stream landmarkWindows = windowManager.getLandmarkWindowsOverlapping(t0, t1);
         Function<SummaryWindow, Object> summaryRetriever = b -> b.aggregates[operatorNum];
         try {
+            if (inFlight != null) { // the in-flight windows pick up where the persisted ones end
+                List<SummaryWindow> persisted = summaryWindows.collect(Collectors.toList());
+                long committedThrough = persisted.stream().mapToLong(w -> w.ce).max().orElse(-1);
+                summaryWindows = java.util.stream.Stream.concat(persisted.stream(),
+                        inFlight.getWindows(windowManager, committedThrough).stream());
+            }
             return operators[operatorNum].query(
                     stats, summaryWindows, summaryRetriever, landmarkWindows, t0, t1, queryParams);
         } catch (RuntimeException e) {
@@ -217,8 +473,10 @@ class Stream implements Serializable {
     }
 
     void flush() throws BackingStoreException {
+        if (producerGroup != null) producerGroup.drainAll();
         if (synchronizeWrites) extLock.lock();
         try {
+            releaseReorderBuffer(Long.MAX_VALUE);
             wbmh.flush();
         } finally {
             if (synchronizeWrites) extLock.unlock();
@@ -226,10 +484,12 @@ class Stream implements Serializable {
     }
 
     void close() throws BackingStoreException {
+        if (producerGroup != null && loaded && wbmh != null) producerGroup.drainAll();
         if (synchronizeWrites) extLock.lock(); // block all new writes
         synchronized (loadingMonitor) {
             if (!loaded) return;
             if (wbmh == null) return; // readonly mode
+            releaseReorderBuffer(Long.MAX_VALUE);
             wbmh.close();
             windowManager.flushToDisk();
         }
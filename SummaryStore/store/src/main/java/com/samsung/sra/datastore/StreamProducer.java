@@ -0,0 +1,221 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import com.samsung.sra.datastore.storage.BackingStoreException;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of several concurrent producers appending to the same stream (see SummaryStore.newProducer). Each producer
+ * stages its values in a private buffer, so producers do not contend with each other on append; staged values from all
+ * producers of the stream are merged in timestamp order and appended to the stream by whichever producer drains them.
+ * Values are staged unboxed if the stream's CountBasedWBMH buffers longs or doubles (see setValuesAreLongs and
+ * setValuesAreDoubles), and converted the same way the ingest buffers would convert them.
+ *
+ * Timestamps only need to be strictly increasing per producer. A value is appended to the stream once no producer can
+ * still append an older one, i.e. once every open producer has appended (or called advanceTo) a timestamp at least as
+ * large, so a producer that goes idle should call advanceTo or close. Idle producers (with nothing staged) only hold
+ * back a producer whose buffer is full for ProducerGroup.IDLE_PRODUCER_TIMEOUT_MS, after which values are appended
+ * without waiting for them.
+ *
+ * Every staged value is eventually appended. Appends that could not be, because the stream already holds a value at
+ * or after that timestamp (e.g. the producer was created after other producers' values were appended, or fell behind
+ * a flush, an idle timeout, or a direct append or landmark on the stream) or because another producer has staged the
+ * same timestamp, throw StreamException instead and are counted in getNumRejected.
+ *
+ * A StreamProducer must only be used by one thread at a time.
+ */
+public class StreamProducer implements AutoCloseable {
+    private final ProducerGroup group;
+
+    // staged values, in increasing timestamp order; guarded by this. Exactly one of the value arrays is non-null
+    final long[] timestamps;
+    final long[] longValues;
+    final double[] doubleValues;
+    final Object[] objectValues;
+    private int size = 0;
+    private long tLastAppend = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    private final AtomicLong numRejected = new AtomicLong(0);
+
+    StreamProducer(ProducerGroup group, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("producer capacity must be positive");
+        this.group = group;
+        this.timestamps = new long[capacity];
+        this.longValues = group.valueType == long.class ? new long[capacity] : null;
+        this.doubleValues = group.valueType == double.class ? new double[capacity] : null;
+        this.objectValues = group.valueType == Object.class ? new Object[capacity] : null;
+    }
+
+    /**
+     * Stage a value. Drains staged values of all producers into the stream if this producer's buffer is half full and
+     * nobody else is draining, and blocks if the buffer is full and cannot be drained yet
+     */
+    public void append(long ts, Object value) throws StreamException, BackingStoreException {
+        stage(ts, BOXED, value, 0, 0);
+    }
+
+    /** Unboxed version of append */
+    public void append(long ts, long value) throws StreamException, BackingStoreException {
+        stage(ts, LONG, null, value, 0);
+    }
+
+    /** Unboxed version of append */
+    public void append(long ts, double value) throws StreamException, BackingStoreException {
+        stage(ts, DOUBLE, null, 0, value);
+    }
+
+    private static final int BOXED = 0, LONG = 1, DOUBLE = 2;
+
+    /** Stage the argument of the given type (one of boxedValue, longValue, doubleValue), converted to ours */
+    private void stage(long ts, int type, Object boxedValue, long longValue, double doubleValue)
+            throws StreamException, BackingStoreException {
+        // convert before claiming ts, so that a value we cannot convert leaves nothing staged
+        if (longValues != null) {
+            longValue = type == LONG ? longValue
+                    : type == DOUBLE ? (long) doubleValue
+                    : ((Number) boxedValue).longValue();
+        } else if (doubleValues != null) {
+            doubleValue = type == LONG ? longValue
+                    : type == DOUBLE ? doubleValue
+                    : ((Number) boxedValue).doubleValue();
+        } else {
+            boxedValue = type == LONG ? (Object) longValue
+                    : type == DOUBLE ? (Object) doubleValue
+                    : boxedValue;
+        }
+        for (long waitStart = -1; ; waitStart = waitForSpace(waitStart)) {
+            int slot;
+            synchronized (this) {
+                slot = claimSlot(ts);
+                if (slot >= 0) {
+                    if (longValues != null) {
+                        longValues[slot] = longValue;
+                    } else if (doubleValues != null) {
+                        doubleValues[slot] = doubleValue;
+                    } else {
+                        objectValues[slot] = boxedValue;
+                    }
+                }
+            }
+            if (slot >= 0) {
+                if (2 * (slot + 1) >= timestamps.length) group.tryDrain();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check that ts can be appended, and if there is room, stage it and return the slot its value goes in; return -1
+     * if the buffer is full. Must hold the lock on this
+     */
+    private int claimSlot(long ts) throws StreamException {
+        assert Thread.holdsLock(this);
+        if (closed) throw new StreamException("append to closed producer of stream " + group.streamID);
+        if (ts <= tLastAppend) {
+            throw new StreamException(String.format("out-of-order insert in producer of stream %d: ts = %d",
+                    group.streamID, ts));
+        }
+        if (ts <= group.getReservedThrough()) {
+            numRejected.incrementAndGet();
+            throw new StreamException(String.format(
+                    "insert in producer of stream %d behind values already appended: ts = %d", group.streamID, ts));
+        }
+        if (size == timestamps.length) return -1;
+        if (!group.claim(ts)) {
+            numRejected.incrementAndGet();
+            throw new StreamException(String.format(
+                    "insert in producer of stream %d at a timestamp another producer has staged: ts = %d",
+                    group.streamID, ts));
+        }
+        timestamps[size] = ts;
+        tLastAppend = ts;
+        return size++;
+    }
+
+    /** Called when the buffer is full: drain or wait for other producers. Returns when we started waiting */
+    private long waitForSpace(long waitStart) throws BackingStoreException {
+        if (waitStart == -1) waitStart = System.nanoTime();
+        group.drainOrWait(System.nanoTime() - waitStart
+                >= TimeUnit.MILLISECONDS.toNanos(ProducerGroup.IDLE_PRODUCER_TIMEOUT_MS));
+        return waitStart;
+    }
+
+    /** Promise that this producer will not append any values with timestamp <= ts */
+    public synchronized void advanceTo(long ts) {
+        tLastAppend = Math.max(tLastAppend, ts);
+    }
+
+    /** Number of appends this producer refused because the stream or another producer already had the timestamp */
+    public long getNumRejected() {
+        return numRejected.get();
+    }
+
+    /** Stop producing; values already staged are still appended */
+    @Override
+    public void close() throws BackingStoreException {
+        synchronized (this) {
+            closed = true;
+        }
+        group.tryDrain();
+    }
+
+    /** Largest timestamp this producer may not append below: all its future values are newer */
+    synchronized long getWatermark() {
+        return closed ? Long.MAX_VALUE : tLastAppend;
+    }
+
+    /** Timestamp of the newest staged value, or Long.MIN_VALUE if nothing is staged */
+    synchronized long getNewestStaged() {
+        return size > 0 ? timestamps[size - 1] : Long.MIN_VALUE;
+    }
+
+    /** Whether this producer is open but has nothing staged */
+    synchronized boolean isIdle() {
+        return !closed && size == 0;
+    }
+
+    synchronized boolean isRetired() {
+        return closed && size == 0;
+    }
+
+    /**
+     * Number of staged values with timestamp <= bound. These stay in place (appends only write past them) until
+     * removeFirst, so the draining thread may read them in between without holding our lock
+     */
+    synchronized int countThrough(long bound) {
+        int n = Arrays.binarySearch(timestamps, 0, size, bound);
+        return n >= 0 ? n + 1 : -n - 1;
+    }
+
+    /** Unstage the n oldest values */
+    synchronized void removeFirst(int n) {
+        System.arraycopy(timestamps, n, timestamps, 0, size - n);
+        if (longValues != null) {
+            System.arraycopy(longValues, n, longValues, 0, size - n);
+        } else if (doubleValues != null) {
+            System.arraycopy(doubleValues, n, doubleValues, 0, size - n);
+        } else {
+            System.arraycopy(objectValues, n, objectValues, 0, size - n);
+            Arrays.fill(objectValues, size - n, size, null);
+        }
+        size -= n;
+    }
+}
@@ -22,6 +22,8 @@ public class StreamStatistics implements Serializable {
     private long numValues = 0;
     private double Isum = 0, Isqsum = 0;
     private double Vsum = 0, Vsqsum = 0;
+    // appends accepted out of order, and appends dropped for arriving too late (see SummaryStore.setLateness)
+    private long numReordered = 0, numDropped = 0;
 
     public StreamStatistics() {
     }
@@ -34,9 +36,24 @@ public class StreamStatistics implements Serializable {
         this.Isqsum = that.Isqsum;
         this.Vsum = that.Vsum;
         this.Vsqsum = that.Vsqsum;
+        this.numReordered = that.numReordered;
+        this.numDropped = that.numDropped;
     }
 
     void append(long ts, Object value) {
+        appendTimestamp(ts);
+        if (value instanceof Number) {
+            appendValue(((Number) value).doubleValue());
+        }
+    }
+
+    /** Unboxed version of append, used by batch appends (of long or double values) */
+    void append(long ts, double value) {
+        appendTimestamp(ts);
+        appendValue(value);
+    }
+
+    private void appendTimestamp(long ts) {
         assert ts > lastArrivalTimestamp;
         if (firstArrivalTimestamp == -1) {
             firstArrivalTimestamp = ts;
@@ -45,15 +62,23 @@ public class StreamStatistics implements Serializable {
             Isum += I;
             Isqsum += I * I;
         }
-        if (value instanceof Number) {
-            double v = ((Number) value).doubleValue();
-            Vsum += v;
-            Vsqsum += v * v;
-        }
         ++numValues;
         lastArrivalTimestamp = ts;
     }
 
+    void recordReordered() {
+        ++numReordered;
+    }
+
+    void recordDropped() {
+        ++numDropped;
+    }
+
+    private void appendValue(double v) {
+        Vsum += v;
+        Vsqsum += v * v;
+    }
+
     public long getTimeRangeStart() {
         return firstArrivalTimestamp;
     }
@@ -66,6 +91,16 @@ public class StreamStatistics implements Serializable {
         return numValues;
     }
 
+    /** Number of appends accepted despite arriving after a newer one, within the stream's lateness window */
+    public long getNumReordered() {
+        return numReordered;
+    }
+
+    /** Number of appends dropped for arriving later than the stream's lateness window allows */
+    public long getNumDropped() {
+        return numDropped;
+    }
+
     public double getMeanInterarrival() {
         // note that # interarrivals = numValues - 1
         return numValues > 1 ? Isum / (numValues - 1) : 0;
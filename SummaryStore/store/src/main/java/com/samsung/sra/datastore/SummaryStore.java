@@ -16,8 +16,12 @@
 package com.samsung.sra.datastore;
 
 import com.samsung.sra.datastore.ingest.CountBasedWBMH;
+import com.samsung.sra.datastore.ingest.WBMH;
+import com.samsung.sra.datastore.ingest.IngestScheduler;
+import com.samsung.sra.datastore.ingest.MergeExecutor;
 import com.samsung.sra.datastore.storage.BackingStore;
 import com.samsung.sra.datastore.storage.BackingStoreException;
+import com.samsung.sra.datastore.storage.ColumnFamilyTuning;
 import com.samsung.sra.datastore.storage.MainMemoryBackingStore;
 import com.samsung.sra.datastore.storage.RocksDBBackingStore;
 import com.samsung.sra.protocol.OpTypeOuterClass;
@@ -28,28 +32,50 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Start here. Most external code will only construct and interact with an instance of this class.
  *
  * All calls that modify a stream (append, landmark, flush, close) must be serialized. If calling code cannot do it on
  * its own it must set a flag in registerStream to have us use a lock.
+ * Alternatively, threads may append to one stream concurrently through StreamProducers (see newProducer).
  *
  * This class forwards all API calls to Stream.
  */
 public class SummaryStore implements AutoCloseable {
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(SummaryStore.class);
     private static final String EXTERNAL_AUX_PREFIX = "EXTERNAL_";
+    /** Staging buffer size of producers created without an explicit capacity (see newProducer) */
+    private static final int DEFAULT_PRODUCER_CAPACITY = 4096;
 
     private final BackingStore backingStore;
     private final String directory;
     private final StoreOptions storeOptions;
+    /** Shared ingest worker pool, or null if each stream runs its own ingest threads */
+    private final IngestScheduler ingestScheduler;
+    /** Shared pool for parallel merges, or null if streams that parallelize merges use private pools */
+    private final MergeExecutor mergeExecutor;
+    /** Resizes ingest buffers to fit StoreOptions.setIngestMemoryBudget, or null */
+    private final IngestMemoryManager ingestMemoryManager;
+    /** Lets streams with equivalent windowings share one copy of the (lazily grown) window tables */
+    private final WindowingRegistry windowingRegistry = new WindowingRegistry();
 
     public static class StoreOptions {
+        /** Window size assumed by setReadCacheSizePerStream */
+        public static final long ASSUMED_WINDOW_BYTES = 1024;
+
         private boolean keepReadIndexes = true;
         private boolean readonly = false;
         private boolean lazyload = false;
-        private long cacheSizePerStream = 0;
+        private long readCacheBytes = 0;
+        private int ingestThreads = 0;
+        private ExecutorService ingestExecutor = null;
+        private int mergeThreads = 0;
+        private int writeBackCacheSize = 0;
+        private long ingestMemoryBudget = 0;
+        private long ingestRebalanceIntervalMillis = 1000;
+        private ColumnFamilyTuning summaryColumnFamily = null, landmarkColumnFamily = null, auxColumnFamily = null;
 
         /**
          * <p>Maintain an in-memory index to speed up reads. Default true. Disabling this saves index-maintenance overhead
@@ -65,21 +91,30 @@ public class SummaryStore implements AutoCloseable {
 
         /** Open store in read-only mode. Default false */
         public StoreOptions setReadOnly(boolean readonly) {
-            if (!readonly && cacheSizePerStream > 0) {
-                throw new IllegalArgumentException("Read cache is only allowed in read-only mode");
-            }
             this.readonly = readonly;
             return this;
         }
 
         /**
-         * Size (# windows) of in-memory cache used when serving read queries. Implies and only allowed in read-only
-         * mode. Default 0 (caching disabled)
+         * Approximate heap budget (bytes) of the in-memory cache of deserialized summary windows used when serving
+         * read queries, shared by all streams. Allowed in both read-only and read/write mode: the cache is kept
+         * coherent with merges. Default 0 (caching disabled)
+         */
+        public StoreOptions setReadCacheBytes(long readCacheBytes) {
+            this.readCacheBytes = readCacheBytes >= 0 ? readCacheBytes : 0;
+            return this;
+        }
+
+        /**
+         * Size (# windows) of in-memory cache used when serving read queries. Implies read-only mode. Default 0
+         * (caching disabled)
+         * @deprecated the cache is now shared by all streams and sized in bytes; this budgets cacheSizePerStream
+         *             windows of ASSUMED_WINDOW_BYTES each. Use setReadCacheBytes instead
          */
+        @Deprecated
         public StoreOptions setReadCacheSizePerStream(long cacheSizePerStream) {
             setReadOnly(true);
-            this.cacheSizePerStream = cacheSizePerStream >= 0 ? cacheSizePerStream : 0;
-            return this;
+            return setReadCacheBytes(cacheSizePerStream * ASSUMED_WINDOW_BYTES);
         }
 
         /**
@@ -90,6 +125,83 @@ public class SummaryStore implements AutoCloseable {
             this.lazyload = lazyload;
             return this;
         }
+
+        /**
+         * Run the ingest pipeline stages (summarizer, writer, merger) of all streams on a shared pool of this many
+         * threads, instead of starting three dedicated threads per stream. Default 0, meaning dedicated threads.
+         * Recommended when the store has many streams, e.g. set to the number of cores
+         */
+        public StoreOptions setIngestThreads(int ingestThreads) {
+            this.ingestThreads = ingestThreads >= 0 ? ingestThreads : 0;
+            return this;
+        }
+
+        /**
+         * Like setIngestThreads, but run the ingest stages of all streams on the specified externally managed executor
+         * (e.g. a virtual-thread-per-task executor). Takes precedence over setIngestThreads. The executor is not shut
+         * down when the store is closed
+         */
+        public StoreOptions setIngestExecutor(ExecutorService ingestExecutor) {
+            this.ingestExecutor = ingestExecutor;
+            return this;
+        }
+
+        /**
+         * Number of newest summary windows per stream to keep in a write-back cache, so that merges involving them
+         * happen in memory; a window is only written to the backing store once this many newer windows exist. Only
+         * applies to streams created after this is set. Default 0 (write-through)
+         */
+        public StoreOptions setWriteBackCacheSizePerStream(int writeBackCacheSize) {
+            this.writeBackCacheSize = writeBackCacheSize >= 0 ? writeBackCacheSize : 0;
+            return this;
+        }
+
+        /**
+         * Size of the store-wide work-stealing pool used by all streams that parallelize merges (see
+         * CountBasedWBMH.setParallelizeMerge). Default 0, meaning each such stream gets a private pool
+         */
+        public StoreOptions setMergeThreads(int mergeThreads) {
+            this.mergeThreads = mergeThreads >= 0 ? mergeThreads : 0;
+            return this;
+        }
+
+        /**
+         * Store-wide budget (bytes) for ingest buffers. If set, the ingest buffers of all streams registered with
+         * buffered ingest are periodically resized so that they share the budget in proportion to their recent append
+         * rates; a stream's own setBufferSize only sets its initial size. Default 0 (disabled)
+         */
+        public StoreOptions setIngestMemoryBudget(long bytes) {
+            this.ingestMemoryBudget = bytes >= 0 ? bytes : 0;
+            return this;
+        }
+
+        /** How often to rebalance ingest buffers under setIngestMemoryBudget. Default 1000 ms */
+        public StoreOptions setIngestRebalanceIntervalMillis(long millis) {
+            if (millis <= 0) throw new IllegalArgumentException("rebalance interval must be positive");
+            this.ingestRebalanceIntervalMillis = millis;
+            return this;
+        }
+
+        /**
+         * RocksDB compaction, compression, block and cache settings for the column family holding summary windows.
+         * Default ColumnFamilyTuning.forSummaryWindows
+         */
+        public StoreOptions setSummaryColumnFamily(ColumnFamilyTuning tuning) {
+            this.summaryColumnFamily = tuning;
+            return this;
+        }
+
+        /** Like setSummaryColumnFamily, for landmark windows. Default ColumnFamilyTuning.forLandmarkWindows */
+        public StoreOptions setLandmarkColumnFamily(ColumnFamilyTuning tuning) {
+            this.landmarkColumnFamily = tuning;
+            return this;
+        }
+
+        /** Like setSummaryColumnFamily, for store metadata and aux data. Default ColumnFamilyTuning.forAux */
+        public StoreOptions setAuxColumnFamily(ColumnFamilyTuning tuning) {
+            this.auxColumnFamily = tuning;
+            return this;
+        }
     }
 
     ConcurrentHashMap<Long, Stream> streams; // package-local rather than private to allow access from SummaryStoreTest
@@ -99,23 +211,33 @@ public class SummaryStore implements AutoCloseable {
      */
     public SummaryStore(String directory, StoreOptions storeOptions) throws BackingStoreException, IOException, ClassNotFoundException {
         this.storeOptions = storeOptions;
-        if (storeOptions.cacheSizePerStream > 0 && !(storeOptions.keepReadIndexes && storeOptions.readonly)) {
-            throw new IllegalArgumentException("Read cache not allowed in read/write mode (use the memory for" +
-                    " ingest buffer instead)");
+        if (storeOptions.ingestExecutor != null) {
+            this.ingestScheduler = new IngestScheduler(storeOptions.ingestExecutor);
+        } else if (storeOptions.ingestThreads > 0) {
+            this.ingestScheduler = new IngestScheduler(storeOptions.ingestThreads);
+        } else {
+            this.ingestScheduler = null;
         }
+        this.mergeExecutor = storeOptions.mergeThreads > 0 ? new MergeExecutor(storeOptions.mergeThreads) : null;
         if (directory != null) {
             File dir = new File(directory);
             if (!dir.exists()) {
                 boolean created = dir.mkdirs();
                 assert created;
             }
-            this.backingStore = new RocksDBBackingStore(directory + "/rocksdb", storeOptions.cacheSizePerStream, storeOptions.readonly);
+            this.backingStore = new RocksDBBackingStore(directory + "/rocksdb", storeOptions.readCacheBytes,
+                    storeOptions.readonly, storeOptions.summaryColumnFamily, storeOptions.landmarkColumnFamily,
+                    storeOptions.auxColumnFamily);
             this.directory = directory;
         } else {
             this.backingStore = new MainMemoryBackingStore();
             this.directory = null;
         }
         deserializeMetadata();
+        this.ingestMemoryManager = storeOptions.ingestMemoryBudget > 0 && !storeOptions.readonly
+                ? new IngestMemoryManager(streams, storeOptions.ingestMemoryBudget,
+                        storeOptions.ingestRebalanceIntervalMillis)
+                : null;
     }
 
     /**
@@ -164,7 +286,7 @@ public class SummaryStore implements AutoCloseable {
         if (stream == null) {
             throw new StreamException("attempting to load unknown stream " + streamID);
         }
-        stream.load(directory, true, backingStore);
+        stream.load(directory, true, backingStore, ingestScheduler, mergeExecutor, windowingRegistry);
     }
 
     private void serializeMetadata() throws IOException, BackingStoreException {
@@ -190,22 +312,25 @@ public class SummaryStore implements AutoCloseable {
         streams = Utilities.deserializeObject(directory + "/metadata");*/
         if (!storeOptions.lazyload) {
             for (Stream stream : streams.values()) {
-                stream.load(directory, storeOptions.readonly, backingStore);
+                stream.load(directory, storeOptions.readonly, backingStore, ingestScheduler, mergeExecutor,
+                        windowingRegistry);
             }
         }
     }
 
-    public void registerStream(final long streamID, CountBasedWBMH wbmh, WindowOperator... operators)
+    public void registerStream(final long streamID, WBMH wbmh, WindowOperator... operators)
             throws BackingStoreException, StreamException {
         registerStream(streamID, true, wbmh, operators);
     }
 
     /**
      * Register a stream with specified windowing and operators. Set the optional synchronizeWrites flag to false to
-     * disable the internal lock we otherwise use to serialize all append/landmark/flush/close calls
+     * disable the internal lock we otherwise use to serialize all append/landmark/flush/close calls. Pass a
+     * CountBasedWBMH to decay by element count, or a TimeBasedWBMH to decay by age. Throws StreamException if the
+     * CountBasedWBMH buffers doubles and an operator cannot take them (see CountBasedWBMH.setValuesAreDoubles)
      */
     public void registerStream(final long streamID, boolean synchronizeWrites,
-                               CountBasedWBMH wbmh, WindowOperator... operators)
+                               WBMH wbmh, WindowOperator... operators)
             throws StreamException, BackingStoreException {
         synchronized (streams) {
             if (streams.containsKey(streamID)) {
@@ -213,8 +338,19 @@ public class SummaryStore implements AutoCloseable {
                 // can happen during distributed bootup; warn instead of throwing exception
                 //throw new StreamException("attempting to register streamID " + streamID + " multiple times");
             } else {
+                if (wbmh instanceof CountBasedWBMH && ((CountBasedWBMH) wbmh).getValuesAreDoubles()) {
+                    for (WindowOperator operator : operators) {
+                        if (!(operator instanceof DoubleWindowOperator)) {
+                            throw new StreamException("stream " + streamID + " buffers double values, but operator "
+                                    + operator.getClass().getSimpleName() + " does not implement DoubleWindowOperator");
+                        }
+                    }
+                }
                 Stream sm = new Stream(streamID, synchronizeWrites, wbmh, operators, storeOptions.keepReadIndexes);
-                sm.populateTransientFields(backingStore);
+                if (storeOptions.writeBackCacheSize > 0) {
+                    sm.windowManager.setWriteBackCacheSize(storeOptions.writeBackCacheSize);
+                }
+                sm.populateTransientFields(backingStore, ingestScheduler, mergeExecutor, windowingRegistry);
                 streams.put(streamID, sm);
             }
         }
@@ -246,10 +382,65 @@ public class SummaryStore implements AutoCloseable {
         return getStream(streamID).query(aggregateNum, t0, t1, queryParams);
     }
 
+    /**
+     * Same as query(), but read-your-writes: the answer also reflects values still in the stream's ingest pipeline
+     * (in ingest buffers, or summarized but not yet written to the backing store), which query() only sees after a
+     * flush(). Unlike flush() this does not stall ingest, but it does summarize the buffered values overlapping
+     * [t0, t1] on every call.
+     */
+    public Object queryFresh(long streamID, long t0, long t1, int aggregateNum, Object... queryParams)
+            throws StreamException, BackingStoreException {
+        if (t0 < 0 || t0 > t1) {
+            throw new IllegalArgumentException("[" + t0 + ", " + t1 + "] is not a valid time interval");
+        }
+        return getStream(streamID).query(aggregateNum, t0, t1, queryParams, true);
+    }
+
     public void append(long streamID, long ts, Object value) throws StreamException, BackingStoreException {
         getStream(streamID).append(ts, value);
     }
 
+    /**
+     * Append len long values in one call: values[off], ..., values[off + len - 1] with timestamps timestamps[off], ...
+     * Timestamps must be strictly increasing and larger than the last appended value. Much cheaper per value than
+     * append(), particularly if the stream's CountBasedWBMH has setValuesAreLongs enabled.
+     */
+    public void appendBatch(long streamID, long[] timestamps, long[] values, int off, int len)
+            throws StreamException, BackingStoreException {
+        getStream(streamID).appendBatch(timestamps, values, off, len);
+    }
+
+    /**
+     * Double-valued version of appendBatch, cheapest if the stream's CountBasedWBMH has setValuesAreDoubles enabled
+     */
+    public void appendBatch(long streamID, long[] timestamps, double[] values, int off, int len)
+            throws StreamException, BackingStoreException {
+        getStream(streamID).appendBatch(timestamps, values, off, len);
+    }
+
+    /**
+     * Let the stream accept appends up to lateness older than the newest appended timestamp (instead of requiring
+     * strictly increasing timestamps): such appends are held in a reorder buffer and released in timestamp order once
+     * they fall out of the lateness window, or on flush. Appends later than that are dropped. Reordered and dropped
+     * appends are counted in getStreamStatistics. Pass 0 to require in-order appends again.
+     */
+    public void setLateness(long streamID, long lateness) throws StreamException, BackingStoreException {
+        getStream(streamID).setLateness(lateness);
+    }
+
+    /**
+     * Create a producer for appending to the stream concurrently with other producers: each producer stages values in
+     * a private buffer of the specified capacity, and staged values are merged into the stream in timestamp order.
+     * Timestamps need only be strictly increasing per producer. See StreamProducer.
+     */
+    public StreamProducer newProducer(long streamID, int capacity) throws StreamException {
+        return getStream(streamID).newProducer(capacity);
+    }
+
+    public StreamProducer newProducer(long streamID) throws StreamException {
+        return newProducer(streamID, DEFAULT_PRODUCER_CAPACITY);
+    }
+
     public void appendAutoTimestamped(long streamID, Object value) throws StreamException, BackingStoreException {
         append(streamID, System.currentTimeMillis(), value);
     }
@@ -291,6 +482,7 @@ public class SummaryStore implements AutoCloseable {
     @Override
     public void close() throws BackingStoreException, IOException {
         synchronized (streams) { // this blocks creating new streams
+            if (ingestMemoryManager != null) ingestMemoryManager.close();
             if (!storeOptions.readonly) {
                 for (Stream stream : streams.values()) {
                     stream.close();
@@ -298,6 +490,8 @@ public class SummaryStore implements AutoCloseable {
                 serializeMetadata();
             }
             backingStore.close();
+            if (ingestScheduler != null) ingestScheduler.close();
+            if (mergeExecutor != null) mergeExecutor.close();
         }
     }
 
@@ -332,4 +526,9 @@ public class SummaryStore implements AutoCloseable {
     public StreamStatistics getStreamStatistics(long streamID) throws StreamException {
         return new StreamStatistics(getStream(streamID).stats);
     }
+
+    /** E.g. to read RocksDBBackingStore's cache and read-path counters */
+    BackingStore getBackingStore() {
+        return backingStore;
+    }
 }
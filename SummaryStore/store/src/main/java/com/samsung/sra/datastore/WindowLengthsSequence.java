@@ -19,6 +19,10 @@ import java.io.Serializable;
 
 /**
  * Generate a sequence of window lengths, e.g. 1, 2, 4, 8, ...
+ *
+ * Implementations may define equals/hashCode to compare the sequences they generate (i.e. their parameters, not how
+ * far they have been advanced). GenericWindowings over equal sequences can then share their window tables, see
+ * Windowing.shareTables.
  */
 public interface WindowLengthsSequence extends Serializable {
     long nextWindowLength();
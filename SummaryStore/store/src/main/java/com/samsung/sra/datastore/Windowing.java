@@ -42,4 +42,12 @@ public interface Windowing extends Serializable {
      * (Used to calculate ingest buffer shape.)
      */
     List<Long> getWindowsCoveringUpto(long N);
+
+    /**
+     * Switch to the registry's boundary tables for windowings identical to this one (registering ours if it has none),
+     * so that identical windowings across streams share their tables. Implementations must be safe for concurrent
+     * callers once shared. No-op by default
+     */
+    default void shareTables(WindowingRegistry registry) {
+    }
 }
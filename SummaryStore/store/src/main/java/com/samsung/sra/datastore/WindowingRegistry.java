@@ -0,0 +1,42 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Store-wide registry of windowing boundary tables (see Windowing.shareTables). Windowings with identical definitions,
+ * e.g. every stream using GenericWindowing(new ExponentialWindowLengths(2)), end up sharing a single set of tables
+ * instead of each growing its own copy.
+ */
+public class WindowingRegistry {
+    private final ConcurrentHashMap<Object, Object> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Return the tables registered under key, first registering candidate if there are none. Keys must have value
+     * semantics (equals/hashCode), and identify the windowing class as well as its parameters
+     */
+    @SuppressWarnings("unchecked")
+    <T> T intern(Object key, T candidate) {
+        Object existing = tables.putIfAbsent(key, candidate);
+        return existing != null ? (T) existing : candidate;
+    }
+
+    /** Number of distinct tables registered */
+    public int size() {
+        return tables.size();
+    }
+}
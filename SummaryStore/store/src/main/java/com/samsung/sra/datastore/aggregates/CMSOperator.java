@@ -22,6 +22,7 @@ import com.samsung.sra.protocol.OpTypeOuterClass.OpType;
 import com.samsung.sra.protocol.SummaryStore.ProtoOperator;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.nio.ByteBuffer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -33,7 +34,8 @@ import java.util.stream.Stream;
  * R = Long, a count
  * E = Pair<Double, Double>, a CI
  */
-public class CMSOperator implements WindowOperator<CountMinSketch,Double,Pair<Double,Double>> {
+public class CMSOperator implements LongWindowOperator<CountMinSketch,Double,Pair<Double,Double>>,
+        BinaryWindowOperator<CountMinSketch,Double,Pair<Double,Double>> {
     private static final OpType opType = OpType.CMS;
 
     @Override
@@ -69,6 +71,12 @@ public class CMSOperator implements WindowOperator<CountMinSketch,Double,Pair<Do
         return aggr;
     }
 
+    @Override
+    public CountMinSketch insertLong(CountMinSketch aggr, long timestamp, long val) {
+        aggr.add(val, 1);
+        return aggr;
+    }
+
     @Override
     public ResultError<Double, Pair<Double, Double>> query(StreamStatistics streamStats,
                                                            Stream<SummaryWindow> summaryWindows,
@@ -109,4 +117,19 @@ public class CMSOperator implements WindowOperator<CountMinSketch,Double,Pair<Do
     public CountMinSketch deprotofy(ProtoOperator protoOperator) {
         return CMSProtofier.deprotofy(protoOperator.getCms(), depth, width, hashA);
     }
+
+    @Override
+    public int getEncodedSize(CountMinSketch aggr) {
+        return CMSProtofier.getEncodedSize(depth, width);
+    }
+
+    @Override
+    public void encode(CountMinSketch aggr, ByteBuffer buffer) {
+        CMSProtofier.encode(aggr, buffer);
+    }
+
+    @Override
+    public CountMinSketch decode(ByteBuffer buffer, int offset, int length) {
+        return CMSProtofier.decode(buffer, offset, depth, width, hashA);
+    }
 }
@@ -0,0 +1,84 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.aggregates;
+
+import com.samsung.sra.datastore.*;
+import com.samsung.sra.protocol.OpTypeOuterClass.OpType;
+import com.samsung.sra.protocol.SummaryStore.ProtoOperator;
+import org.apache.commons.lang3.mutable.MutableDouble;
+
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/** MaxOperator for streams of double values (see CountBasedWBMH.setValuesAreDoubles), keeping a double maximum */
+public class DoubleMaxOperator implements ScalarDoubleOperator<Double, Boolean> {
+    private static final OpType opType = OpType.MAX;
+
+    /** What value to return for max over empty set */
+    private static final double EMPTY_MAX = Double.NEGATIVE_INFINITY;
+
+    @Override
+    public OpType getOpType() {
+        return opType;
+    }
+
+    @Override
+    public Double createEmpty() {
+        return EMPTY_MAX;
+    }
+
+    @Override
+    public Double merge(Stream<Double> aggrs) {
+        return aggrs.mapToDouble(Double::doubleValue).max().orElse(EMPTY_MAX);
+    }
+
+    @Override
+    public double insertScalar(double aggr, long timestamp, double val) {
+        return Math.max(aggr, val);
+    }
+
+    @Override
+    public ResultError<Double, Boolean> query(StreamStatistics streamStats,
+                                              Stream<SummaryWindow> summaryWindows,
+                                              Function<SummaryWindow, Double> summaryRetriever,
+                                              Stream<LandmarkWindow> landmarkWindows,
+                                              long t0, long t1, Object... params) {
+        double smax = merge(summaryWindows.map(summaryRetriever));
+        MutableDouble lmaxM = new MutableDouble(EMPTY_MAX);
+        landmarkWindows.forEach(w -> w.values.forEach((t, v) -> {
+            if (t0 <= t && t <= t1) {
+                lmaxM.setValue(Math.max(lmaxM.doubleValue(), ((Number) v).doubleValue()));
+            }
+        }));
+        double lmax = lmaxM.doubleValue();
+        return new ResultError<>(Math.max(smax, lmax), smax == EMPTY_MAX);
+    }
+
+    @Override
+    public ResultError<Double, Boolean> getEmptyQueryResult() {
+        return new ResultError<>(EMPTY_MAX, true);
+    }
+
+    @Override
+    public ProtoOperator.Builder protofy(Double aggr) {
+        return ProtoOperator.newBuilder().setDouble(aggr);
+    }
+
+    @Override
+    public Double deprotofy(ProtoOperator operator) {
+        return operator.getDouble();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.aggregates;
+
+import com.samsung.sra.datastore.*;
+import com.samsung.sra.protocol.OpTypeOuterClass.OpType;
+import com.samsung.sra.protocol.SummaryStore.ProtoOperator;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/** SumOperator for streams of double values (see CountBasedWBMH.setValuesAreDoubles), keeping a double sum */
+public class DoubleSumOperator implements ScalarDoubleOperator<Double, Pair<Double, Double>> {
+    private static final OpType opType = OpType.SUM;
+
+    @Override
+    public OpType getOpType() {
+        return opType;
+    }
+
+    @Override
+    public Double createEmpty() {
+        return 0d;
+    }
+
+    @Override
+    public Double merge(Stream<Double> aggrs) {
+        return aggrs.mapToDouble(Double::doubleValue).sum();
+    }
+
+    @Override
+    public double insertScalar(double aggr, long ts, double val) {
+        return aggr + val;
+    }
+
+    @Override
+    public ResultError<Double, Pair<Double, Double>> query(StreamStatistics streamStats,
+                                                           Stream<SummaryWindow> summaryWindows,
+                                                           Function<SummaryWindow, Double> sumRetriever,
+                                                           Stream<LandmarkWindow> landmarkWindows,
+                                                           long t0, long t1, Object... params) {
+        double confidenceLevel = 1;
+        if (params != null && params.length > 0) {
+            confidenceLevel = ((Number) params[0]).doubleValue();
+        }
+        double cv_t = streamStats.getCVInterarrival(), cv_v = streamStats.getCVValue();
+        double mu_v = streamStats.getMeanValue();
+        double sdMultiplier = Math.sqrt((cv_t * cv_t + cv_v * cv_v) * mu_v);
+        return new SumEstimator(t0, t1, summaryWindows, sumRetriever, landmarkWindows, o -> (Number) o)
+                .estimate(sdMultiplier, confidenceLevel);
+    }
+
+    @Override
+    public ResultError<Double, Pair<Double, Double>> getEmptyQueryResult() {
+        return new ResultError<>(0d, new ImmutablePair<>(0d, 0d));
+    }
+
+    @Override
+    public ProtoOperator.Builder protofy(Double aggr) {
+        return ProtoOperator
+                .newBuilder()
+                .setDouble(aggr);
+    }
+
+    @Override
+    public Double deprotofy(ProtoOperator operator) {
+        return operator.getDouble();
+    }
+}
@@ -26,7 +26,7 @@ import java.util.stream.Stream;
 /**
  * Query along a Long stream returning the Long maximum. query() also returns a boolean true if we are certain of
  * the answer (happens when querying only over landmarks) */
-public class MaxOperator implements WindowOperator<Long, Long, Boolean> {
+public class MaxOperator implements ScalarLongOperator<Long, Boolean> {
     private static final OpType opType = OpType.MAX;
 
     /** What value to return for max over empty set */
@@ -49,7 +49,12 @@ public class MaxOperator implements WindowOperator<Long, Long, Boolean> {
 
     @Override
     public Long insert(Long aggr, long timestamp, Object val) {
-        return Math.max(aggr, (Long) val);
+        return insertScalar(aggr, timestamp, (Long) val);
+    }
+
+    @Override
+    public long insertScalar(long aggr, long timestamp, long val) {
+        return Math.max(aggr, val);
     }
 
     @Override
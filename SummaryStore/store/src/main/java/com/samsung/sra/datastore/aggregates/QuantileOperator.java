@@ -23,7 +23,7 @@ import com.samsung.sra.protocol.SummaryStore.ProtoOperator;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
-public class QuantileOperator implements WindowOperator<QDigest, Long, Long> {
+public class QuantileOperator implements LongWindowOperator<QDigest, Long, Long> {
     private static final OpType opType = OpType.FREQ;
 
     private long comprFactor = 64;
@@ -62,6 +62,12 @@ public class QuantileOperator implements WindowOperator<QDigest, Long, Long> {
         return aggr;
     }
 
+    @Override
+    public QDigest insertLong(QDigest aggr, long ts, long val) {
+        aggr.offer(val);
+        return aggr;
+    }
+
     @Override
     public ResultError<Long, Long> query(StreamStatistics streamStats,
                                          Stream<SummaryWindow> summaryWindows,
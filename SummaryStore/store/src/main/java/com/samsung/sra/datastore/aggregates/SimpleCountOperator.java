@@ -28,7 +28,8 @@ import java.util.stream.Stream;
 
 //import org.apache.commons.math3.util.Pair;
 
-public class SimpleCountOperator implements WindowOperator<Long,Double,Pair<Double,Double>> {
+public class SimpleCountOperator implements ScalarLongOperator<Double,Pair<Double,Double>>,
+        DoubleWindowOperator<Long,Double,Pair<Double,Double>> {
     private static final OpType opType = OpType.COUNT;
     private static Logger logger = LoggerFactory.getLogger(SimpleCountOperator.class);
 
@@ -52,6 +53,16 @@ public class SimpleCountOperator implements WindowOperator<Long,Double,Pair<Doub
         return aggr + 1;
     }
 
+    @Override
+    public long insertScalar(long aggr, long ts, long val) {
+        return aggr + 1;
+    }
+
+    @Override
+    public Long insertDouble(Long aggr, long ts, double val) {
+        return aggr + 1;
+    }
+
     @Override
     public ResultError<Double, Pair<Double, Double>> query(StreamStatistics streamStats,
                                                            Stream<SummaryWindow> summaryWindows,
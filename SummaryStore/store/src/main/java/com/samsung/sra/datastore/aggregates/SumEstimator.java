@@ -46,22 +46,22 @@ class SumEstimator {
     private long tm1 = -1; // start timestamp of last decayed window (if there is > 1 window)
     private long te = -1; // end timestamp of last decayed window
 
-    private long Sl = -1; // sum of first decayed window
-    private long Sm = -1; // sum of all middle decayed windows (if there are > 2 windows)
-    private long Sr = -1; // sum of last decayed window (if there is > 1 window)
+    private double Sl = -1; // sum of first decayed window
+    private double Sm = -1; // sum of all middle decayed windows (if there are > 2 windows)
+    private double Sr = -1; // sum of last decayed window (if there is > 1 window)
     private long tl = 0; // overlap([t0, t1], first decayed window minus all overlapping landmark windows)
     private long tr = 0; // ditto if there is more than one decayed window
     private long Tl = 0; // total_length(first decayed window minus all overlapping landmark windows)
     private long Tr = 0; // ditto if there is more than one decayed window
 
-    private long Slandmark = 0; // sum of all overlapping landmark values
+    private double Slandmark = 0; // sum of all overlapping landmark values
 
     private double mean = 0, var = 0;
-    private long lowerbound = 0, upperbound = 0;
+    private double lowerbound = 0, upperbound = 0;
 
     SumEstimator(long t0, long t1,
-                 Stream<SummaryWindow> decayedWindows, Function<SummaryWindow, Long> aggrRetriever,
-                 Stream<LandmarkWindow> landmarkWindows, Function<Object, Long> rawValueParser) {
+                 Stream<SummaryWindow> decayedWindows, Function<SummaryWindow, ? extends Number> aggrRetriever,
+                 Stream<LandmarkWindow> landmarkWindows, Function<Object, ? extends Number> rawValueParser) {
         this.t0 = t0;
         this.t1 = t1;
         processDecayedWindows(decayedWindows, aggrRetriever);
@@ -72,21 +72,22 @@ class SumEstimator {
                 t0, tm0, tm1, te, tl, Tl, Sl, Sm, tr, Tr, Sr, Slandmark);
     }
 
-    private void processDecayedWindows(Stream<SummaryWindow> windows, Function<SummaryWindow, Long> sumRetriever) {
+    private void processDecayedWindows(Stream<SummaryWindow> windows,
+                                       Function<SummaryWindow, ? extends Number> sumRetriever) {
         MutableLong numWindows = new MutableLong(0L); // not a plain long because of Java Stream limitations
         MutableLong lastTEnd = new MutableLong();
         windows.forEach(w -> {
             numWindows.increment();
             if (numWindows.toLong() == 1) { // first window
                 ts = w.ts;
-                Sl = sumRetriever.apply(w);
+                Sl = sumRetriever.apply(w).doubleValue();
             } else if (numWindows.toLong() == 2) { // second window
                 tm0 = w.ts;
-                Sm = Sr = sumRetriever.apply(w);
+                Sm = Sr = sumRetriever.apply(w).doubleValue();
                 tm1 = w.ts;
             } else { // third or later window
                 tm1 = w.ts;
-                Sr = sumRetriever.apply(w);
+                Sr = sumRetriever.apply(w).doubleValue();
                 Sm += Sr;
             }
             lastTEnd.setValue(w.te);
@@ -117,7 +118,8 @@ class SumEstimator {
         }
     }
 
-    private void processLandmarkWindows(Stream<LandmarkWindow> windows, Function<Object, Long> valueParser) {
+    private void processLandmarkWindows(Stream<LandmarkWindow> windows,
+                                        Function<Object, ? extends Number> valueParser) {
         windows.forEach(w -> {
             Tl -= overlap(w.ts, w.te, ts, tm0-1);
             tl -= overlap(w.ts, w.te, t0, tm0-1);
@@ -128,7 +130,7 @@ class SumEstimator {
 
             w.values.forEach((t, v) -> {
                 if (t0 <= t && t <= t1) {
-                    Slandmark += valueParser.apply(v);
+                    Slandmark += valueParser.apply(v).doubleValue();
                 }
             });
         });
@@ -145,7 +147,7 @@ class SumEstimator {
         }
     }
 
-    private void updateEstimate(long S, long t, long T) {
+    private void updateEstimate(double S, long t, long T) {
         upperbound += S;
         if (t == T) lowerbound += S;
         if (T > 0) {
@@ -28,7 +28,7 @@ import java.util.stream.Stream;
 
 //import org.apache.commons.math3.util.Pair;
 
-public class SumOperator implements WindowOperator<Long,Double,Pair<Double,Double>> {
+public class SumOperator implements ScalarLongOperator<Double,Pair<Double,Double>> {
     private static final OpType opType = OpType.SUM;
     private static Logger logger = LoggerFactory.getLogger(SumOperator.class);
 
@@ -49,7 +49,12 @@ public class SumOperator implements WindowOperator<Long,Double,Pair<Double,Doubl
 
     @Override
     public Long insert(Long aggr, long ts, Object val) {
-        return aggr + (Long) val;
+        return insertScalar(aggr, ts, (Long) val);
+    }
+
+    @Override
+    public long insertScalar(long aggr, long ts, long val) {
+        return aggr + val;
     }
 
     @Override
@@ -24,12 +24,13 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.nio.ByteBuffer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 //import org.apache.commons.math3.util.Pair;
 
 /* Consider evaluating and comparing against http://dl.acm.org/citation.cfm?id=1756034 */
-public class TDigestOperator implements WindowOperator<TDigest, Double, Pair<Double, Double>> {
+public class TDigestOperator implements DoubleWindowOperator<TDigest, Double, Pair<Double, Double>> {
     private final double compression;
 
     public TDigestOperator(long nbytes) {
@@ -51,7 +52,8 @@ public class TDigestOperator implements WindowOperator<TDigest, Double, Pair<Dou
 
     @Override
     public TDigest merge(Stream<TDigest> aggrs) {
-        return TDigest.merge(compression, aggrs::iterator);
+        // TDigest.merge iterates its argument more than once, so cannot be handed the (single-use) stream directly
+        return TDigest.merge(compression, aggrs.collect(Collectors.toList()));
     }
 
     @Override
@@ -63,7 +65,12 @@ public class TDigestOperator implements WindowOperator<TDigest, Double, Pair<Dou
             int weight = ((Number) val[1]).intValue();
             aggr.add(value, weight);
         }*/
-        aggr.add(((Number) val).doubleValue());
+        return insertDouble(aggr, timestamp, ((Number) val).doubleValue());
+    }
+
+    @Override
+    public TDigest insertDouble(TDigest aggr, long timestamp, double val) {
+        aggr.add(val);
         return aggr;
     }
 
@@ -0,0 +1,218 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.storage.BackingStoreException;
+import com.samsung.sra.datastore.storage.StreamWindowManager;
+import com.samsung.sra.datastore.SummaryWindow;
+import com.samsung.sra.datastore.Utilities;
+import com.samsung.sra.datastore.Windowing;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Common machinery for Mergers that decide merges in memory and issue them to the backing store in batches, once every
+ * windowsPerBatch window inserts. Subclasses decide which windows to merge (by calling addPendingMerge), this class
+ * handles flushes, merge chains and (optionally parallel) batched backing store writes.
+ */
+abstract class BatchedMerger extends Merger {
+    private static final Logger logger = LoggerFactory.getLogger(Merger.class);
+
+    // notifications of new window creates: a pair of (window ID, window size)
+    private final BlockingQueue<Merger.WindowInfo> newWindowNotifications; // input queue
+    private final CountBasedWBMH.FlushBarrier flushBarrier;
+
+    final Windowing windowing;
+
+    private transient StreamWindowManager windowManager;
+    private transient MergeExecutor mergeExecutor;
+
+    private long windowsPerBatch;
+    private boolean parallelizeMerge;
+    /** If positive, merges are only recorded logically and physically applied once every this many merge batches */
+    private long batchesPerCompaction = 0;
+    private long batchesSinceCompaction = 0;
+
+    long N = 0; // number of elements in stream
+    private long W = 0; // number of raw windows ingested (without merging)
+
+    BatchedMerger(Windowing windowing, BlockingQueue<Merger.WindowInfo> newWindowNotifications,
+                  CountBasedWBMH.FlushBarrier flushBarrier,
+                  long windowsPerBatch) {
+        this.windowing = windowing;
+        this.newWindowNotifications = newWindowNotifications;
+        this.flushBarrier = flushBarrier;
+        this.windowsPerBatch = windowsPerBatch;
+    }
+
+    void setWindowsPerMergeBatch(long windowsPerMergeBatch) {
+        this.windowsPerBatch = windowsPerMergeBatch;
+    }
+
+    long getWindowsPerMergeBatch() {
+        return windowsPerBatch;
+    }
+
+    void setBatchesPerCompaction(long batchesPerCompaction) {
+        this.batchesPerCompaction = batchesPerCompaction;
+    }
+
+    long getBatchesPerCompaction() {
+        return batchesPerCompaction;
+    }
+
+    void setParallelizeMerge(boolean parallelizeMerge) {
+        this.parallelizeMerge = parallelizeMerge;
+    }
+
+    /** Executor used to issue merges when parallelizeMerge is set */
+    void setMergeExecutor(MergeExecutor mergeExecutor) {
+        this.mergeExecutor = mergeExecutor;
+    }
+
+    @Override
+    public void populateTransientFields(StreamWindowManager windowManager) {
+        this.windowManager = windowManager;
+    }
+
+    /** Called once the window has been written, after N has been advanced past its last element */
+    abstract void windowAdded(long swid);
+
+    /** Called right before pending merges are issued to the backing store (on every batch and on flush) */
+    void beforeIssue() {
+    }
+
+    @Override
+    public void run() {
+        while (process(Utilities.take(newWindowNotifications))) {
+        }
+    }
+
+    @Override
+    public boolean process(Merger.WindowInfo newWindow) {
+        try {
+            if (newWindow == SHUTDOWN_SENTINEL) {
+                beforeIssue();
+                issueAllPendingMerges();
+                logger.info("Merge chain length: avg = {}, range = [{}, {}]",
+                        String.format("%.1f", mergeLengthStats.getMean()), mergeLengthStats.getMin(), mergeLengthStats.getMax());
+                flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
+                return false;
+            } else if (newWindow == FLUSH_SENTINEL) {
+                beforeIssue();
+                issueAllPendingMerges();
+                flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
+                return true;
+            }
+            N += newWindow.size;
+            windowAdded(newWindow.id);
+            if (++W % windowsPerBatch == 0) {
+                beforeIssue();
+                issueAllPendingMerges();
+            }
+            return true;
+        } catch (BackingStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final Long2ObjectOpenHashMap<LongArrayList> pendingMerges = new Long2ObjectOpenHashMap<>();
+
+    /* add entry merge(swid0, [any windows already merged into swid0], swid1, [any windows alread merged into swid1]) */
+    void addPendingMerge(long swid0, long swid1) {
+        LongArrayList tail = pendingMerges.get(swid0);
+        if (tail == null) tail = new LongArrayList();
+        tail.add(swid1);
+        LongArrayList transitiveTail = pendingMerges.remove(swid1);
+        if (transitiveTail != null) tail.addAll(transitiveTail);
+        pendingMerges.put(swid0, tail);
+    }
+
+    private final DescriptiveStatistics mergeLengthStats = new DescriptiveStatistics();
+
+    /** Number of merges grouped into one atomic backing store write (and into one MergeExecutor task) */
+    private static final int MERGES_PER_WRITE_BATCH = 64;
+
+    private void issuePendingMerges(List<Long2ObjectMap.Entry<LongArrayList>> entries) throws BackingStoreException {
+        StreamWindowManager.SummaryWindowBatch batch = windowManager.newSummaryWindowBatch();
+        for (Long2ObjectMap.Entry<LongArrayList> entry : entries) {
+            issuePendingMerge(entry, batch);
+        }
+        batch.commit();
+    }
+
+    private void issuePendingMerge(Long2ObjectMap.Entry<LongArrayList> entry, StreamWindowManager.SummaryWindowBatch batch)
+            throws BackingStoreException {
+        long head = entry.getLongKey();
+        LongArrayList tail = entry.getValue();
+        assert !tail.isEmpty();
+        SummaryWindow[] windows = new SummaryWindow[1 + tail.size()];
+        int w = 0;
+        windows[w++] = windowManager.getSummaryWindow(head);
+        for (int i = 0; i < tail.size(); ++i) {
+            windows[w++] = windowManager.getSummaryWindow(tail.getLong(i));
+        }
+        assert w == windows.length;
+        batch.put(windowManager.getMergedSummaryWindow(windows));
+        for (int i = 0; i < tail.size(); ++i) {
+            batch.delete(tail.getLong(i));
+        }
+    }
+
+    private void issueAllPendingMerges() throws BackingStoreException {
+        for (LongArrayList tail : pendingMerges.values()) {
+            mergeLengthStats.addValue(1 + tail.size());
+        }
+        if (batchesPerCompaction > 0) {
+            windowManager.addLogicalMerges(pendingMerges);
+            pendingMerges.clear();
+            pendingMerges.trim();
+            if (++batchesSinceCompaction >= batchesPerCompaction) {
+                windowManager.compactLogicalMerges();
+                batchesSinceCompaction = 0;
+            }
+            return;
+        } else if (windowManager.hasLogicalMerges()) {
+            // switched out of deferred mode: stored windows of pending merges must be combined before merging further
+            windowManager.compactLogicalMerges();
+        }
+        List<List<Long2ObjectMap.Entry<LongArrayList>>> batches = new ArrayList<>();
+        List<Long2ObjectMap.Entry<LongArrayList>> entries = new ArrayList<>(pendingMerges.long2ObjectEntrySet());
+        for (int i = 0; i < entries.size(); i += MERGES_PER_WRITE_BATCH) {
+            batches.add(entries.subList(i, Math.min(entries.size(), i + MERGES_PER_WRITE_BATCH)));
+        }
+        if (parallelizeMerge && mergeExecutor != null) {
+            mergeExecutor.runAll(batches, 1, this::issuePendingMerges);
+        } else {
+            for (List<Long2ObjectMap.Entry<LongArrayList>> batch : batches) {
+                issuePendingMerges(batch);
+            }
+        }
+        pendingMerges.clear();
+        pendingMerges.trim();
+    }
+
+    long getNumUnissuedMerges() {
+        return pendingMerges.size();
+    }
+}
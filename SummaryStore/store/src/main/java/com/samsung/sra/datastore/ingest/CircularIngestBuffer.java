@@ -0,0 +1,77 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+/**
+ * IngestBuffer whose elements occupy the circular range of slots head, head + 1, ..., head + size - 1 (mod capacity).
+ * truncateHead just advances head instead of shifting the remaining elements down, and later appends wrap around
+ * into the freed slots. Subclasses own the slot arrays.
+ */
+abstract class CircularIngestBuffer implements IngestBuffer {
+    final int capacity;
+    private int head = 0;
+    int size = 0;
+
+    CircularIngestBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Slot holding element pos, for 0 <= pos <= size */
+    final int slot(int pos) {
+        return pos < capacity - head ? head + pos : pos - (capacity - head);
+    }
+
+    /** Slot the next appended element goes into */
+    final int tail() {
+        return slot(size);
+    }
+
+    /**
+     * Number of free slots from tail() up to the end of the slot arrays, i.e. how many elements a bulk append can copy
+     * before wrapping around to slot 0
+     */
+    final int contiguousFree() {
+        int tail = tail();
+        return tail < head || size == capacity ? capacity - size : capacity - tail;
+    }
+
+    final void checkPosition(int pos) {
+        if (pos < 0 || pos >= size) throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void truncateHead(int s) {
+        assert 0 <= s && s <= size;
+        size -= s;
+        head = size > 0 ? slot(s) : 0; // an empty buffer restarts at slot 0, keeping the next fill contiguous
+    }
+
+    @Override
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
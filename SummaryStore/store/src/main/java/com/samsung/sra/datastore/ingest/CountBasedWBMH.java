@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import java.io.Serializable;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.IntStream;
 
@@ -36,19 +37,51 @@ import java.util.stream.IntStream;
  *
  * Unbuffered mode setup: same except no Ingester or Summarizer. External user threads run appendUnbuffered() instead of
  * Ingester
+ *
+ * Stages are linked by LinkedBlockingQueues by default, or by lock-free ring buffers if constructed with a WaitStrategy.
+ * If the store has an IngestScheduler, the three stages run as tasks on its shared worker pool instead of on their own
+ * threads. In inline mode (setInlineIngest) there are no stage threads or tasks at all: each append runs whatever
+ * pipeline work it caused on the calling thread before returning.
  */
-public class CountBasedWBMH implements Serializable {
+public class CountBasedWBMH implements WBMH {
     private static Logger logger = LoggerFactory.getLogger(CountBasedWBMH.class);
     /** Used to throttle Writer and Merger input queues */
     private static final int MAX_QUEUE_SIZE = 10_000;
+    /** Capacity of the ring buffers passing IngestBuffers around (they never hold more than numBuffers + sentinels) */
+    private static final int MAX_BUFFER_QUEUE_SIZE = 1024;
+    /** With setAutoInlineIngest, measure the append rate over periods of at least this long */
+    private static final long RATE_CHECK_INTERVAL_NANOS = 1_000_000_000L;
+    /** ... checking the clock once every this many appends */
+    private static final int RATE_CHECK_APPENDS = 64;
 
     private transient StreamWindowManager windowManager;
 
     private final Windowing windowing;
     //private final long sizeOfNewestWindow;
 
-    private long bufferSize;
+    // volatile so that IngestMemoryManager can read them while the Ingester resizes buffers
+    private volatile long bufferSize;
+    private volatile int numBuffers = 0;
+    /** Total buffer size requested by setBufferSizeAtNextBoundary and not yet applied, or 0 */
+    private transient volatile int pendingTotalBufferSize = 0;
+    private static final AtomicIntegerFieldUpdater<CountBasedWBMH> pendingTotalBufferSizeUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(CountBasedWBMH.class, "pendingTotalBufferSize");
     private boolean valuesAreLongs;
+    private boolean valuesAreDoubles;
+    private int mergeThreads = 0, summarizeThreads = 0;
+    /** Merge/summarize pool used if the store does not provide one, owned (and closed) by us */
+    private transient MergeExecutor privateMergeExecutor = null;
+    /** Scheduler the stages run on when not inline, or null if they get dedicated threads */
+    private transient IngestScheduler scheduler = null;
+
+    private boolean inlineIngest = false;
+    /** If positive, switch to inline ingest below this many appends per second and back to threads above twice that */
+    private double autoInlineMaxRate = 0;
+    private transient long rateCheckNanos = -1, rateCheckN = 0;
+    /** Everything appended but not yet written to the backing store, see snapshotInFlight */
+    private transient InFlightData inFlight;
+    /** Set once close() has shut down the pipeline; reset by deserialization, which starts a new one */
+    private transient boolean closed = false;
 
     private final Ingester ingester;
     private final Summarizer summarizer;
@@ -56,20 +89,45 @@ public class CountBasedWBMH implements Serializable {
     private final HeapMerger merger;
     private final FlushBarrier flushBarrier;
 
-    private final BlockingQueue<IngestBuffer> emptyBuffers = new LinkedBlockingQueue<>();
-    private final BlockingQueue<IngestBuffer> partialBuffers = new LinkedBlockingQueue<>();
-    private final BlockingQueue<IngestBuffer> summarizerQueue = new LinkedBlockingQueue<>();
-    private final BlockingQueue<SummaryWindow> writerQueue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
-    private final BlockingQueue<Merger.WindowInfo> mergerQueue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
+    private final boolean useRingBuffers;
+    private final BlockingQueue<IngestBuffer> emptyBuffers;
+    private final BlockingQueue<IngestBuffer> partialBuffers;
+    private final StageQueue<IngestBuffer> summarizerQueue;
+    private final StageQueue<SummaryWindow> writerQueue;
+    private final StageQueue<Merger.WindowInfo> mergerQueue;
 
     private long N = 0;
 
     public CountBasedWBMH(Windowing windowing) {
+        this(windowing, null);
+    }
+
+    /**
+     * Link the pipeline stages with preallocated lock-free ring buffers (see RingBufferQueue) instead of
+     * LinkedBlockingQueues, with stages waiting on empty/full queues using the specified strategy. Pass a null
+     * waitStrategy to get the default LinkedBlockingQueue pipeline.
+     */
+    public CountBasedWBMH(Windowing windowing, WaitStrategy waitStrategy) {
         this.windowing = windowing;
         //this.sizeOfNewestWindow = windowing.getSizeOfFirstWindow();
+        useRingBuffers = waitStrategy != null;
+        if (useRingBuffers) {
+            emptyBuffers = new RingBufferQueue<>(MAX_BUFFER_QUEUE_SIZE, waitStrategy);
+            partialBuffers = new RingBufferQueue<>(MAX_BUFFER_QUEUE_SIZE, waitStrategy);
+            summarizerQueue = new StageQueue<>(new RingBufferQueue<>(MAX_BUFFER_QUEUE_SIZE, waitStrategy));
+            writerQueue = new StageQueue<>(new RingBufferQueue<>(MAX_QUEUE_SIZE, waitStrategy));
+            mergerQueue = new StageQueue<>(new RingBufferQueue<>(MAX_QUEUE_SIZE, waitStrategy));
+        } else {
+            emptyBuffers = new LinkedBlockingQueue<>();
+            partialBuffers = new LinkedBlockingQueue<>();
+            summarizerQueue = new StageQueue<>(new LinkedBlockingQueue<>());
+            writerQueue = new StageQueue<>(new LinkedBlockingQueue<>(MAX_QUEUE_SIZE));
+            mergerQueue = new StageQueue<>(new LinkedBlockingQueue<>(MAX_QUEUE_SIZE));
+        }
 
         bufferSize = 0;
         valuesAreLongs = false;
+        valuesAreDoubles = false;
         flushBarrier = new FlushBarrier();
         ingester = new Ingester(emptyBuffers, summarizerQueue);
         summarizer = new Summarizer(null, emptyBuffers, partialBuffers, summarizerQueue, writerQueue, flushBarrier);
@@ -84,11 +142,24 @@ public class CountBasedWBMH implements Serializable {
      *
      * WARNING: please ensure stream has been flushed before calling */
     public CountBasedWBMH setBufferSize(int totalBufferSize, int numBuffers) {
+        if (useRingBuffers && numBuffers + 2 > MAX_BUFFER_QUEUE_SIZE) {
+            throw new IllegalArgumentException("at most " + (MAX_BUFFER_QUEUE_SIZE - 2) + " buffers in ring buffer mode");
+        }
         destroyEmptyBuffers();
-        int[] bufferWindowLengths = windowing.getWindowsCoveringUpto(totalBufferSize / numBuffers)
-                .stream().mapToInt(Long::intValue).toArray();
+        allocateBuffers(getBufferWindowLengths(totalBufferSize / numBuffers), numBuffers);
+        return this;
+    }
+
+    /** Lengths of the windows an ingest buffer holding up to the specified number of values is summarized into */
+    private int[] getBufferWindowLengths(int maxBufferSize) {
+        return windowing.getWindowsCoveringUpto(maxBufferSize).stream().mapToInt(Long::intValue).toArray();
+    }
+
+    /** Set up numBuffers new empty buffers, summarized into windows of the specified lengths */
+    private void allocateBuffers(int[] bufferWindowLengths, int numBuffers) {
         summarizer.setWindowLengths(bufferWindowLengths);
         bufferSize = IntStream.of(bufferWindowLengths).sum(); // actual buffer size, <= numValuesToBuffer
+        this.numBuffers = bufferSize > 0 ? numBuffers : 0;
         logger.info("{} ingest buffers each covering {} windows and {} values", numBuffers, bufferWindowLengths.length, bufferSize);
         /*if (bufferSize == 0 && sizeOfNewestWindow > 1) {
             throw new UnsupportedOperationException("do not yet support unbuffered ingest when size of newest window > 1");
@@ -98,10 +169,70 @@ public class CountBasedWBMH implements Serializable {
             for (int i = 0; i < numBuffers; ++i) {
                 emptyBuffers.add(valuesAreLongs
                 ? new LongIngestBuffer((int) bufferSize)
+                : valuesAreDoubles
+                ? new DoubleIngestBuffer((int) bufferSize)
                 : new ObjectIngestBuffer((int) bufferSize));
             }
         }
-        return this;
+    }
+
+    /**
+     * Like setBufferSize(totalBufferSize, getNumBuffers()), but without flushing: takes effect once the buffer
+     * currently being filled has been handed to the Summarizer, so that no partial buffer is written out as
+     * single-value windows. Safe to call from any thread: only the requested size is handed over, and the Ingester
+     * works out the aligned buffer size when it applies the request. A newer request replaces one not yet applied.
+     * Buffers are left as they are if no window fits in the new size.
+     */
+    public void setBufferSizeAtNextBoundary(int totalBufferSize) {
+        if (totalBufferSize <= 0) throw new IllegalArgumentException("buffer size must be positive");
+        if (bufferSize == 0) throw new IllegalStateException("ingest is unbuffered");
+        pendingTotalBufferSize = totalBufferSize;
+    }
+
+    /** Called by the Ingester before it starts filling a new buffer: applies setBufferSizeAtNextBoundary */
+    private void applyPendingBufferSize() {
+        int totalBufferSize = pendingTotalBufferSizeUpdater.getAndSet(this, 0);
+        if (totalBufferSize == 0 || numBuffers == 0) return; // nothing requested, or ingest since made unbuffered
+        int[] bufferWindowLengths = getBufferWindowLengths(totalBufferSize / numBuffers);
+        if (bufferWindowLengths.length == 0 || IntStream.of(bufferWindowLengths).sum() == bufferSize) return;
+        if (inlineIngest) drainInline();
+        // wait for the Summarizer to hand back all buffers, none of which may be summarized with the new window lengths
+        for (int i = 0; i < numBuffers; ++i) {
+            Utilities.take(emptyBuffers).close();
+        }
+        allocateBuffers(bufferWindowLengths, numBuffers);
+    }
+
+    /** Number of values each ingest buffer holds, 0 if ingest is unbuffered */
+    public long getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Upper bound on the number of values each ingest buffer will hold once a pending setBufferSizeAtNextBoundary
+     * takes effect (the buffer size actually used is aligned down to window boundaries)
+     */
+    public long getNextBufferSize() {
+        int totalBufferSize = pendingTotalBufferSize, numBuffers = this.numBuffers;
+        return totalBufferSize != 0 && numBuffers > 0 ? totalBufferSize / numBuffers : bufferSize;
+    }
+
+    public boolean getValuesAreLongs() {
+        return valuesAreLongs;
+    }
+
+    public boolean getValuesAreDoubles() {
+        return valuesAreDoubles;
+    }
+
+    public int getNumBuffers() {
+        return numBuffers;
+    }
+
+    /** Approximate ingest buffer memory used per buffered value */
+    public int getBufferBytesPerValue() {
+        // timestamp plus value in Long/DoubleIngestBuffer, timestamp plus reference to a boxed value in ObjectIngestBuffer
+        return valuesAreLongs || valuesAreDoubles ? 16 : 32;
     }
 
     /**
@@ -115,12 +246,28 @@ public class CountBasedWBMH implements Serializable {
 
     /**
      * If all values are longs and this flag is set, enables a special code path using off-heap long[] value arrays in
-     * the ingest buffer.
+     * the ingest buffer. Values are then summarized without boxing by any operators implementing LongWindowOperator.
      *
      * Only takes effect on the next setBufferSize() call (be careful about method call order, esp. when constructing).
      */
     public CountBasedWBMH setValuesAreLongs(boolean valuesAreLongs) {
         this.valuesAreLongs = valuesAreLongs;
+        if (valuesAreLongs) this.valuesAreDoubles = false;
+        return this;
+    }
+
+    /**
+     * Double-valued counterpart of setValuesAreLongs: if all values are doubles (or other Numbers, which are converted)
+     * and this flag is set, ingest buffers keep values in off-heap double arrays, and operators implementing
+     * DoubleWindowOperator summarize them without boxing. Mutually exclusive with setValuesAreLongs. Every operator on
+     * such a stream must implement DoubleWindowOperator (SummaryStore.registerStream rejects others): use
+     * DoubleSumOperator and DoubleMaxOperator for sums and maxima over such values.
+     *
+     * Only takes effect on the next setBufferSize() call (be careful about method call order, esp. when constructing).
+     */
+    public CountBasedWBMH setValuesAreDoubles(boolean valuesAreDoubles) {
+        this.valuesAreDoubles = valuesAreDoubles;
+        if (valuesAreDoubles) this.valuesAreLongs = false;
         return this;
     }
 
@@ -135,15 +282,102 @@ public class CountBasedWBMH implements Serializable {
     }
 
     /**
-     * Parallelize issuing merges in each stream's Merger thread. We use Java's parallel streams, which uses a single
-     * shared global work queue for all operations across all streams. */
+     * Defer merges: instead of rewriting the windows involved in each merge batch, only record the merged window
+     * layout (queries combine the stored windows on the fly), and physically apply all recorded merges once every
+     * batchesPerCompaction merge batches, with one range scan and range delete per merged window. Pass 0 to go back to
+     * applying merges eagerly.
+     *
+     * WARNING: please ensure stream has been flushed before calling */
+    public CountBasedWBMH setDeferredMerging(long batchesPerCompaction) {
+        if (batchesPerCompaction < 0) throw new IllegalArgumentException("negative batchesPerCompaction");
+        merger.setBatchesPerCompaction(batchesPerCompaction);
+        return this;
+    }
+
+    /**
+     * Maximum number of windows the Writer groups into one atomic backing store write (default 256). Smaller batches
+     * are still written whenever the Writer runs out of queued windows, so this bounds batch size, not latency. Set to
+     * 1 to write windows individually.
+     */
+    public CountBasedWBMH setWriteBatchSize(int windows) {
+        if (windows < 1) throw new IllegalArgumentException("write batch size must be positive");
+        writer.setMaxBatchSize(windows);
+        return this;
+    }
+
+    /**
+     * Parallelize issuing merges in each stream's Merger thread. Merges run on the store's shared MergeExecutor if it
+     * has one (see SummaryStore.StoreOptions.setMergeThreads), else on a pool of nThreads threads private to this
+     * stream. */
     public CountBasedWBMH setParallelizeMerge(int nThreads) {
-        //FIXME: global setting. Should switch to dedicated ExecutorService
-        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", Integer.toString(nThreads));
-        merger.setParallelizeMerge(true);
+        this.mergeThreads = nThreads;
+        merger.setParallelizeMerge(nThreads > 0);
+        return this;
+    }
+
+    /**
+     * Summarize the windows of each full ingest buffer in parallel (they are still handed to the Writer in order).
+     * Worth enabling with large buffers and expensive operators. Uses the same pool as setParallelizeMerge: the store's
+     * shared MergeExecutor if it has one, else a private pool of nThreads threads.
+     */
+    public CountBasedWBMH setParallelizeSummarize(int nThreads) {
+        this.summarizeThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Run the Summarizer, Writer and Merger on the thread calling append/flush instead of on their own threads (or
+     * IngestScheduler tasks): no stage threads, queues stay (nearly) empty, and flush does not have to wait for other
+     * threads. Best for streams receiving a few values per second, where the pipeline threads mostly sit idle. Appends
+     * get slower by the summarize/write/merge work they cause, so high-rate streams should keep the threaded pipeline.
+     *
+     * Normally set while constructing, before registering the stream; calling later flushes the stream and switches
+     * (so must be serialized with appends, like flush).
+     */
+    public CountBasedWBMH setInlineIngest(boolean inlineIngest) {
+        try {
+            switchIngestMode(inlineIngest);
+        } catch (BackingStoreException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    private void switchIngestMode(boolean inlineIngest) throws BackingStoreException {
+        if (windowManager != null && inlineIngest != this.inlineIngest) {
+            if (inlineIngest) {
+                flush(true, false); // stops the stage threads/tasks
+                this.inlineIngest = true;
+                startStages();
+            } else {
+                flush(false, false);
+                this.inlineIngest = false;
+                startStages();
+            }
+        } else {
+            this.inlineIngest = inlineIngest;
+        }
+    }
+
+    public boolean isInlineIngest() {
+        return inlineIngest;
+    }
+
+    /**
+     * Choose between inline and threaded ingest (see setInlineIngest) automatically based on the observed append rate:
+     * go inline when it drops below maxInlineRate values per second, and back to threads when it exceeds twice that.
+     * Pass 0 to disable.
+     */
+    public CountBasedWBMH setAutoInlineIngest(double maxInlineRate) {
+        this.autoInlineMaxRate = maxInlineRate;
         return this;
     }
 
+    @Override
+    public Windowing getWindowing() {
+        return windowing;
+    }
+
     private void destroyEmptyBuffers() {
         for (IngestBuffer buffer : emptyBuffers) {
             buffer.close();
@@ -152,30 +386,156 @@ public class CountBasedWBMH implements Serializable {
     }
 
     public void populateTransientFields(StreamWindowManager windowManager) {
+        populateTransientFields(windowManager, null, null);
+    }
+
+    /**
+     * Run the Summarizer, Writer and Merger stages as tasks on the specified store-wide scheduler, or on three
+     * dedicated threads if scheduler is null. Issue parallel merges and summarizations on the specified store-wide
+     * mergeExecutor, or on a private pool if it is null.
+     */
+    @Override
+    public void populateTransientFields(StreamWindowManager windowManager, IngestScheduler scheduler,
+                                        MergeExecutor mergeExecutor) {
         this.windowManager = windowManager;
+        this.inFlight = new InFlightData();
+        ingester.populateTransientFields(inFlight);
+        ingester.setBufferBoundaryHook(this::applyPendingBufferSize);
         if (bufferSize > 0) {
-            summarizer.populateTransientFields(windowManager);
+            summarizer.populateTransientFields(windowManager, inFlight);
         }
-        writer.populateTransientFields(windowManager);
+        writer.populateTransientFields(windowManager, inFlight);
         merger.populateTransientFields(windowManager);
+        if (mergeExecutor == null && (mergeThreads > 0 || (bufferSize > 0 && summarizeThreads > 0))) {
+            mergeExecutor = privateMergeExecutor = new MergeExecutor(Math.max(mergeThreads, summarizeThreads));
+        }
+        if (mergeThreads > 0) {
+            merger.setMergeExecutor(mergeExecutor);
+        }
+        if (bufferSize > 0 && summarizeThreads > 0) {
+            summarizer.setExecutor(mergeExecutor);
+        }
+        this.scheduler = scheduler;
+        startStages();
+    }
+
+    private void startStages() {
+        if (inlineIngest) {
+            summarizerQueue.setInlineConsumer(summarizer);
+            writerQueue.setInlineConsumer(writer);
+            mergerQueue.setInlineConsumer(merger);
+            ingester.setInlineDrain(this::drainInline);
+        } else {
+            summarizerQueue.setInlineConsumer(null);
+            writerQueue.setInlineConsumer(null);
+            mergerQueue.setInlineConsumer(null);
+            ingester.setInlineDrain(null);
+            if (scheduler != null) {
+                scheduler.schedule(summarizer, summarizerQueue);
+                scheduler.schedule(writer, writerQueue);
+                scheduler.schedule(merger, mergerQueue);
+            } else {
+                new Thread(summarizer, windowManager.streamID + "-summarizer").start();
+                new Thread(writer, windowManager.streamID + "-writer").start();
+                new Thread(merger, windowManager.streamID + "-merger").start();
+            }
+        }
+    }
 
-        new Thread(summarizer, windowManager.streamID + "-summarizer").start();
-        new Thread(writer, windowManager.streamID + "-writer").start();
-        new Thread(merger, windowManager.streamID + "-merger").start();
+    /** In inline mode, run each stage on everything its predecessors queued up */
+    private void drainInline() {
+        summarizerQueue.drainInline();
+        writerQueue.drainInline();
+        mergerQueue.drainInline();
     }
 
+    /** Called after every append; switches between inline and threaded ingest if setAutoInlineIngest asks us to */
+    private void afterAppend() throws BackingStoreException {
+        if (inlineIngest) drainInline();
+        if (autoInlineMaxRate > 0 && N - rateCheckN >= RATE_CHECK_APPENDS) {
+            long now = System.nanoTime();
+            if (rateCheckNanos == -1) {
+                rateCheckNanos = now;
+                rateCheckN = N;
+            } else if (now - rateCheckNanos >= RATE_CHECK_INTERVAL_NANOS) {
+                double rate = (N - rateCheckN) * 1e9 / (now - rateCheckNanos);
+                rateCheckNanos = now;
+                rateCheckN = N;
+                if (!inlineIngest && rate < autoInlineMaxRate) {
+                    logger.info("stream {}: switching to inline ingest at {} values/s", windowManager.streamID, rate);
+                    switchIngestMode(true);
+                } else if (inlineIngest && rate > 2 * autoInlineMaxRate) {
+                    logger.info("stream {}: switching to threaded ingest at {} values/s", windowManager.streamID, rate);
+                    switchIngestMode(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Capture the values and windows in the ingest pipeline (i.e. not yet visible in the backing store) that overlap
+     * [t0, t1], for read-your-writes queries. Cheap compared to flush(): does not wait for the pipeline, only copies
+     * unsummarized values in the time range. Must be serialized with append() like all other writes
+     */
+    @Override
+    public InFlightSnapshot snapshotInFlight(long t0, long t1) {
+        return inFlight.snapshot(t0, t1);
+    }
+
+    @Override
     public void append(long ts, Object value) throws BackingStoreException {
         if (bufferSize > 0) {
-            if (N % 100_000_000 == 0) {
-                logger.info("N = {}M: {} unwritten windows, {} unprocessed merges, {} unissued merges, {} empty buffers",
-                        N / 1_000_000,
-                        writerQueue.size(), mergerQueue.size(), merger.getNumUnissuedMerges(), emptyBuffers.size());
-            }
-            ingester.append(ts, value);
+            logProgress(1);
+            ingester.append(N, ts, value);
         } else {
             appendUnbuffered(ts, value);
         }
         ++N;
+        afterAppend();
+    }
+
+    /**
+     * Append values[off], ..., values[off + len - 1] with the corresponding timestamps. When buffering, copies whole
+     * array ranges into the ingest buffers (a raw memory copy if setValuesAreLongs is on).
+     */
+    @Override
+    public void appendBatch(long[] timestamps, long[] values, int off, int len) throws BackingStoreException {
+        if (bufferSize > 0) {
+            logProgress(len);
+            ingester.appendBatch(N, timestamps, values, off, len);
+            N += len;
+        } else {
+            for (int i = off; i < off + len; ++i) {
+                appendUnbuffered(timestamps[i], values[i]);
+                ++N;
+            }
+        }
+        afterAppend();
+    }
+
+    /** Double-valued version of appendBatch(long[], long[], int, int) */
+    @Override
+    public void appendBatch(long[] timestamps, double[] values, int off, int len) throws BackingStoreException {
+        if (bufferSize > 0) {
+            logProgress(len);
+            ingester.appendBatch(N, timestamps, values, off, len);
+            N += len;
+        } else {
+            for (int i = off; i < off + len; ++i) {
+                appendUnbuffered(timestamps[i], values[i]);
+                ++N;
+            }
+        }
+        afterAppend();
+    }
+
+    /** Log pipeline backlogs at the start and whenever the next len values cross a multiple of 100M */
+    private void logProgress(int len) {
+        if (N == 0 || (N + len - 1) / 100_000_000 != (N - 1) / 100_000_000) {
+            logger.info("N = {}M: {} unwritten windows, {} unprocessed merges, {} unissued merges, {} empty buffers",
+                    N / 1_000_000,
+                    writerQueue.size(), mergerQueue.size(), merger.getNumUnissuedMerges(), emptyBuffers.size());
+        }
     }
 
     private void appendUnbuffered(long timestamp, Object value) throws BackingStoreException {
@@ -199,16 +559,39 @@ public class CountBasedWBMH implements Serializable {
         //Utilities.put(mergerQueue, new Merger.WindowInfo(timestamp, 1L));
     }
 
+    /** Unboxed appendUnbuffered, used by appendBatch and to drain partial LongIngestBuffers */
+    private void appendUnbuffered(long timestamp, long value) throws BackingStoreException {
+        SummaryWindow newWindow = windowManager.createEmptySummaryWindow(timestamp, timestamp, N, N);
+        windowManager.insertIntoSummaryWindow(newWindow, timestamp, value);
+        windowManager.putSummaryWindow(newWindow);
+        Utilities.put(writerQueue, newWindow);
+    }
+
+    /** Unboxed appendUnbuffered, used by appendBatch and to drain partial DoubleIngestBuffers */
+    private void appendUnbuffered(long timestamp, double value) throws BackingStoreException {
+        SummaryWindow newWindow = windowManager.createEmptySummaryWindow(timestamp, timestamp, N, N);
+        windowManager.insertIntoSummaryWindow(newWindow, timestamp, value);
+        windowManager.putSummaryWindow(newWindow);
+        Utilities.put(writerQueue, newWindow);
+    }
+
     private void flush(boolean shutdown, boolean setUnbuffered) throws BackingStoreException {
         long threshold = flushBarrier.getNextFlushThreshold();
         ingester.flush(shutdown);
+        if (inlineIngest) drainInline();
         flushBarrier.wait(FlushBarrier.SUMMARIZER, threshold);
         if (bufferSize > 0) {
             IngestBuffer partialBuffer = partialBuffers.poll();
             if (partialBuffer != null) {
                 N -= partialBuffer.size(); // need to undo since we pulled them out of the pipeline
                 for (int i = 0; i < partialBuffer.size(); ++i) {
-                    appendUnbuffered(partialBuffer.getTimestamp(i), partialBuffer.getValue(i));
+                    if (partialBuffer instanceof LongIngestBuffer) {
+                        appendUnbuffered(partialBuffer.getTimestamp(i), ((LongIngestBuffer) partialBuffer).getLongValue(i));
+                    } else if (partialBuffer instanceof DoubleIngestBuffer) {
+                        appendUnbuffered(partialBuffer.getTimestamp(i), ((DoubleIngestBuffer) partialBuffer).getDoubleValue(i));
+                    } else {
+                        appendUnbuffered(partialBuffer.getTimestamp(i), partialBuffer.getValue(i));
+                    }
                     ++N;
                 }
                 partialBuffer.clear();
@@ -221,11 +604,14 @@ public class CountBasedWBMH implements Serializable {
             destroyEmptyBuffers();
         }
         Utilities.put(writerQueue, shutdown ? Writer.SHUTDOWN_SENTINEL : Writer.FLUSH_SENTINEL);
+        if (inlineIngest) drainInline();
         flushBarrier.wait(FlushBarrier.WRITER, threshold);
         Utilities.put(mergerQueue, shutdown ? Merger.SHUTDOWN_SENTINEL : Merger.FLUSH_SENTINEL);
+        if (inlineIngest) drainInline();
         flushBarrier.wait(FlushBarrier.MERGER, threshold);
     }
 
+    @Override
     public void flush() throws BackingStoreException {
         flush(false, false);
     }
@@ -235,8 +621,16 @@ public class CountBasedWBMH implements Serializable {
         flush(false, true);
     }
 
+    /** Stops the pipeline. Only the first call has any effect (SummaryStore.close closes streams, then unloads them) */
+    @Override
     public void close() throws BackingStoreException {
+        if (closed) return;
+        closed = true;
         flush(true, false);
+        if (privateMergeExecutor != null) {
+            privateMergeExecutor.close();
+            privateMergeExecutor = null;
+        }
     }
 
     static class FlushBarrier implements Serializable {
@@ -246,11 +640,11 @@ public class CountBasedWBMH implements Serializable {
         private final Serializable monitor = new Object[0]; // any serializable object would do
         private long[] counters = new long[MERGER + 1];
 
-        private long getNextFlushThreshold() {
+        long getNextFlushThreshold() {
             return flushCount.incrementAndGet();
         }
 
-        private void wait(int type, long threshold) {
+        void wait(int type, long threshold) {
             synchronized (monitor) {
                 while (counters[type] < threshold) {
                     try {
@@ -0,0 +1,85 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.ingest.LongIngestBuffer.LongArray;
+import com.samsung.sra.datastore.storage.StreamWindowManager;
+
+/** Off-heap ingest buffer for double values, which are stored as their raw IEEE 754 bits in LongArrays */
+class DoubleIngestBuffer extends CircularIngestBuffer {
+    // FIXME: must reconstruct on SummaryStore reopen
+    private transient LongArray timestamps, values;
+
+    DoubleIngestBuffer(int capacity) {
+        super(capacity);
+        this.timestamps = new LongArray(capacity);
+        this.values = new LongArray(capacity);
+    }
+
+    @Override
+    public void append(long ts, Object value) {
+        if (size >= capacity) throw new IndexOutOfBoundsException();
+        int slot = tail();
+        timestamps.put(slot, ts);
+        values.put(slot, StreamWindowManager.LANDMARK_SENTINEL.equals(value)
+                ? StreamWindowManager.DOUBLE_LANDMARK_SENTINEL_BITS
+                : Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        ++size;
+    }
+
+    @Override
+    public int appendBatch(long[] timestamps, double[] values, int off, int len) {
+        int n = Math.min(len, capacity - size);
+        for (int copied = 0; copied < n; ) {
+            int slot = tail(), m = Math.min(n - copied, contiguousFree());
+            this.timestamps.copyFrom(timestamps, off + copied, slot, m);
+            for (int i = 0; i < m; ++i) {
+                this.values.put(slot + i, Double.doubleToRawLongBits(values[off + copied + i]));
+            }
+            size += m;
+            copied += m;
+        }
+        return n;
+    }
+
+    @Override
+    public long getTimestamp(int pos) {
+        checkPosition(pos);
+        return timestamps.get(slot(pos));
+    }
+
+    /** Boxes landmark sentinels back into StreamWindowManager.LANDMARK_SENTINEL */
+    @Override
+    public Object getValue(int pos) {
+        checkPosition(pos);
+        long bits = values.get(slot(pos));
+        return bits == StreamWindowManager.DOUBLE_LANDMARK_SENTINEL_BITS
+                ? StreamWindowManager.LANDMARK_SENTINEL
+                : (Object) Double.longBitsToDouble(bits);
+    }
+
+    /** Unboxed getValue. Landmark sentinels come back as a NaN, see StreamWindowManager.isLandmarkSentinel */
+    double getDoubleValue(int pos) {
+        checkPosition(pos);
+        return Double.longBitsToDouble(values.get(slot(pos)));
+    }
+
+    @Override
+    public void close() {
+        timestamps.close();
+        values.close();
+    }
+}
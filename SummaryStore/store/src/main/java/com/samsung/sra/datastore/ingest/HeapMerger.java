@@ -15,179 +15,58 @@
 */
 package com.samsung.sra.datastore.ingest;
 
-import com.samsung.sra.datastore.storage.BackingStoreException;
-import com.samsung.sra.datastore.storage.StreamWindowManager;
-import com.samsung.sra.datastore.SummaryWindow;
-import com.samsung.sra.datastore.Utilities;
 import com.samsung.sra.datastore.Windowing;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongArrayList;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.teneighty.heap.FibonacciHeap;
-import org.teneighty.heap.Heap;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.*;
+import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
-import java.util.stream.Stream;
 
 /**
  * Implements WBMH using a heap data structure to track pending merges. Batches merges and initiates merge ops in backing
  * store once every windowsPerBatch window inserts */
-class HeapMerger extends Merger {
-    private static final Logger logger = LoggerFactory.getLogger(Merger.class);
-
-    // notifications of new window creates: a pair of (window ID, window size)
-    private final BlockingQueue<Merger.WindowInfo> newWindowNotifications; // input queue
-    private final CountBasedWBMH.FlushBarrier flushBarrier;
-
-    private final Windowing windowing;
-
-    private transient StreamWindowManager windowManager;
-
-    private long windowsPerBatch;
-    private boolean parallelizeMerge;
-
-    private long N = 0, W = 0; // number of elements in stream, number of raw windows ingested (without merging)
-    /* Priority queue, mapping each summary window w_i to the time at which w_{i+1} will be merged into it. Using
-     * an alternative to the Java Collections PriorityQueue supporting efficient arbitrary-element delete.
-     *
-     * Why this particular pri-queue implementation?
-     * https://gabormakrai.wordpress.com/2015/02/11/experimenting-with-dijkstras-algorithm/
-     */
-    private final FibonacciHeap<Long, Long> mergeCounts = new FibonacciHeap<>();
+class HeapMerger extends BatchedMerger {
+    /* Live windows together with the priority queue mapping each summary window w_i to the time at which w_{i+1} will
+     * be merged into it. Everything is kept in primitive arrays: per-window boxed TreeMap/heap nodes dominated merger
+     * memory and GC time on streams with millions of windows, and serialized poorly into the write index */
     private final WindowInfo windowInfo = new WindowInfo();
 
     HeapMerger(Windowing windowing, BlockingQueue<Merger.WindowInfo> newWindowNotifications,
                CountBasedWBMH.FlushBarrier flushBarrier,
                long windowsPerBatch) {
-        this.windowing = windowing;
-        this.newWindowNotifications = newWindowNotifications;
-        this.flushBarrier = flushBarrier;
-        this.windowsPerBatch = windowsPerBatch;
-    }
-
-    void setWindowsPerMergeBatch(long windowsPerMergeBatch) {
-        this.windowsPerBatch = windowsPerMergeBatch;
-    }
-
-    void setParallelizeMerge(boolean parallelizeMerge) {
-        this.parallelizeMerge = parallelizeMerge;
+        super(windowing, newWindowNotifications, flushBarrier, windowsPerBatch);
     }
 
     @Override
-    public void populateTransientFields(StreamWindowManager windowManager) {
-        this.windowManager = windowManager;
-        windowInfo.populateTransientFields(mergeCounts);
-    }
-
-    @Override
-    public void run() {
-        try {
-            while (true) {
-                Merger.WindowInfo newWindow = Utilities.take(newWindowNotifications);
-                if (newWindow == SHUTDOWN_SENTINEL) {
-                    issueAllPendingMerges();
-                    logger.info("Merge chain length: avg = {}, range = [{}, {}]",
-                            String.format("%.1f", mergeLengthStats.getMean()), mergeLengthStats.getMin(), mergeLengthStats.getMax());
-                    flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
-                    break;
-                } else if (newWindow == FLUSH_SENTINEL) {
-                    issueAllPendingMerges();
-                    flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
-                    continue;
-                }
-                long newWindowID = newWindow.id, newWindowSize = newWindow.size;
-                N += newWindowSize;
-                Long lastWindowID = windowInfo.getLastSWID();
-                if (lastWindowID != null) {
-                    updateMergeCountFor(lastWindowID, newWindowID, windowInfo.getCStart(lastWindowID), N - 1, N);
-                }
-                windowInfo.put(newWindowID, N - 1);
-                updatePendingMerges();
-                if (++W % windowsPerBatch == 0) {
-                    issueAllPendingMerges();
-                }
-            }
-        } catch (BackingStoreException e) {
-            throw new RuntimeException(e);
+    void windowAdded(long swid) {
+        int window = windowInfo.append(swid, N - 1);
+        int lastWindow = windowInfo.getPredecessor(window); // not before append, which may compact (renumber) slots
+        if (lastWindow != -1) {
+            updateMergeCountFor(lastWindow, window, windowInfo.getCStart(lastWindow), N - 1, N);
         }
+        updatePendingMerges();
     }
 
     private void updatePendingMerges() {
-        while (!mergeCounts.isEmpty() && mergeCounts.getMinimum().getKey() <= N) {
-            Heap.Entry<Long, Long> entry = mergeCounts.extractMinimum();
-            Heap.Entry<Long, Long> removed = windowInfo.unsetHeapPtr(entry.getValue());
-            assert entry == removed;
+        while (windowInfo.getMinMergeCount() <= N) {
             // We will now merge w0's successor w1 into w0, and update the heap entries for w{-1} and w0
-            Long w0ID = entry.getValue();
-            Long w1ID = windowInfo.getSuccessor(w0ID);
-            assert windowInfo.containsSWID(w0ID) && windowInfo.containsSWID(w1ID);
-            Long wm1ID = windowInfo.getPredecessor(w0ID);
-            Long w2ID = windowInfo.getSuccessor(w1ID);
-            long newW0cs = windowInfo.getCStart(w0ID);
-            long newW0ce = windowInfo.getCEnd(w1ID);
-
-            addPendingMerge(w0ID, w1ID);
-
-            WindowInfo.Info oldW1info = windowInfo.remove(w1ID);
-            windowInfo.put(w0ID, newW0ce);
-
-            if (oldW1info.heapPtr != null) mergeCounts.delete(oldW1info.heapPtr);
-            updateMergeCountFor(wm1ID, w0ID, windowInfo.getCStart(wm1ID), newW0ce, N);
-            updateMergeCountFor(w0ID, w2ID, newW0cs, windowInfo.getCEnd(w2ID), N);
-        }
-    }
-
-    private final Map<Long, List<Long>> pendingMerges = new Long2ObjectOpenHashMap<>();
+            int w0 = windowInfo.extractMinMergeCount();
+            int w1 = windowInfo.getSuccessor(w0);
+            assert w1 != -1;
+            int wm1 = windowInfo.getPredecessor(w0);
+            int w2 = windowInfo.getSuccessor(w1);
+            long newW0cs = windowInfo.getCStart(w0);
+            long newW0ce = windowInfo.getCEnd(w1);
 
-    /* add entry merge(swid0, [any windows already merged into swid0], swid1, [any windows alread merged into swid1]) */
-    private void addPendingMerge(long swid0, long swid1) {
-        List<Long> tail = pendingMerges.get(swid0);
-        if (tail == null) tail = new LongArrayList();
-        tail.add(swid1);
-        List<Long> transitiveTail = pendingMerges.remove(swid1);
-        if (transitiveTail != null) tail.addAll(transitiveTail);
-        pendingMerges.put(swid0, tail);
-    }
+            addPendingMerge(windowInfo.getSWID(w0), windowInfo.getSWID(w1));
 
-    private final DescriptiveStatistics mergeLengthStats = new DescriptiveStatistics();
-
-    private void issuePendingMerge(Map.Entry<Long, List<Long>> entry) throws BackingStoreException {
-        long head = entry.getKey();
-        List<Long> tail = entry.getValue();
-        assert !tail.isEmpty();
-        mergeLengthStats.addValue(1 + tail.size());
-        SummaryWindow[] windows = new SummaryWindow[1 + tail.size()];
-        int w = 0;
-        windows[w++] = windowManager.getSummaryWindow(head);
-        for (long swid : tail) {
-            windows[w++] = windowManager.getSummaryWindow(swid);
-        }
-        assert w == windows.length;
-        windowManager.mergeSummaryWindows(windows);
-        windowManager.putSummaryWindow(windows[0]);
-        for (long swid : tail) {
-            windowManager.deleteSummaryWindow(swid);
-        }
-    }
+            windowInfo.remove(w1);
+            windowInfo.setCEnd(w0, newW0ce);
 
-    private void issueAllPendingMerges() throws BackingStoreException {
-        Stream<Map.Entry<Long, List<Long>>> stream = pendingMerges.entrySet().stream();
-        if (parallelizeMerge) {
-            stream = stream.parallel();
+            if (wm1 != -1) updateMergeCountFor(wm1, w0, windowInfo.getCStart(wm1), newW0ce, N);
+            if (w2 != -1) updateMergeCountFor(w0, w2, newW0cs, windowInfo.getCEnd(w2), N);
         }
-        stream.forEach(entry -> {
-            try {
-                issuePendingMerge(entry);
-            } catch (BackingStoreException e) {
-                throw new RuntimeException(e);
-            }
-        });
-        pendingMerges.clear();
-        ((Long2ObjectOpenHashMap) pendingMerges).trim();
     }
 
     /**
@@ -195,93 +74,208 @@ class HeapMerger extends Merger {
      * mergeCounts[(w0, w1)] = first N' >= N such that (w0, w1) will need to be merged after N' elements have been
      *                         inserted
      */
-    private void updateMergeCountFor(Long w0ID, Long w1ID, Long c0, Long c1, long N) {
-        if (w0ID == null || w1ID == null || c0 == null || c1 == null) return;
-        Heap.Entry<Long, Long> existingEntry = windowInfo.unsetHeapPtr(w0ID);
-        if (existingEntry != null) mergeCounts.delete(existingEntry);
-
+    private void updateMergeCountFor(int w0, int w1, long c0, long c1, long N) {
+        assert windowInfo.getSuccessor(w0) == w1;
+        windowInfo.clearMergeCount(w0);
         long newMergeCount = windowing.getFirstContainingTime(c0, c1, N);
         if (newMergeCount != -1) {
-            windowInfo.setHeapPtr(w0ID, mergeCounts.insert(newMergeCount, w0ID));
+            windowInfo.setMergeCount(w0, newMergeCount);
         }
     }
 
-    long getNumUnissuedMerges() {
-        return pendingMerges.size();
-    }
-
-    /** In-memory index allowing looking up various info given SWID */
+    /**
+     * In-memory index of live windows and of their pending merge counts, in primitive arrays. Windows are addressed by
+     * slot: slots are handed out in insert (i.e. SWID) order, so swids[] and cEnds[] are always sorted. Removing a
+     * window unlinks its slot from the doubly linked list of live slots; dead slots are reclaimed by compaction when
+     * the arrays fill up, and before serialization. Merge counts live in an indexed binary min-heap over slots.
+     */
     private static class WindowInfo implements Serializable {
-        private static class Info implements Serializable {
-            long cEnd;
-            transient Heap.Entry<Long, Long> heapPtr;
+        private static final int INITIAL_CAPACITY = 16, MIN_COMPACTION_SIZE = 1024;
+
+        private long[] swids = new long[INITIAL_CAPACITY], cEnds = new long[INITIAL_CAPACITY];
+        private int[] prev = new int[INITIAL_CAPACITY], next = new int[INITIAL_CAPACITY];
+        private int[] heapPos = new int[INITIAL_CAPACITY]; // index of slot's entry in heap, or -1 if none
+        private int size = 0, numLive = 0, first = -1, last = -1;
+
+        // binary min-heap of (merge count, slot) pairs
+        private long[] heapKeys = new long[INITIAL_CAPACITY];
+        private int[] heapSlots = new int[INITIAL_CAPACITY];
+        private int heapSize = 0;
+
+        /** Add a window after all existing ones, returning its slot */
+        private int append(long swid, long cEnd) {
+            if (size == swids.length) {
+                if (size >= MIN_COMPACTION_SIZE && 2 * numLive <= size) {
+                    compact();
+                } else {
+                    resize(2 * size);
+                }
+            }
+            int s = size++;
+            swids[s] = swid;
+            cEnds[s] = cEnd;
+            prev[s] = last;
+            next[s] = -1;
+            heapPos[s] = -1;
+            if (last != -1) {
+                next[last] = s;
+            } else {
+                first = s;
+            }
+            last = s;
+            ++numLive;
+            return s;
+        }
 
-            Info(long cEnd, Heap.Entry<Long, Long> heapPtr) {
-                this.cEnd = cEnd;
-                this.heapPtr = heapPtr;
+        private void remove(int s) {
+            clearMergeCount(s);
+            if (prev[s] != -1) {
+                next[prev[s]] = next[s];
+            } else {
+                first = next[s];
+            }
+            if (next[s] != -1) {
+                prev[next[s]] = prev[s];
+            } else {
+                last = prev[s];
             }
+            --numLive;
         }
 
-        private final TreeMap<Long, Info> info = new TreeMap<>(); // end timestamp of each window
+        private long getSWID(int s) {
+            return swids[s];
+        }
 
-        private void populateTransientFields(Heap<Long, Long> heap) {
-            for (Heap.Entry<Long, Long> entry: heap) {
-                info.get(entry.getValue()).heapPtr = entry;
-            }
+        private long getCStart(int s) {
+            return prev[s] != -1 ? cEnds[prev[s]] + 1 : 0;
         }
 
-        private void put(long swid, long cEnd){
-            info.put(swid, new Info(cEnd, null));
+        private long getCEnd(int s) {
+            return cEnds[s];
         }
 
-        private Info remove(long swid) {
-            return info.remove(swid);
+        private void setCEnd(int s, long cEnd) {
+            cEnds[s] = cEnd;
         }
 
-        private boolean containsSWID(Long swid) {
-            return swid != null && info.containsKey(swid);
+        /** Returns -1 if s is the first window */
+        private int getPredecessor(int s) {
+            return prev[s];
         }
 
-        private Long getCStart(Long swid) {
-            if (swid == null || !info.containsKey(swid)) return null;
-            Map.Entry<Long, Info> prevEntry = info.lowerEntry(swid);
-            if (prevEntry != null) {
-                return prevEntry.getValue().cEnd + 1;
-            } else {
-                assert swid.equals(info.firstKey());
-                return 0L;
+        /** Returns -1 if s is the last window */
+        private int getSuccessor(int s) {
+            return next[s];
+        }
+
+        private long getMinMergeCount() {
+            return heapSize > 0 ? heapKeys[0] : Long.MAX_VALUE;
+        }
+
+        /** Remove the heap minimum, returning its slot */
+        private int extractMinMergeCount() {
+            assert heapSize > 0;
+            int s = heapSlots[0];
+            removeHeapEntry(0);
+            return s;
+        }
+
+        private void setMergeCount(int s, long mergeCount) {
+            clearMergeCount(s);
+            int i = heapSize++;
+            heapKeys[i] = mergeCount;
+            heapSlots[i] = s;
+            heapPos[s] = i;
+            siftUp(i);
+        }
+
+        private void clearMergeCount(int s) {
+            if (heapPos[s] != -1) removeHeapEntry(heapPos[s]);
+        }
+
+        private void removeHeapEntry(int i) {
+            heapPos[heapSlots[i]] = -1;
+            int lastEntry = --heapSize;
+            if (i != lastEntry) {
+                heapKeys[i] = heapKeys[lastEntry];
+                heapSlots[i] = heapSlots[lastEntry];
+                heapPos[heapSlots[i]] = i;
+                siftUp(siftDown(i));
             }
         }
 
-        private Long getCEnd(Long swid) {
-            if (swid == null) return null;
-            Info w = info.get(swid);
-            return w != null ? w.cEnd : null;
+        private int siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heapKeys[parent] <= heapKeys[i]) break;
+                swapHeapEntries(i, parent);
+                i = parent;
+            }
+            return i;
         }
 
-        private Long getPredecessor(Long swid) {
-            if (swid == null || !info.containsKey(swid)) return null;
-            return info.lowerKey(swid);
+        private int siftDown(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) ++child;
+                if (heapKeys[i] <= heapKeys[child]) break;
+                swapHeapEntries(i, child);
+                i = child;
+            }
+            return i;
         }
 
-        private Long getSuccessor(Long swid) {
-            if (swid == null || !info.containsKey(swid)) return null;
-            return info.higherKey(swid);
+        private void swapHeapEntries(int i, int j) {
+            long key = heapKeys[i];
+            heapKeys[i] = heapKeys[j];
+            heapKeys[j] = key;
+            int s = heapSlots[i];
+            heapSlots[i] = heapSlots[j];
+            heapSlots[j] = s;
+            heapPos[heapSlots[i]] = i;
+            heapPos[heapSlots[j]] = j;
         }
 
-        private Long getLastSWID() {
-            return !info.isEmpty() ? info.lastKey() : null;
+        /** Move live windows down into slots [0, numLive), preserving order */
+        private void compact() {
+            int t = 0;
+            // t <= s throughout, so we never overwrite a live slot before moving it
+            for (int s = first; s != -1; ++t) {
+                int nextS = next[s];
+                swids[t] = swids[s];
+                cEnds[t] = cEnds[s];
+                heapPos[t] = heapPos[s];
+                if (heapPos[t] != -1) heapSlots[heapPos[t]] = t;
+                prev[t] = t - 1;
+                next[t] = t + 1;
+                s = nextS;
+            }
+            assert t == numLive;
+            size = numLive;
+            first = size > 0 ? 0 : -1;
+            last = size - 1;
+            if (last != -1) next[last] = -1;
         }
 
-        private Heap.Entry<Long, Long> unsetHeapPtr(long swid) {
-            Info i = info.get(swid);
-            Heap.Entry<Long, Long> ptr = i.heapPtr;
-            i.heapPtr = null;
-            return ptr;
+        /** Reallocate all arrays to the given capacity, which must be at least size */
+        private void resize(int capacity) {
+            capacity = Math.max(capacity, INITIAL_CAPACITY);
+            swids = Arrays.copyOf(swids, capacity);
+            cEnds = Arrays.copyOf(cEnds, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            next = Arrays.copyOf(next, capacity);
+            heapPos = Arrays.copyOf(heapPos, capacity);
+            // heap holds at most one entry per live slot
+            heapKeys = Arrays.copyOf(heapKeys, capacity);
+            heapSlots = Arrays.copyOf(heapSlots, capacity);
         }
 
-        private void setHeapPtr(long swid, Heap.Entry<Long, Long> ptr) {
-            info.get(swid).heapPtr = ptr;
+        /** Serialize only live windows, as a handful of trimmed primitive arrays */
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            compact();
+            resize(size);
+            out.defaultWriteObject();
         }
     }
 }
@@ -0,0 +1,100 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.SummaryWindow;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of all data in one stream's ingest pipeline that is not yet in the backing store, used to answer
+ * read-your-writes queries (see InFlightSnapshot). Every element is always registered in at least one place:
+ *   - ingest buffers are registered as soon as the Ingester starts filling them, and retired by the Summarizer only
+ *     after all windows it built from the buffer are registered;
+ *   - windows are retired by the Writer only after they have been committed to the backing store.
+ */
+class InFlightData {
+    private static class BufferEntry {
+        final long startCount; // count of the first element in the buffer
+        final IngestBuffer buffer;
+        boolean retired = false; // guarded by this
+
+        BufferEntry(long startCount, IngestBuffer buffer) {
+            this.startCount = startCount;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Map<IngestBuffer, BufferEntry> buffers = new ConcurrentHashMap<>();
+    private final Set<SummaryWindow> windows = ConcurrentHashMap.newKeySet();
+
+    /** Called by Ingester when it starts filling buffer, whose first element will have count startCount */
+    void addBuffer(IngestBuffer buffer, long startCount) {
+        buffers.put(buffer, new BufferEntry(startCount, buffer));
+    }
+
+    /** Called by Summarizer before it clears or truncates buffer */
+    void retireBuffer(IngestBuffer buffer) {
+        BufferEntry entry = buffers.remove(buffer);
+        if (entry != null) {
+            synchronized (entry) { // wait out any snapshot that is copying the buffer
+                entry.retired = true;
+            }
+        }
+    }
+
+    /** Called by Summarizer before it hands window to the Writer */
+    void addWindow(SummaryWindow window) {
+        windows.add(window);
+    }
+
+    /** Called by Writer once window is committed to the backing store */
+    void retireWindow(SummaryWindow window) {
+        windows.remove(window);
+    }
+
+    /**
+     * Capture everything in flight overlapping [t0, t1]. The caller must ensure no appends happen concurrently, since
+     * the Ingester's active buffer is read without synchronization
+     */
+    InFlightSnapshot snapshot(long t0, long t1) {
+        // buffers first, then windows: an element retired from buffers has been registered as a window by then, and
+        // one retired from windows has already been committed (so a subsequent backing store read will see it)
+        List<InFlightSnapshot.Run> runs = new ArrayList<>();
+        for (BufferEntry entry : buffers.values()) {
+            synchronized (entry) {
+                if (entry.retired) continue;
+                IngestBuffer buffer = entry.buffer;
+                int size = buffer.size(), from = 0, to;
+                while (from < size && buffer.getTimestamp(from) < t0) ++from;
+                for (to = from; to < size && buffer.getTimestamp(to) <= t1; ++to) {
+                }
+                if (from < to) runs.add(new InFlightSnapshot.Run(entry.startCount, buffer, from, to));
+            }
+        }
+        List<SummaryWindow> overlapping = new ArrayList<>();
+        for (SummaryWindow window : windows) {
+            if (window.ts <= t1 && window.te >= t0) overlapping.add(window);
+        }
+        overlapping.sort(Comparator.comparingLong(w -> w.cs));
+        return new InFlightSnapshot(overlapping, runs);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.SummaryWindow;
+import com.samsung.sra.datastore.storage.StreamWindowManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Point-in-time copy of the data in a stream's ingest pipeline (unsummarized buffer contents and summary windows not
+ * yet written to the backing store), restricted to a time range. See CountBasedWBMH.snapshotInFlight.
+ */
+public class InFlightSnapshot {
+    /** Raw elements copied out of an ingest buffer */
+    static class Run {
+        final long startCount; // count of timestamps[0]
+        final long[] timestamps;
+        final long[] longValues; // exactly one of longValues, doubleValues and values is non-null
+        final double[] doubleValues;
+        final Object[] values;
+
+        /** Copy elements [from, to) of buffer, whose first element has count bufferStartCount */
+        Run(long bufferStartCount, IngestBuffer buffer, int from, int to) {
+            this.startCount = bufferStartCount + from;
+            this.timestamps = new long[to - from];
+            for (int i = from; i < to; ++i) {
+                timestamps[i - from] = buffer.getTimestamp(i);
+            }
+            if (buffer instanceof LongIngestBuffer) {
+                LongIngestBuffer longBuffer = (LongIngestBuffer) buffer;
+                this.longValues = new long[to - from];
+                this.doubleValues = null;
+                this.values = null;
+                for (int i = from; i < to; ++i) {
+                    longValues[i - from] = longBuffer.getLongValue(i);
+                }
+            } else if (buffer instanceof DoubleIngestBuffer) {
+                DoubleIngestBuffer doubleBuffer = (DoubleIngestBuffer) buffer;
+                this.longValues = null;
+                this.doubleValues = new double[to - from];
+                this.values = null;
+                for (int i = from; i < to; ++i) {
+                    doubleValues[i - from] = doubleBuffer.getDoubleValue(i);
+                }
+            } else {
+                this.longValues = null;
+                this.doubleValues = null;
+                this.values = new Object[to - from];
+                for (int i = from; i < to; ++i) {
+                    values[i - from] = buffer.getValue(i);
+                }
+            }
+        }
+    }
+
+    private final List<SummaryWindow> windows; // sorted by cs
+    private final List<Run> runs;
+
+    InFlightSnapshot(List<SummaryWindow> windows, List<Run> runs) {
+        this.windows = windows;
+        this.runs = runs;
+    }
+
+    /** Add a window covering elements after all others in the snapshot */
+    void addWindow(SummaryWindow window) {
+        windows.add(window);
+    }
+
+    /**
+     * Summary windows covering all snapshotted elements with count > committedThrough, in time order. Data up to
+     * committedThrough is assumed to come from the backing store instead (e.g. the largest ce of the windows a query
+     * read from there), so that nothing is counted twice. Unsummarized elements get folded into temporary windows.
+     */
+    public List<SummaryWindow> getWindows(StreamWindowManager windowManager, long committedThrough) {
+        List<SummaryWindow> ret = new ArrayList<>();
+        for (SummaryWindow window : windows) {
+            if (window.cs > committedThrough) ret.add(window);
+        }
+        // buffer elements may also have been summarized into one of the windows we return
+        long[] coveredStarts = new long[ret.size()], coveredEnds = new long[ret.size()];
+        for (int i = 0; i < ret.size(); ++i) {
+            coveredStarts[i] = ret.get(i).cs;
+            coveredEnds[i] = ret.get(i).ce;
+        }
+        for (Run run : runs) {
+            SummaryWindow current = null;
+            for (int i = 0; i < run.timestamps.length; ++i) {
+                long count = run.startCount + i, ts = run.timestamps[i];
+                if (count <= committedThrough || isCovered(count, coveredStarts, coveredEnds)) {
+                    if (current != null) ret.add(current);
+                    current = null;
+                    continue;
+                }
+                if (current == null) {
+                    current = windowManager.createEmptySummaryWindow(ts, ts, count, count);
+                } else {
+                    current.te = ts;
+                    current.ce = count;
+                }
+                if (run.longValues != null) {
+                    windowManager.insertIntoSummaryWindow(current, ts, run.longValues[i]);
+                } else if (run.doubleValues != null) {
+                    windowManager.insertIntoSummaryWindow(current, ts, run.doubleValues[i]);
+                } else {
+                    windowManager.insertIntoSummaryWindow(current, ts, run.values[i]);
+                }
+            }
+            if (current != null) ret.add(current);
+        }
+        ret.sort(Comparator.comparingLong(w -> w.ts));
+        return ret;
+    }
+
+    private static boolean isCovered(long count, long[] starts, long[] ends) {
+        int pos = Arrays.binarySearch(starts, count);
+        if (pos < 0) pos = -pos - 2; // last window starting before count
+        return pos >= 0 && count <= ends[pos];
+    }
+}
@@ -23,6 +23,27 @@ import java.io.Serializable;
 interface IngestBuffer extends AutoCloseable, Serializable {
     void append(long ts, Object value);
 
+    /**
+     * Append up to len values from timestamps[off..] and values[off..], stopping early if the buffer fills up. Returns
+     * the number of values actually appended.
+     */
+    default int appendBatch(long[] timestamps, long[] values, int off, int len) {
+        int n = 0;
+        for (; n < len && !isFull(); ++n) {
+            append(timestamps[off + n], values[off + n]);
+        }
+        return n;
+    }
+
+    /** Double-valued version of appendBatch */
+    default int appendBatch(long[] timestamps, double[] values, int off, int len) {
+        int n = 0;
+        for (; n < len && !isFull(); ++n) {
+            append(timestamps[off + n], values[off + n]);
+        }
+        return n;
+    }
+
     boolean isFull();
 
     int size();
@@ -0,0 +1,120 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Store-wide executor running the Summarizer, Writer and Merger stages of every stream as tasks, as an alternative to
+ * each stream starting three dedicated threads. A stage is scheduled whenever an item is added to its input queue, and
+ * then processes up to MAX_ITEMS_PER_RUN items before yielding its worker to other streams. A stage never runs on two
+ * threads at once, so every stream's items are still processed one at a time and in order.
+ */
+public class IngestScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(IngestScheduler.class);
+    /** Max items a stage processes per task before rescheduling itself (fairness across streams) */
+    private static final int MAX_ITEMS_PER_RUN = 1024;
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /** Run all stages on a pool of nThreads daemon threads */
+    public IngestScheduler(int nThreads) {
+        if (nThreads <= 0) throw new IllegalArgumentException("need at least one ingest thread");
+        AtomicInteger threadNum = new AtomicInteger(0);
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "ingest-worker-" + threadNum.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = Executors.newFixedThreadPool(nThreads, threadFactory);
+        this.ownsExecutor = true;
+        logger.info("Running ingest on a shared pool of {} threads", nThreads);
+    }
+
+    /**
+     * Run all stages on an externally managed executor (e.g. a virtual-thread-per-task executor on JVMs that support
+     * it). The executor is not shut down by close()
+     */
+    public IngestScheduler(ExecutorService executor) {
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
+
+    <T> void schedule(PipelineStage<T> stage, StageQueue<T> input) {
+        ScheduledStage<T> scheduled = new ScheduledStage<>(stage, input);
+        input.setConsumer(scheduled);
+        scheduled.signal(); // in case input already has items
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor) executor.shutdown();
+    }
+
+    /** A PipelineStage bound to its input queue, and the state needed to run it as a sequence of tasks */
+    class ScheduledStage<T> {
+        private final PipelineStage<T> stage;
+        private final StageQueue<T> input;
+        /** Is there a task for this stage sitting in (or about to be taken off) the executor queue? */
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        /** Is some thread currently inside drain()? Ensures items are processed one at a time, in order */
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private volatile boolean shutdown = false;
+
+        private ScheduledStage(PipelineStage<T> stage, StageQueue<T> input) {
+            this.stage = stage;
+            this.input = input;
+        }
+
+        /** Make sure a task will run this stage at some point after this call */
+        void signal() {
+            if (!shutdown && scheduled.compareAndSet(false, true)) {
+                executor.execute(() -> {
+                    scheduled.set(false);
+                    drain();
+                });
+            }
+        }
+
+        /**
+         * Process up to MAX_ITEMS_PER_RUN queued items in the calling thread. Returns false without doing anything if
+         * another thread is already running this stage
+         */
+        boolean drain() {
+            if (!running.compareAndSet(false, true)) return false;
+            try {
+                for (int i = 0; i < MAX_ITEMS_PER_RUN && !shutdown; ++i) {
+                    T item = input.poll();
+                    if (item == null) break;
+                    if (!stage.process(item)) shutdown = true;
+                }
+            } finally {
+                running.set(false);
+            }
+            // anything added while we held running and could not see it
+            if (!input.isEmpty()) signal();
+            return true;
+        }
+    }
+}
@@ -27,19 +27,49 @@ class Ingester implements Serializable {
 
     private volatile IngestBuffer activeBuffer = null;
 
+    private transient InFlightData inFlight = null;
+    /** In inline mode, runs the rest of the pipeline (which recycles buffers) when we run out of empty buffers */
+    private transient Runnable inlineDrain = null;
+    /** Run before each new buffer is started, while no values are buffered outside the rest of the pipeline */
+    private transient Runnable bufferBoundaryHook = null;
+
     Ingester(BlockingQueue<IngestBuffer> emptyBuffers, BlockingQueue<IngestBuffer> summarizerQueue) {
         this.emptyBuffers = emptyBuffers;
         this.summarizerQueue = summarizerQueue;
     }
 
-    /** NOTE: must externally serialize all append() and flush() */
-    void append(long ts, Object value) {
+    void populateTransientFields(InFlightData inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    void setInlineDrain(Runnable inlineDrain) {
+        this.inlineDrain = inlineDrain;
+    }
+
+    void setBufferBoundaryHook(Runnable bufferBoundaryHook) {
+        this.bufferBoundaryHook = bufferBoundaryHook;
+    }
+
+    /** Make sure we have an active buffer, whose first element will have count N */
+    private void acquireBuffer(long N) {
+        if (activeBuffer != null) return;
+        if (bufferBoundaryHook != null) bufferBoundaryHook.run();
+        if (inlineDrain != null && emptyBuffers.isEmpty()) inlineDrain.run();
         while (activeBuffer == null) {
             try {
                 activeBuffer = emptyBuffers.take();
             } catch (InterruptedException ignored) {
             }
         }
+        if (inFlight != null) inFlight.addBuffer(activeBuffer, N);
+    }
+
+    /**
+     * @param N  count of the appended element
+     *
+     * NOTE: must externally serialize all append() and flush() */
+    void append(long N, long ts, Object value) {
+        acquireBuffer(N);
         assert !activeBuffer.isFull();
         activeBuffer.append(ts, value);
         if (activeBuffer.isFull()) {
@@ -48,6 +78,43 @@ class Ingester implements Serializable {
         }
     }
 
+    /**
+     * Bulk version of append(), copying values into the active buffer a buffer-load at a time.
+     *
+     * @param N  count of the first appended element
+     *
+     * NOTE: must externally serialize all append() and flush() */
+    void appendBatch(long N, long[] timestamps, long[] values, int off, int len) {
+        while (len > 0) {
+            acquireBuffer(N);
+            assert !activeBuffer.isFull();
+            int n = activeBuffer.appendBatch(timestamps, values, off, len);
+            off += n;
+            len -= n;
+            N += n;
+            if (activeBuffer.isFull()) {
+                Utilities.put(summarizerQueue, activeBuffer);
+                activeBuffer = null;
+            }
+        }
+    }
+
+    /** Double-valued version of appendBatch */
+    void appendBatch(long N, long[] timestamps, double[] values, int off, int len) {
+        while (len > 0) {
+            acquireBuffer(N);
+            assert !activeBuffer.isFull();
+            int n = activeBuffer.appendBatch(timestamps, values, off, len);
+            off += n;
+            len -= n;
+            N += n;
+            if (activeBuffer.isFull()) {
+                Utilities.put(summarizerQueue, activeBuffer);
+                activeBuffer = null;
+            }
+        }
+    }
+
     /**
      * Send any outstanding values to summarizer (whether buffer is full or not) and initiate summarizer flush.
      *
@@ -20,7 +20,7 @@ import sun.misc.Unsafe;
 import java.lang.reflect.Constructor;
 import java.util.concurrent.atomic.AtomicInteger;
 
-class LongIngestBuffer implements IngestBuffer {
+class LongIngestBuffer extends CircularIngestBuffer {
     /** Off-heap long array with unchecked get/put operations */
     static class LongArray implements AutoCloseable {
         private final long ptr;
@@ -50,6 +50,12 @@ class LongIngestBuffer implements IngestBuffer {
             unsafe.putLong(ptr + 8 * idx, val);
         }
 
+        /** Bulk copy src[srcPos], ..., src[srcPos + len - 1] into this[idx], ..., this[idx + len - 1] */
+        void copyFrom(long[] src, int srcPos, long idx, int len) {
+            assert srcPos >= 0 && len >= 0 && srcPos + len <= src.length;
+            unsafe.copyMemory(src, Unsafe.ARRAY_LONG_BASE_OFFSET + 8L * srcPos, null, ptr + 8 * idx, 8L * len);
+        }
+
         @Override
         public void close() {
             unsafe.freeMemory(ptr);
@@ -58,13 +64,11 @@ class LongIngestBuffer implements IngestBuffer {
 
     // FIXME: must reconstruct on SummaryStore reopen
     private transient LongArray timestamps, values;
-    private final int capacity;
-    private int size = 0;
     private final int id;
     private static AtomicInteger num = new AtomicInteger(0);
 
     LongIngestBuffer(int capacity) {
-        this.capacity = capacity;
+        super(capacity);
         this.id = num.incrementAndGet();
 
         this.timestamps = new LongArray(capacity);
@@ -74,47 +78,41 @@ class LongIngestBuffer implements IngestBuffer {
     @Override
     public void append(long ts, Object value) {
         if (size >= capacity) throw new IndexOutOfBoundsException();
-        timestamps.put(size, ts);
-        values.put(size, ((Number) value).longValue());
+        int slot = tail();
+        timestamps.put(slot, ts);
+        values.put(slot, ((Number) value).longValue());
         ++size;
     }
 
     @Override
-    public boolean isFull() {
-        return size == capacity;
-    }
-
-    @Override
-    public int size() {
-        return size;
-    }
-
-    @Override
-    public void truncateHead(int s) {
-        assert s >= 0;
-        if (s == 0) return;
-        for (int i = 0; i < size - s; ++i) {
-            timestamps.put(i, timestamps.get(i + s));
-            values.put(i, values.get(i + s));
+    public int appendBatch(long[] timestamps, long[] values, int off, int len) {
+        int n = Math.min(len, capacity - size);
+        // at most two raw copies: up to the end of the arrays, then (after wrapping around) from slot 0
+        for (int copied = 0; copied < n; ) {
+            int slot = tail(), m = Math.min(n - copied, contiguousFree());
+            this.timestamps.copyFrom(timestamps, off + copied, slot, m);
+            this.values.copyFrom(values, off + copied, slot, m);
+            size += m;
+            copied += m;
         }
-        size -= s;
-    }
-
-    @Override
-    public void clear() {
-        size = 0;
+        return n;
     }
 
     @Override
     public long getTimestamp(int pos) {
-        if (pos < 0 || pos >= size) throw new IndexOutOfBoundsException();
-        return timestamps.get(pos);
+        checkPosition(pos);
+        return timestamps.get(slot(pos));
     }
 
     @Override
     public Object getValue(int pos) {
-        if (pos < 0 || pos >= size) throw new IndexOutOfBoundsException();
-        return values.get(pos);
+        return getLongValue(pos);
+    }
+
+    /** Unboxed getValue */
+    long getLongValue(int pos) {
+        checkPosition(pos);
+        return values.get(slot(pos));
     }
 
     @Override
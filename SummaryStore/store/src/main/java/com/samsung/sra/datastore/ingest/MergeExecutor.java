@@ -0,0 +1,117 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.storage.BackingStoreException;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread pool used to issue merges and summarize buffers in parallel (see CountBasedWBMH.setParallelizeMerge and
+ * setParallelizeSummarize). Normally one instance is owned by SummaryStore and shared by all streams.
+ *
+ * Each runAll() call is cut into tasks of up to MERGES_PER_TASK merges, and a call never has more than parallelism
+ * tasks outstanding; the next task is only submitted once a previous one finishes. All workers take tasks from one
+ * FIFO queue, so a stream with a large merge backlog rejoins the back of the queue after every task instead of
+ * monopolizing all workers, and streams with pending merges get served round-robin.
+ */
+public class MergeExecutor implements AutoCloseable {
+    private static final int MERGES_PER_TASK = 64;
+
+    @FunctionalInterface
+    interface MergeAction<T> {
+        void run(T item) throws BackingStoreException;
+    }
+
+    private final ExecutorService pool;
+    private final int parallelism;
+
+    public MergeExecutor(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("need at least one merge thread");
+        this.parallelism = parallelism;
+        AtomicInteger threadNum = new AtomicInteger(0);
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "merge-worker-" + threadNum.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+        this.pool = Executors.newFixedThreadPool(parallelism, threadFactory); // single FIFO task queue
+    }
+
+    /** Run action on every item, returning once all are done. Rethrows the first exception thrown by any action */
+    <T> void runAll(List<T> items, MergeAction<T> action) throws BackingStoreException {
+        runAll(items, MERGES_PER_TASK, action);
+    }
+
+    /** Same as runAll(items, action), but with a custom task granularity */
+    <T> void runAll(List<T> items, int itemsPerTask, MergeAction<T> action) throws BackingStoreException {
+        int numTasks = (items.size() + itemsPerTask - 1) / itemsPerTask;
+        if (numTasks == 0) return;
+        CountDownLatch done = new CountDownLatch(numTasks);
+        AtomicInteger nextTask = new AtomicInteger(0);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < Math.min(parallelism, numTasks); ++i) {
+            submitNext(items, itemsPerTask, action, numTasks, nextTask, done, error);
+        }
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException ignored) {
+            }
+        }
+        Throwable e = error.get();
+        if (e instanceof BackingStoreException) {
+            throw (BackingStoreException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private <T> void submitNext(List<T> items, int itemsPerTask, MergeAction<T> action, int numTasks,
+                                AtomicInteger nextTask, CountDownLatch done, AtomicReference<Throwable> error) {
+        int task = nextTask.getAndIncrement();
+        if (task >= numTasks) return;
+        pool.execute(() -> {
+            try {
+                if (error.get() == null) { // skip remaining work once something has failed
+                    int end = Math.min(items.size(), (task + 1) * itemsPerTask);
+                    for (int i = task * itemsPerTask; i < end; ++i) {
+                        action.run(items.get(i));
+                    }
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                done.countDown();
+                submitNext(items, itemsPerTask, action, numTasks, nextTask, done, error);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -20,9 +20,10 @@ import com.samsung.sra.datastore.storage.StreamWindowManager;
 import java.io.Serializable;
 
 /**
- * Implements WBMH. Will be given a BlockingQueue<WindowInfo> in constructor which it is expected to process in run()
+ * Implements WBMH. Will be given a BlockingQueue<WindowInfo> in constructor which it is expected to process in run(),
+ * or have fed to process() one notification at a time when running on an IngestScheduler
  */
-abstract class Merger implements Runnable, Serializable {
+abstract class Merger implements PipelineStage<Merger.WindowInfo>, Serializable {
     static final Merger.WindowInfo SHUTDOWN_SENTINEL = new Merger.WindowInfo(-1L, -1L);
     static final Merger.WindowInfo FLUSH_SENTINEL = new Merger.WindowInfo(-1L, -1L);
 
@@ -0,0 +1,25 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+/**
+ * One stage of the CountBasedWBMH pipeline (Summarizer, Writer or Merger), consuming items of type T from an input
+ * queue. Either runs on its own dedicated thread via run(), or has items fed to process() by an IngestScheduler.
+ */
+interface PipelineStage<T> extends Runnable {
+    /** Process one item taken from the input queue. Returns false once the stage has processed a shutdown sentinel */
+    boolean process(T item);
+}
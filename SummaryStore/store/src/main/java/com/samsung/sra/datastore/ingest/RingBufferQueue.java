@@ -0,0 +1,183 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue over a preallocated ring of slots, with no per-element allocation. Any number of threads may
+ * offer and poll concurrently: e.g. in CountBasedWBMH the writer queue is fed both by the Summarizer and by the thread
+ * calling flush(), and empty buffers are handed back by the Summarizer and by flush().
+ *
+ * Each slot carries a sequence number saying whether it is ready to be written (sequence == ticket) or read (sequence
+ * == ticket + 1) by the holder of ticket, the head or tail index that maps to it. Producers and consumers claim tickets
+ * by CAS on tail and head respectively, then publish the slot by advancing its sequence (after D. Vyukov's bounded
+ * MPMC queue).
+ */
+class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>, Serializable {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong head = new AtomicLong(0); // next ticket to read
+    private final AtomicLong tail = new AtomicLong(0); // next ticket to write
+
+    /** Capacity is rounded up to the next power of two */
+    RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > (1 << 30)) throw new IllegalArgumentException("invalid capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        while (true) {
+            long t = tail.get();
+            int slot = (int) t & mask;
+            long diff = sequences.get(slot) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    slots[slot] = e;
+                    sequences.lazySet(slot, t + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // slot still holds the element from one lap ago: full
+            }
+            // else another producer claimed ticket t first; retry with the new tail
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long h = head.get();
+            int slot = (int) h & mask;
+            long diff = sequences.get(slot) - (h + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(h, h + 1)) {
+                    E e = (E) slots[slot];
+                    slots[slot] = null;
+                    sequences.lazySet(slot, h + slots.length); // free for the producer one lap ahead
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null; // slot not yet written: empty
+            }
+            // else another consumer claimed ticket h first; retry with the new head
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head.get();
+        int slot = (int) h & mask;
+        return sequences.get(slot) == h + 1 ? (E) slots[slot] : null;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            waitStrategy.idle();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            waitStrategy.idle();
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            waitStrategy.idle();
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            if (System.nanoTime() - deadline >= 0) return null;
+            waitStrategy.idle();
+        }
+        return e;
+    }
+
+    @Override
+    public int size() {
+        // tail may include claimed but unpublished tickets, and head may be stale by the time tail is read
+        long h = head.get(), t = tail.get();
+        return (int) Math.max(0, Math.min(slots.length, t - h));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return slots.length - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            ++n;
+        }
+        return n;
+    }
+
+    /** Weakly consistent snapshot iterator. Should only be used when the queue is quiescent */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        for (long i = head.get(), t = tail.get(); i < t; ++i) {
+            int slot = (int) i & mask;
+            if (sequences.get(slot) == i + 1) snapshot.add((E) slots[slot]);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
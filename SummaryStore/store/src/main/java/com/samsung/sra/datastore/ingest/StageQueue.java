@@ -0,0 +1,150 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Input queue of a PipelineStage. Forwards everything to an underlying BlockingQueue; additionally, if the stage is
+ * running on an IngestScheduler, wakes the stage up on every insert.
+ *
+ * When running on a scheduler, a put() on a full queue does not simply block (that could tie up every worker thread
+ * waiting on stages that have no thread to run on). Instead the caller runs the consuming stage itself, or waits for
+ * whichever thread is already running it.
+ *
+ * In inline mode (see CountBasedWBMH.setInlineIngest) the consuming stage has no thread or task at all: the owner
+ * calls drainInline() to run it on the queued items, and a put() on a full queue drains it first.
+ */
+class StageQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>, Serializable {
+    private final BlockingQueue<E> queue;
+    private transient volatile IngestScheduler.ScheduledStage<E> consumer = null;
+    private transient PipelineStage<E> inlineConsumer = null;
+
+    StageQueue(BlockingQueue<E> queue) {
+        this.queue = queue;
+    }
+
+    void setConsumer(IngestScheduler.ScheduledStage<E> consumer) {
+        this.inlineConsumer = null;
+        this.consumer = consumer;
+    }
+
+    /** Have stage consume this queue inline, or pass null to go back to a dedicated thread */
+    void setInlineConsumer(PipelineStage<E> stage) {
+        this.consumer = null;
+        this.inlineConsumer = stage;
+    }
+
+    /** Process all queued items with the inline consumer, on the calling thread */
+    void drainInline() {
+        E item;
+        while ((item = queue.poll()) != null) {
+            inlineConsumer.process(item);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        boolean added = queue.offer(e);
+        if (added) signalConsumer();
+        return added;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if (inlineConsumer != null) {
+            while (!queue.offer(e)) {
+                drainInline();
+            }
+            return;
+        }
+        IngestScheduler.ScheduledStage<E> consumer = this.consumer;
+        if (consumer == null) {
+            queue.put(e);
+            return;
+        }
+        while (!queue.offer(e)) {
+            if (!consumer.drain()) {
+                LockSupport.parkNanos(10_000);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+        consumer.signal();
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean added = queue.offer(e, timeout, unit);
+        if (added) signalConsumer();
+        return added;
+    }
+
+    private void signalConsumer() {
+        IngestScheduler.ScheduledStage<E> consumer = this.consumer;
+        if (consumer != null) consumer.signal();
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    @Override
+    public E poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public E peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return queue.drainTo(c);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        return queue.drainTo(c, maxElements);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return queue.iterator();
+    }
+}
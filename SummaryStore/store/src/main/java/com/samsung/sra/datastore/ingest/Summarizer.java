@@ -15,6 +15,7 @@
 */
 package com.samsung.sra.datastore.ingest;
 
+import com.samsung.sra.datastore.storage.BackingStoreException;
 import com.samsung.sra.datastore.storage.StreamWindowManager;
 import com.samsung.sra.datastore.SummaryWindow;
 import com.samsung.sra.datastore.Utilities;
@@ -22,13 +23,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
 
 /** Summarize values in full IngestBuffers into a sequence of SummaryWindows, and pass them on to Writer's queue */
-class Summarizer implements Runnable, Serializable {
+class Summarizer implements PipelineStage<IngestBuffer>, Serializable {
     static final IngestBuffer SHUTDOWN_SENTINEL = new ObjectIngestBuffer(0);
     static final IngestBuffer FLUSH_SENTINEL = new ObjectIngestBuffer(0);
     private static final Logger logger = LoggerFactory.getLogger(Summarizer.class);
+    /** When summarizing in parallel, buffers no longer than this are still summarized serially */
+    private static final int PARALLEL_MIN_BUFFER_SIZE = 1 << 14;
 
     private final BlockingQueue<IngestBuffer> summarizerQueue; // input queue
     private final BlockingQueue<SummaryWindow> writerQueue; // output queue
@@ -42,6 +46,8 @@ class Summarizer implements Runnable, Serializable {
     private long N = 0;
 
     private transient StreamWindowManager windowManager = null;
+    private transient MergeExecutor executor = null;
+    private transient InFlightData inFlight = null;
 
     Summarizer(int[] windowLengths,
                BlockingQueue<IngestBuffer> emptyBuffers, BlockingQueue<IngestBuffer> partialBuffers,
@@ -56,45 +62,96 @@ class Summarizer implements Runnable, Serializable {
         this.flushBarrier = flushBarrier;
     }
 
-    void populateTransientFields(StreamWindowManager windowManager) {
+    void populateTransientFields(StreamWindowManager windowManager, InFlightData inFlight) {
         this.windowManager = windowManager;
+        this.inFlight = inFlight;
+    }
+
+    /** Summarize the windows of each buffer in parallel on executor, or serially if it is null */
+    void setExecutor(MergeExecutor executor) {
+        this.executor = executor;
     }
 
     @Override
     public void run() {
-        while (true) {
-            IngestBuffer buffer = Utilities.take(summarizerQueue);
-            if (buffer == SHUTDOWN_SENTINEL) {
-                flushBarrier.notify(CountBasedWBMH.FlushBarrier.SUMMARIZER);
-                break;
-            } else if (buffer == FLUSH_SENTINEL) {
-                flushBarrier.notify(CountBasedWBMH.FlushBarrier.SUMMARIZER);
-                continue;
-            }
-            int W = getNumWindowsCovering(buffer);
-            int bs = 0, be; // index of first and last elements in the buffer belonging to current window
-            // invariant: at end of each loop, we have processed elements [0, 1, ..., bs-1]
-            for (int w = W - 1; w >= 0; --w) {
-                be = bs + windowLengths[w] - 1;
-                SummaryWindow window = windowManager.createEmptySummaryWindow(
-                        buffer.getTimestamp(bs), buffer.getTimestamp(be), N + bs, N + be);
-                for (int c = bs; c <= be; ++c) {
-                    windowManager.insertIntoSummaryWindow(window, buffer.getTimestamp(c), buffer.getValue(c));
-                }
-                Utilities.put(writerQueue, window);
-                bs = be + 1;
+        while (process(Utilities.take(summarizerQueue))) {
+        }
+    }
+
+    @Override
+    public boolean process(IngestBuffer buffer) {
+        if (buffer == SHUTDOWN_SENTINEL) {
+            flushBarrier.notify(CountBasedWBMH.FlushBarrier.SUMMARIZER);
+            return false;
+        } else if (buffer == FLUSH_SENTINEL) {
+            flushBarrier.notify(CountBasedWBMH.FlushBarrier.SUMMARIZER);
+            return true;
+        }
+        int W = getNumWindowsCovering(buffer);
+        // window boundaries are fixed by windowLengths, so create all (empty) windows up front
+        SummaryWindow[] windows = new SummaryWindow[W];
+        int bs = 0, be; // index of first and last elements in the buffer belonging to current window
+        // invariant: at end of each loop, we have created windows spanning elements [0, 1, ..., bs-1]
+        for (int w = W - 1; w >= 0; --w) {
+            be = bs + windowLengths[w] - 1;
+            windows[W - 1 - w] = windowManager.createEmptySummaryWindow(
+                    buffer.getTimestamp(bs), buffer.getTimestamp(be), N + bs, N + be);
+            bs = be + 1;
+        }
+        if (executor != null && bs > PARALLEL_MIN_BUFFER_SIZE) {
+            summarizeInParallel(buffer, windows);
+        } else {
+            for (SummaryWindow window : windows) {
+                summarize(buffer, window);
             }
-            N += bs;
-            if (bs == buffer.size()) {
-                buffer.clear();
-                Utilities.put(emptyBuffers, buffer);
-            } else {
-                buffer.truncateHead(bs);
-                Utilities.put(partialBuffers, buffer);
+        }
+        for (SummaryWindow window : windows) {
+            if (inFlight != null) inFlight.addWindow(window);
+            Utilities.put(writerQueue, window);
+        }
+        N += bs;
+        if (inFlight != null) inFlight.retireBuffer(buffer); // its contents are now covered by the windows above
+        if (bs == buffer.size()) {
+            buffer.clear();
+            Utilities.put(emptyBuffers, buffer);
+        } else {
+            buffer.truncateHead(bs);
+            Utilities.put(partialBuffers, buffer);
+        }
+        return true;
+    }
+
+    /** Insert the buffer elements spanned by [window.cs, window.ce] into window */
+    private void summarize(IngestBuffer buffer, SummaryWindow window) {
+        int from = (int) (window.cs - N), to = (int) (window.ce - N) + 1;
+        if (buffer instanceof LongIngestBuffer) { // use the unboxed insert path (see LongWindowOperator)
+            LongIngestBuffer longBuffer = (LongIngestBuffer) buffer;
+            windowManager.insertIntoSummaryWindow(window, from, to, longBuffer::getTimestamp, longBuffer::getLongValue);
+        } else if (buffer instanceof DoubleIngestBuffer) { // ditto, see DoubleWindowOperator
+            DoubleIngestBuffer doubleBuffer = (DoubleIngestBuffer) buffer;
+            windowManager.insertDoublesIntoSummaryWindow(window, from, to,
+                    doubleBuffer::getTimestamp, doubleBuffer::getDoubleValue);
+        } else {
+            for (int c = from; c < to; ++c) {
+                windowManager.insertIntoSummaryWindow(window, buffer.getTimestamp(c), buffer.getValue(c));
             }
         }
     }
 
+    /**
+     * Summarize windows concurrently on executor, one task per window. Windows are never split, so every aggregate is
+     * built by the same sequence of inserts as in serial mode (sketch operators give identical results). Windows are
+     * still handed to the Writer in order by our caller.
+     */
+    private void summarizeInParallel(IngestBuffer buffer, SummaryWindow[] windows) {
+        try {
+            // windows are oldest (and longest) first, which helps load balance
+            executor.runAll(Arrays.asList(windows), 1, window -> summarize(buffer, window));
+        } catch (BackingStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private int getNumWindowsCovering(IngestBuffer buffer) {
         if (buffer.isFull()) {
             return windowLengths.length;
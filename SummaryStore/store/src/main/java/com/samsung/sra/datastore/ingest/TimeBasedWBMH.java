@@ -0,0 +1,243 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.SummaryWindow;
+import com.samsung.sra.datastore.Utilities;
+import com.samsung.sra.datastore.Windowing;
+import com.samsung.sra.datastore.storage.BackingStoreException;
+import com.samsung.sra.datastore.storage.StreamWindowManager;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * WBMH over time instead of counts: the Windowing's lengths are read as multiples of timeUnit, so windows are merged
+ * as data ages rather than as more data arrives, and the number of windows a stream holds depends only on how much
+ * time it spans (never more than the Windowing has at that many time units), not on its arrival rate or burstiness.
+ *
+ * The time axis is cut into slots of windowing.getSizeOfFirstWindow() time units, aligned to multiples of the slot
+ * length in timestamp units. Appends aggregate straight into the window for the current slot on the calling thread
+ * (slots play the role of CountBasedWBMH's window-aligned ingest buffers); once a value for a later slot arrives the
+ * window is handed to a Writer and Merger pipeline like CountBasedWBMH's. Empty slots produce no windows: the Merger
+ * counts each window as extending back to the end of the previous one.
+ */
+public class TimeBasedWBMH implements WBMH {
+    /** Used to throttle Writer and Merger input queues */
+    private static final int MAX_QUEUE_SIZE = 10_000;
+
+    private transient StreamWindowManager windowManager;
+    private transient InFlightData inFlight;
+    /** Set once close() has shut down the pipeline; reset by deserialization, which starts a new one */
+    private transient boolean closed = false;
+
+    private final Windowing windowing;
+    private final SlotClock clock;
+
+    private final Writer writer;
+    private final HeapMerger merger;
+    private final CountBasedWBMH.FlushBarrier flushBarrier;
+    private final StageQueue<SummaryWindow> writerQueue;
+    private final StageQueue<Merger.WindowInfo> mergerQueue;
+
+    /** Window for the newest slot, still being appended to. Always null after flush (and so when serialized) */
+    private transient SummaryWindow openWindow = null;
+    private long openSlot = -1;
+    private long N = 0;
+
+    /**
+     * @param windowing  window lengths in time units
+     * @param timeUnit  length of one time unit in timestamp units, e.g. 1000 for windowing in seconds over
+     *                  timestamps in milliseconds
+     */
+    public TimeBasedWBMH(Windowing windowing, long timeUnit) {
+        if (timeUnit < 1) throw new IllegalArgumentException("time unit must be positive");
+        this.windowing = windowing;
+        this.clock = new SlotClock(timeUnit, windowing.getSizeOfFirstWindow());
+        writerQueue = new StageQueue<>(new LinkedBlockingQueue<>(MAX_QUEUE_SIZE));
+        mergerQueue = new StageQueue<>(new LinkedBlockingQueue<>(MAX_QUEUE_SIZE));
+        flushBarrier = new CountBasedWBMH.FlushBarrier();
+        writer = new Writer(writerQueue, mergerQueue, flushBarrier, clock);
+        merger = new HeapMerger(windowing, mergerQueue, flushBarrier, 1);
+    }
+
+    /** See CountBasedWBMH.setWindowsPerMergeBatch. WARNING: please ensure stream has been flushed before calling */
+    public TimeBasedWBMH setWindowsPerMergeBatch(long W) {
+        merger.setWindowsPerMergeBatch(W);
+        return this;
+    }
+
+    /** See CountBasedWBMH.setWriteBatchSize */
+    public TimeBasedWBMH setWriteBatchSize(int windows) {
+        if (windows < 1) throw new IllegalArgumentException("write batch size must be positive");
+        writer.setMaxBatchSize(windows);
+        return this;
+    }
+
+    public long getTimeUnit() {
+        return clock.timeUnit;
+    }
+
+    @Override
+    public Windowing getWindowing() {
+        return windowing;
+    }
+
+    @Override
+    public void populateTransientFields(StreamWindowManager windowManager, IngestScheduler scheduler,
+                                        MergeExecutor mergeExecutor) {
+        this.windowManager = windowManager;
+        this.inFlight = new InFlightData();
+        writer.populateTransientFields(windowManager, inFlight);
+        merger.populateTransientFields(windowManager);
+        if (scheduler != null) {
+            scheduler.schedule(writer, writerQueue);
+            scheduler.schedule(merger, mergerQueue);
+        } else {
+            new Thread(writer, windowManager.streamID + "-writer").start();
+            new Thread(merger, windowManager.streamID + "-merger").start();
+        }
+    }
+
+    /** Return the window for ts's slot, first handing the open window (if it is for an older slot) to the Writer */
+    private SummaryWindow getWindowFor(long ts) {
+        if (clock.epoch == -1) clock.epoch = Math.floorDiv(ts, clock.slotTimestamps) * clock.slotTimestamps;
+        long slot = clock.slotOf(ts);
+        if (openWindow != null && slot != openSlot) closeOpenWindow();
+        if (openWindow == null) {
+            openWindow = windowManager.createEmptySummaryWindow(ts, ts, N, N);
+            openSlot = slot;
+        }
+        return openWindow;
+    }
+
+    private void closeOpenWindow() {
+        if (openWindow == null) return;
+        inFlight.addWindow(openWindow);
+        Utilities.put(writerQueue, openWindow);
+        openWindow = null;
+    }
+
+    @Override
+    public void append(long ts, Object value) {
+        SummaryWindow window = getWindowFor(ts);
+        window.te = ts;
+        window.ce = N;
+        windowManager.insertIntoSummaryWindow(window, ts, value);
+        ++N;
+    }
+
+    /** Inserts each run of values falling into the same slot with one batch insert */
+    @Override
+    public void appendBatch(long[] timestamps, long[] values, int off, int len) {
+        for (int from = off, to; from < off + len; from = to) {
+            SummaryWindow window = getWindowFor(timestamps[from]);
+            to = endOfSlot(timestamps, from, off + len);
+            window.te = timestamps[to - 1];
+            window.ce = N + (to - from) - 1;
+            windowManager.insertIntoSummaryWindow(window, from, to, i -> timestamps[i], i -> values[i]);
+            N += to - from;
+        }
+    }
+
+    /** Double-valued version of appendBatch(long[], long[], int, int) */
+    @Override
+    public void appendBatch(long[] timestamps, double[] values, int off, int len) {
+        for (int from = off, to; from < off + len; from = to) {
+            SummaryWindow window = getWindowFor(timestamps[from]);
+            to = endOfSlot(timestamps, from, off + len);
+            window.te = timestamps[to - 1];
+            window.ce = N + (to - from) - 1;
+            windowManager.insertDoublesIntoSummaryWindow(window, from, to, i -> timestamps[i], i -> values[i]);
+            N += to - from;
+        }
+    }
+
+    /** Index after the last of timestamps[from, end) falling into the same slot as timestamps[from] */
+    private int endOfSlot(long[] timestamps, int from, int end) {
+        long slotEnd = clock.epoch + (openSlot + 1) * clock.slotTimestamps; // first timestamp of the next slot
+        int to = from + 1;
+        while (to < end && timestamps[to] < slotEnd) ++to;
+        return to;
+    }
+
+    /**
+     * Snapshot of everything not yet in the backing store, including a copy of the open window. Must be serialized
+     * with appends
+     */
+    @Override
+    public InFlightSnapshot snapshotInFlight(long t0, long t1) {
+        InFlightSnapshot snapshot = inFlight.snapshot(t0, t1);
+        if (openWindow != null && openWindow.ts <= t1 && openWindow.te >= t0) {
+            snapshot.addWindow(windowManager.getMergedSummaryWindow(openWindow));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Also closes the open window, so that it becomes visible to queries. Should more values for the same slot follow,
+     * they start a new window spanning zero time units, which the Merger folds into its predecessor
+     */
+    private void flush(boolean shutdown) {
+        long threshold = flushBarrier.getNextFlushThreshold();
+        closeOpenWindow();
+        Utilities.put(writerQueue, shutdown ? Writer.SHUTDOWN_SENTINEL : Writer.FLUSH_SENTINEL);
+        flushBarrier.wait(CountBasedWBMH.FlushBarrier.WRITER, threshold);
+        Utilities.put(mergerQueue, shutdown ? Merger.SHUTDOWN_SENTINEL : Merger.FLUSH_SENTINEL);
+        flushBarrier.wait(CountBasedWBMH.FlushBarrier.MERGER, threshold);
+    }
+
+    @Override
+    public void flush() {
+        flush(false);
+    }
+
+    /** Only the first call has any effect */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        flush(true);
+    }
+
+    /**
+     * Maps timestamps to slots, and measures windows for the Merger in time units: each window extends from the end
+     * of the previous one to the end of its own (last) slot
+     */
+    private static class SlotClock implements Writer.WindowMeasure {
+        private final long timeUnit, slotLength, slotTimestamps;
+        /** Timestamp at which time unit 0 starts, set by the appending thread before it hands off the first window */
+        private long epoch = -1;
+        /** Time unit at which the last window measured ends (exclusive); only used on the Writer thread */
+        private long lastEnd = 0;
+
+        private SlotClock(long timeUnit, long slotLength) {
+            this.timeUnit = timeUnit;
+            this.slotLength = slotLength;
+            this.slotTimestamps = Math.multiplyExact(timeUnit, slotLength);
+        }
+
+        private long slotOf(long ts) {
+            return (ts - epoch) / slotTimestamps;
+        }
+
+        @Override
+        public long sizeOf(SummaryWindow window) {
+            long end = (slotOf(window.te) + 1) * slotLength, size = end - lastEnd;
+            lastEnd = end;
+            return size;
+        }
+    }
+}
@@ -67,25 +67,29 @@ class UnbatchedHeapMerger extends Merger {
 
     @Override
     public void run() {
+        while (process(Utilities.take(newWindowNotifications))) {
+        }
+    }
+
+    @Override
+    public boolean process(Merger.WindowInfo newWindow) {
         try {
-            while (true) {
-                Merger.WindowInfo newWindow = Utilities.take(newWindowNotifications);
-                if (newWindow == SHUTDOWN_SENTINEL) {
-                    flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
-                    break;
-                } else if (newWindow == FLUSH_SENTINEL) {
-                    flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
-                    continue;
-                }
-                long newWindowID = newWindow.id, newWindowSize = newWindow.size;
-                N += newWindowSize;
-                Long lastWindowID = windowInfo.getLastSWID();
-                if (lastWindowID != null) {
-                    updateMergeCountFor(lastWindowID, newWindowID, windowInfo.getCStart(lastWindowID), N - 1, N);
-                }
-                windowInfo.put(newWindowID, N - 1);
-                processPendingMerges();
+            if (newWindow == SHUTDOWN_SENTINEL) {
+                flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
+                return false;
+            } else if (newWindow == FLUSH_SENTINEL) {
+                flushBarrier.notify(CountBasedWBMH.FlushBarrier.MERGER);
+                return true;
+            }
+            long newWindowID = newWindow.id, newWindowSize = newWindow.size;
+            N += newWindowSize;
+            Long lastWindowID = windowInfo.getLastSWID();
+            if (lastWindowID != null) {
+                updateMergeCountFor(lastWindowID, newWindowID, windowInfo.getCStart(lastWindowID), N - 1, N);
             }
+            windowInfo.put(newWindowID, N - 1);
+            processPendingMerges();
+            return true;
         } catch (BackingStoreException e) {
             throw new RuntimeException(e);
         }
@@ -108,9 +112,10 @@ class UnbatchedHeapMerger extends Merger {
             {
                 SummaryWindow w0 = windowManager.getSummaryWindow(w0ID);
                 SummaryWindow w1 = windowManager.getSummaryWindow(w1ID);
-                windowManager.deleteSummaryWindow(w1ID);
-                windowManager.mergeSummaryWindows(w0, w1);
-                windowManager.putSummaryWindow(w0);
+                StreamWindowManager.SummaryWindowBatch batch = windowManager.newSummaryWindowBatch();
+                batch.delete(w1ID);
+                batch.put(windowManager.getMergedSummaryWindow(w0, w1));
+                batch.commit(); // apply the merge atomically
             }
 
             WindowInfo.Info oldW1info = windowInfo.remove(w1ID);
@@ -0,0 +1,54 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.Windowing;
+import com.samsung.sra.datastore.storage.BackingStoreException;
+import com.samsung.sra.datastore.storage.StreamWindowManager;
+
+import java.io.Serializable;
+
+/**
+ * Maintains one stream's decayed summary windows: ingests appended values into new windows and merges older windows
+ * as the Windowing dictates. CountBasedWBMH ages windows by element count, TimeBasedWBMH by elapsed time. Stream calls
+ * into this interface only, so either can be passed to SummaryStore.registerStream.
+ */
+public interface WBMH extends Serializable {
+    /**
+     * Attach to the stream's window manager and start the ingest pipeline, running its stages on the specified
+     * store-wide scheduler (or on dedicated threads if null) and issuing parallel work on mergeExecutor (or a private
+     * pool if null)
+     */
+    void populateTransientFields(StreamWindowManager windowManager, IngestScheduler scheduler,
+                                 MergeExecutor mergeExecutor);
+
+    Windowing getWindowing();
+
+    void append(long ts, Object value) throws BackingStoreException;
+
+    void appendBatch(long[] timestamps, long[] values, int off, int len) throws BackingStoreException;
+
+    void appendBatch(long[] timestamps, double[] values, int off, int len) throws BackingStoreException;
+
+    /** See CountBasedWBMH.snapshotInFlight */
+    InFlightSnapshot snapshotInFlight(long t0, long t1);
+
+    /** Write everything appended so far to the backing store and issue all pending merges */
+    void flush() throws BackingStoreException;
+
+    /** Flush and stop the ingest pipeline */
+    void close() throws BackingStoreException;
+}
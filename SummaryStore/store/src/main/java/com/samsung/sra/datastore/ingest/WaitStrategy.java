@@ -0,0 +1,51 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a pipeline stage waits on an empty (or full) ring buffer, see CountBasedWBMH(Windowing, WaitStrategy). Listed in
+ * decreasing order of handoff latency and CPU burned while idle.
+ */
+public enum WaitStrategy {
+    /** Spin on the CPU. Lowest latency, but each waiting stage keeps a core busy */
+    BUSY_SPIN,
+    /** Spin, yielding the CPU to other threads between attempts */
+    YIELD,
+    /** Sleep briefly between attempts. Good default when there are more stages than cores */
+    PARK;
+
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** Called once per failed attempt */
+    void idle() throws InterruptedException {
+        switch (this) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
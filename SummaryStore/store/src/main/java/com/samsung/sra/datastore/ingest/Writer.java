@@ -21,47 +21,109 @@ import com.samsung.sra.datastore.SummaryWindow;
 import com.samsung.sra.datastore.Utilities;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-/** Write SummaryWindows to backing store and notify merger */
-class Writer implements Runnable, Serializable {
+/**
+ * Write SummaryWindows to backing store and notify merger. Windows are grouped into batches which are committed
+ * whenever the input queue runs dry, the batch reaches maxBatchSize windows, or the oldest window in it has waited
+ * MAX_BATCH_DELAY. The merger is only notified about a window once its batch is committed.
+ */
+class Writer implements PipelineStage<SummaryWindow>, Serializable {
     static final SummaryWindow SHUTDOWN_SENTINEL = new SummaryWindow();
     static final SummaryWindow FLUSH_SENTINEL = new SummaryWindow();
+    static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    private static final long MAX_BATCH_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
 
     private final BlockingQueue<SummaryWindow> windowsToWrite; // input queue
     private final BlockingQueue<Merger.WindowInfo> newWindowNotifications; // output queue, feeding into Merger
     private final CountBasedWBMH.FlushBarrier flushBarrier;
 
+    private final WindowMeasure windowMeasure;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
     private transient StreamWindowManager windowManager;
+    private transient StreamWindowManager.SummaryWindowBatch batch;
+    private transient List<SummaryWindow> batchedWindows;
+    private transient long batchStartTime;
+    private transient InFlightData inFlight;
 
     Writer(BlockingQueue<SummaryWindow> windowsToWrite, BlockingQueue<Merger.WindowInfo> newWindowNotifications,
            CountBasedWBMH.FlushBarrier flushBarrier) {
+        this(windowsToWrite, newWindowNotifications, flushBarrier, window -> window.ce - window.cs + 1);
+    }
+
+    /** Report each window to the Merger with the size windowMeasure assigns it, instead of its element count */
+    Writer(BlockingQueue<SummaryWindow> windowsToWrite, BlockingQueue<Merger.WindowInfo> newWindowNotifications,
+           CountBasedWBMH.FlushBarrier flushBarrier, WindowMeasure windowMeasure) {
         this.windowsToWrite = windowsToWrite;
         this.newWindowNotifications = newWindowNotifications;
         this.flushBarrier = flushBarrier;
+        this.windowMeasure = windowMeasure;
     }
 
-    void populateTransientFields(StreamWindowManager windowManager) {
+    /**
+     * Size of a window along the axis the Windowing is defined over. Called on each window in write order, so
+     * implementations may keep state (e.g. where the previous window ended)
+     */
+    interface WindowMeasure extends Serializable {
+        long sizeOf(SummaryWindow window);
+    }
+
+    void populateTransientFields(StreamWindowManager windowManager, InFlightData inFlight) {
         this.windowManager = windowManager;
+        this.inFlight = inFlight;
+        this.batch = windowManager.newSummaryWindowBatch();
+        this.batchedWindows = new ArrayList<>();
+    }
+
+    /** Set to 1 to write each window individually */
+    void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
     }
 
     @Override
     public void run() {
+        while (process(Utilities.take(windowsToWrite))) {
+        }
+    }
+
+    @Override
+    public boolean process(SummaryWindow window) {
+        if (window == SHUTDOWN_SENTINEL) {
+            commitBatch();
+            flushBarrier.notify(CountBasedWBMH.FlushBarrier.WRITER);
+            return false;
+        } else if (window == FLUSH_SENTINEL) {
+            commitBatch();
+            flushBarrier.notify(CountBasedWBMH.FlushBarrier.WRITER);
+            return true;
+        }
+        if (batchedWindows.isEmpty()) {
+            batchStartTime = System.nanoTime();
+        }
+        batch.put(window);
+        batchedWindows.add(window);
+        if (batchedWindows.size() >= maxBatchSize || windowsToWrite.isEmpty()
+                || System.nanoTime() - batchStartTime >= MAX_BATCH_DELAY) {
+            commitBatch();
+        }
+        return true;
+    }
+
+    private void commitBatch() {
+        if (batchedWindows.isEmpty()) return;
         try {
-            while (true) {
-                SummaryWindow window = Utilities.take(windowsToWrite);
-                if (window == SHUTDOWN_SENTINEL) {
-                    flushBarrier.notify(CountBasedWBMH.FlushBarrier.WRITER);
-                    break;
-                } else if (window == FLUSH_SENTINEL) {
-                    flushBarrier.notify(CountBasedWBMH.FlushBarrier.WRITER);
-                    continue;
-                }
-                windowManager.putSummaryWindow(window);
-                Utilities.put(newWindowNotifications, new Merger.WindowInfo(window.ts, window.ce - window.cs + 1));
-            }
+            batch.commit();
         } catch (BackingStoreException e) {
             throw new RuntimeException(e);
         }
+        for (SummaryWindow window : batchedWindows) {
+            if (inFlight != null) inFlight.retireWindow(window);
+            Utilities.put(newWindowNotifications, new Merger.WindowInfo(window.ts, windowMeasure.sizeOf(window)));
+        }
+        batchedWindows.clear();
     }
 }
@@ -17,7 +17,11 @@ package com.samsung.sra.datastore.storage;
 
 import com.samsung.sra.datastore.LandmarkWindow;
 import com.samsung.sra.datastore.SummaryWindow;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Stream;
 
 /**
@@ -27,6 +31,20 @@ import java.util.stream.Stream;
 public abstract class BackingStore implements AutoCloseable {
     abstract SummaryWindow getSummaryWindow(long streamID, long swid, SerDe serDe) throws BackingStoreException;
 
+    /**
+     * Get the windows with the given IDs (sorted ascending) as a new list in the same order, skipping any that are not
+     * stored. Used to fetch the windows a read index says overlap a query. Backing stores that can read many keys more
+     * cheaply than with one getSummaryWindow each should override; the default issues the gets one by one.
+     */
+    List<SummaryWindow> getSummaryWindows(long streamID, LongList swids, SerDe serDe) throws BackingStoreException {
+        List<SummaryWindow> windows = new ArrayList<>(swids.size());
+        for (int i = 0; i < swids.size(); ++i) {
+            SummaryWindow window = getSummaryWindow(streamID, swids.getLong(i), serDe);
+            if (window != null) windows.add(window);
+        }
+        return windows;
+    }
+
     /**
      * Optional. If using a backing store that does not override this method, must enable read indexes in SummaryStore
      * (which will be used to issue point queries for each window)
@@ -40,6 +58,46 @@ public abstract class BackingStore implements AutoCloseable {
 
     abstract void putSummaryWindow(long streamID, long swid, SerDe serDe, SummaryWindow window) throws BackingStoreException;
 
+    /**
+     * Apply a sequence of mutations to one stream's summary windows as a single atomic write: windows.get(i) is put at
+     * swids.get(i), or swid is deleted if windows.get(i) is null. Backing stores with a native batch API should
+     * override; the default issues the mutations one by one.
+     */
+    void writeSummaryWindows(long streamID, SerDe serDe, LongList swids, List<SummaryWindow> windows)
+            throws BackingStoreException {
+        for (int i = 0; i < swids.size(); ++i) {
+            SummaryWindow window = windows.get(i);
+            if (window != null) {
+                putSummaryWindow(streamID, swids.getLong(i), serDe, window);
+            } else {
+                deleteSummaryWindow(streamID, swids.getLong(i), serDe);
+            }
+        }
+    }
+
+    /**
+     * As above, additionally deleting all windows with swid in [rangeDeletes.get(2i), rangeDeletes.get(2i + 1)] for
+     * each i, before applying the other mutations. Backing stores with a native range delete should override; the
+     * default looks up the windows in each range with getSummaryWindowsOverlapping and deletes them one by one.
+     */
+    void writeSummaryWindows(long streamID, SerDe serDe, LongList swids, List<SummaryWindow> windows,
+                             LongList rangeDeletes) throws BackingStoreException {
+        LongArrayList allSwids = new LongArrayList();
+        List<SummaryWindow> allWindows = new ArrayList<>();
+        for (int i = 0; i < rangeDeletes.size(); i += 2) {
+            long first = rangeDeletes.getLong(i), last = rangeDeletes.getLong(i + 1);
+            getSummaryWindowsOverlapping(streamID, first, last, serDe)
+                    .filter(w -> first <= w.ts && w.ts <= last)
+                    .forEach(w -> {
+                        allSwids.add(w.ts);
+                        allWindows.add(null);
+                    });
+        }
+        allSwids.addAll(swids);
+        allWindows.addAll(windows);
+        writeSummaryWindows(streamID, serDe, allSwids, allWindows);
+    }
+
     /**
      * Optional. If using a backing store that does not override this method, must enable read indexes in SummaryStore
      */
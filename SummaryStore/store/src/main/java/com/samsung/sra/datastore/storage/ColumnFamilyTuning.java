@@ -0,0 +1,164 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.storage;
+
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.RocksObject;
+
+import java.util.List;
+
+/**
+ * RocksDB settings for one of RocksDBBackingStore's column families (summary windows, landmark windows, aux data).
+ * Each family gets its own memtables, SST files and block cache, so e.g. merge churn on summary windows does not evict
+ * landmark or metadata blocks. See SummaryStore.StoreOptions.setSummaryColumnFamily and friends.
+ */
+public class ColumnFamilyTuning {
+    private CompactionStyle compactionStyle = CompactionStyle.LEVEL;
+    private CompressionType compressionType = CompressionType.SNAPPY_COMPRESSION;
+    private long blockSize;
+    private long blockCacheSize;
+    private long writeBufferSize;
+    private int prefixLength = 0;
+    private int bloomBitsPerKey = 0;
+
+    public ColumnFamilyTuning(long blockSize, long blockCacheSize, long writeBufferSize) {
+        setBlockSize(blockSize);
+        setBlockCacheSize(blockCacheSize);
+        setWriteBufferSize(writeBufferSize);
+    }
+
+    /**
+     * Large blocks and cache: windows are read in long range scans and rewritten constantly by merges. Scans never
+     * leave one stream, so filters are built over the 8-byte stream ID prefix of the key
+     */
+    public static ColumnFamilyTuning forSummaryWindows(boolean readonly) {
+        return new ColumnFamilyTuning(256L * 1024, readonly ? 512L * 1024 * 1024 : 30L * 1024 * 1024 * 1024,
+                64L * 1024 * 1024)
+                .setPrefixLength(8)
+                .setBloomBitsPerKey(10);
+    }
+
+    /** Landmark windows are written once, on flush, and read by point lookups */
+    public static ColumnFamilyTuning forLandmarkWindows() {
+        return new ColumnFamilyTuning(64L * 1024, 256L * 1024 * 1024, 16L * 1024 * 1024)
+                .setBloomBitsPerKey(10);
+    }
+
+    /** Aux data (store metadata and application key-value pairs) is small and read by point lookups */
+    public static ColumnFamilyTuning forAux() {
+        return new ColumnFamilyTuning(16L * 1024, 32L * 1024 * 1024, 4L * 1024 * 1024)
+                .setBloomBitsPerKey(10);
+    }
+
+    /** LEVEL (default) or UNIVERSAL. FIFO is not allowed, since it silently drops old data */
+    public ColumnFamilyTuning setCompactionStyle(CompactionStyle compactionStyle) {
+        if (compactionStyle == CompactionStyle.FIFO) {
+            throw new IllegalArgumentException("FIFO compaction would drop windows");
+        }
+        this.compactionStyle = compactionStyle;
+        return this;
+    }
+
+    /** Default SNAPPY_COMPRESSION */
+    public ColumnFamilyTuning setCompressionType(CompressionType compressionType) {
+        this.compressionType = compressionType;
+        return this;
+    }
+
+    /** Size (bytes) of SST data blocks, the unit of block cache reads */
+    public ColumnFamilyTuning setBlockSize(long blockSize) {
+        if (blockSize <= 0) throw new IllegalArgumentException("block size must be positive");
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /** Size (bytes) of this column family's private block cache */
+    public ColumnFamilyTuning setBlockCacheSize(long blockCacheSize) {
+        if (blockCacheSize < 0) throw new IllegalArgumentException("negative block cache size");
+        this.blockCacheSize = blockCacheSize;
+        return this;
+    }
+
+    /** Size (bytes) of each memtable. SST files are sized at 8 memtables */
+    public ColumnFamilyTuning setWriteBufferSize(long writeBufferSize) {
+        if (writeBufferSize <= 0) throw new IllegalArgumentException("write buffer size must be positive");
+        this.writeBufferSize = writeBufferSize;
+        return this;
+    }
+
+    /**
+     * Length (bytes) of the key prefix that prefix seeks stay within and that bloom filters (and memtable bloom
+     * filters) are also built over. 0 (default) disables prefix extraction, so iterators run in total order
+     */
+    public ColumnFamilyTuning setPrefixLength(int prefixLength) {
+        if (prefixLength < 0) throw new IllegalArgumentException("negative prefix length");
+        this.prefixLength = prefixLength;
+        return this;
+    }
+
+    /** Bloom filter bits per key in each SST file, e.g. 10 for a ~1% false positive rate. 0 (default) disables */
+    public ColumnFamilyTuning setBloomBitsPerKey(int bloomBitsPerKey) {
+        if (bloomBitsPerKey < 0) throw new IllegalArgumentException("negative bloom bits per key");
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        return this;
+    }
+
+    int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Caller must close the returned object after the DB. Any other native objects the options refer to are added to
+     * owned, and must be closed along with it
+     */
+    ColumnFamilyOptions toColumnFamilyOptions(List<RocksObject> owned) {
+        BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+                .setBlockSize(blockSize)
+                .setBlockCacheSize(blockCacheSize)
+                .setCacheIndexAndFilterBlocks(true);
+        if (bloomBitsPerKey > 0) {
+            // full (not block-based) filters, so that a prefix seek can skip whole SST files. With a prefix extractor
+            // the filter holds both prefixes and whole keys, so point lookups still benefit
+            BloomFilter filter = new BloomFilter(bloomBitsPerKey, false);
+            owned.add(filter);
+            tableConfig.setFilter(filter).setWholeKeyFiltering(true);
+        }
+        ColumnFamilyOptions options = new ColumnFamilyOptions()
+                .setCompactionStyle(compactionStyle)
+                .setCompressionType(compressionType)
+                .setWriteBufferSize(writeBufferSize)
+                .setMaxWriteBufferNumber(16)
+                .setMinWriteBufferNumberToMerge(4)
+                .setLevel0FileNumCompactionTrigger(4)
+                .setLevel0SlowdownWritesTrigger(10_000)
+                .setLevel0StopWritesTrigger(10_000)
+                .setSoftPendingCompactionBytesLimit(1_000_000_000_000_000L)
+                .setHardPendingCompactionBytesLimit(1_000_000_000_000_000L)
+                .setTargetFileSizeBase(8 * writeBufferSize)
+                .setMaxBytesForLevelBase(8 * writeBufferSize * 4 * 4)
+                .setLevelCompactionDynamicLevelBytes(true)
+                .setTableFormatConfig(tableConfig);
+        if (prefixLength > 0) {
+            options.useFixedLengthPrefixExtractor(prefixLength)
+                    .setMemtablePrefixBloomSizeRatio(0.1);
+        }
+        return options;
+    }
+}
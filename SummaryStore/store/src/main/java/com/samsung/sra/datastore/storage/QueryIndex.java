@@ -34,6 +34,11 @@ class QueryIndex implements Serializable {
         tStarts.remove(tStart);
     }
 
+    /** Remove all windows with tStart in [first, last] */
+    void removeRange(long first, long last) {
+        tStarts.subSet(first, last + 1).clear();
+    }
+
     /**
      * Get windows that might overlap [t0, t1], specifically
      *     [last window with tStart < t0, ..., last window with tStart <= t1]
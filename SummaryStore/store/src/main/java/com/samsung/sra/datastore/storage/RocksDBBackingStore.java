@@ -20,38 +20,74 @@ import com.samsung.sra.datastore.SummaryWindow;
 import com.samsung.sra.datastore.Utilities;
 import org.rocksdb.*;
 import org.slf4j.Logger;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongLists;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class RocksDBBackingStore extends BackingStore {
     private static final Logger logger = LoggerFactory.getLogger(RocksDBBackingStore.class);
 
+    private static final byte[] SUMMARY_COLUMN_FAMILY = "summaries".getBytes();
+    private static final byte[] LANDMARK_COLUMN_FAMILY = "landmarks".getBytes();
+
     private final RocksDB rocksDB;
-    private final Options rocksDBOptions;
+    private final DBOptions rocksDBOptions;
+    /** Column family options, and native objects (e.g. bloom filters) they refer to */
+    private final List<RocksObject> columnFamilyResources = new ArrayList<>();
+    private final List<ColumnFamilyHandle> columnFamilyHandles = new ArrayList<>();
+    /** Summary windows, landmark windows and aux data. Aux data lives in the default column family */
+    private final ColumnFamilyHandle summaryCF, landmarkCF, auxCF;
     private final WriteOptions rocksDBWriteOptions;
-    private final long cacheSizePerStream;
-    /** Map streamID -> windowID -> window */
-    private final ConcurrentHashMap<Long, ConcurrentHashMap<Long, SummaryWindow>> cache;
+    /**
+     * Scans over one stream's summary windows stay within its 8-byte key prefix (see
+     * ColumnFamilyTuning.setPrefixLength), which lets RocksDB use prefix bloom filters to skip SST files and memtables
+     * holding no windows of the stream. totalOrderReadOptions is for the rare seek that must cross stream boundaries
+     */
+    private final ReadOptions prefixReadOptions, totalOrderReadOptions;
+    /** Deserialized summary windows from all streams, or null if caching is disabled */
+    private final WindowCache cache;
 
     /**
      * @param rocksPath  on-disk path
-     * @param cacheSizePerStream  number of elements per stream to cache in main memory. Set to 0 to disable caching.
-     *                            Should only be used in readonly mode
+     * @param cacheBytes  approximate heap budget (shared by all streams) for caching deserialized summary windows. Set
+     *                    to 0 to disable caching
      * @throws BackingStoreException  wrapping RocksDBException
      */
-    public RocksDBBackingStore(String rocksPath, long cacheSizePerStream, boolean readonly) throws BackingStoreException {
-        this.cacheSizePerStream = cacheSizePerStream;
-        cache = cacheSizePerStream > 0 ? new ConcurrentHashMap<>() : null;
+    public RocksDBBackingStore(String rocksPath, long cacheBytes, boolean readonly) throws BackingStoreException {
+        this(rocksPath, cacheBytes, readonly, null, null, null);
+    }
+
+    /**
+     * Pass null for any of the column family tunings to use its defaults (see ColumnFamilyTuning.forSummaryWindows
+     * etc). Stores written before summary and landmark windows got their own column families are migrated on open
+     * (or, in readonly mode, read from the default column family).
+     */
+    public RocksDBBackingStore(String rocksPath, long cacheBytes, boolean readonly,
+                               ColumnFamilyTuning summaryTuning, ColumnFamilyTuning landmarkTuning,
+                               ColumnFamilyTuning auxTuning) throws BackingStoreException {
+        cache = cacheBytes > 0 ? new WindowCache(cacheBytes) : null;
+        if (summaryTuning == null) summaryTuning = ColumnFamilyTuning.forSummaryWindows(readonly);
+        if (landmarkTuning == null) landmarkTuning = ColumnFamilyTuning.forLandmarkWindows();
+        if (auxTuning == null) auxTuning = ColumnFamilyTuning.forAux();
         // FIXME: take from external conf rather than hard-coding. Current settings are for our default test hardware
-        rocksDBOptions = new Options()
+        rocksDBOptions = new DBOptions()
                 .setCreateIfMissing(true)
+                .setCreateMissingColumnFamilies(true)
                 .setDbLogDir("/tmp")
                 .createStatistics()
                 .setStatsDumpPeriodSec(300)
@@ -59,42 +95,79 @@ public class RocksDBBackingStore extends BackingStore {
                 .setMaxBackgroundFlushes(10)
                 .setAllowConcurrentMemtableWrite(true)
                 .setDbWriteBufferSize(512L * 1024 * 1024)
-                .setMaxWriteBufferNumber(16)
-                .setMinWriteBufferNumberToMerge(4)
-                .setLevel0FileNumCompactionTrigger(4)
-                .setLevel0SlowdownWritesTrigger(10_000)
-                .setLevel0StopWritesTrigger(10_000)
-                .setSoftPendingCompactionBytesLimit(1_000_000_000_000_000L)
-                .setHardPendingCompactionBytesLimit(1_000_000_000_000_000L)
-                .setMaxBytesForLevelBase(512L * 1024 * 1024 * 4 * 4)
-                .setTargetFileSizeBase(512L * 1024 * 1024)
-                .setLevelCompactionDynamicLevelBytes(true)
                 .setCompactionReadaheadSize(10L * 1024 * 1024)
                 .setNewTableReaderForCompactionInputs(true)
-                //.setCompactionStyle(CompactionStyle.UNIVERSAL)
-                //.setCompressionType(CompressionType.NO_COMPRESSION)
-                //.setMemTableConfig(new VectorMemTableConfig())
-                .setTableFormatConfig(new BlockBasedTableConfig()
-                        .setBlockSize(256L * 1024)
-                        .setBlockCacheSize(readonly
-                                ? 512 * 1024 * 1024L
-                                : 30 * 1024 * 1024 * 1024L)
-                        .setCacheIndexAndFilterBlocks(true)
-                        //.setFilter(new BloomFilter())
-                )
-                //.setOptimizeFiltersForHits(true)
                 .setMaxOpenFiles(-1);
         rocksDBWriteOptions = new WriteOptions()
                 .setDisableWAL(true);
+        prefixReadOptions = new ReadOptions()
+                .setPrefixSameAsStart(true);
+        totalOrderReadOptions = new ReadOptions()
+                .setTotalOrderSeek(true);
         try {
+            boolean legacy = isLegacyStore(rocksPath);
+            List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+            descriptors.add(newDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, auxTuning));
+            if (!(legacy && readonly)) {
+                descriptors.add(newDescriptor(SUMMARY_COLUMN_FAMILY, summaryTuning));
+                descriptors.add(newDescriptor(LANDMARK_COLUMN_FAMILY, landmarkTuning));
+            }
             rocksDB = readonly
-                    ? RocksDB.openReadOnly(rocksDBOptions, rocksPath)
-                    : RocksDB.open(rocksDBOptions, rocksPath);
+                    ? RocksDB.openReadOnly(rocksDBOptions, rocksPath, descriptors, columnFamilyHandles)
+                    : RocksDB.open(rocksDBOptions, rocksPath, descriptors, columnFamilyHandles);
+            auxCF = columnFamilyHandles.get(0);
+            summaryCF = columnFamilyHandles.size() > 1 ? columnFamilyHandles.get(1) : auxCF;
+            landmarkCF = columnFamilyHandles.size() > 2 ? columnFamilyHandles.get(2) : auxCF;
+            if (legacy && !readonly) migrateLegacyStore();
         } catch (RocksDBException e) {
             throw new BackingStoreException(e);
         }
     }
 
+    private ColumnFamilyDescriptor newDescriptor(byte[] name, ColumnFamilyTuning tuning) {
+        ColumnFamilyOptions options = tuning.toColumnFamilyOptions(columnFamilyResources);
+        columnFamilyResources.add(options);
+        return new ColumnFamilyDescriptor(name, options);
+    }
+
+    /** Whether rocksPath holds a store that keeps everything in the default column family */
+    private static boolean isLegacyStore(String rocksPath) {
+        if (!new File(rocksPath, "CURRENT").exists()) return false; // new store
+        try (Options options = new Options()) {
+            return RocksDB.listColumnFamilies(options, rocksPath).stream()
+                    .noneMatch(name -> Arrays.equals(name, SUMMARY_COLUMN_FAMILY));
+        } catch (RocksDBException e) {
+            return false;
+        }
+    }
+
+    /** Move summary and landmark windows out of the default column family into their own */
+    private void migrateLegacyStore() throws RocksDBException {
+        long moved = 0;
+        try (RocksIterator iter = rocksDB.newIterator(auxCF);
+             WriteOptions writeOptions = new WriteOptions()) { // keep the WAL on: windows are not in memory anywhere
+            WriteBatch batch = new WriteBatch();
+            for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+                byte[] key = iter.key();
+                // aux keys are at least AUX_KEY_MIN_SIZE long, so cannot be mistaken for window keys
+                ColumnFamilyHandle target = key.length == KEY_SIZE ? summaryCF
+                        : key.length == LANDMARK_KEY_SIZE && key[0] == 'L' ? landmarkCF
+                        : null;
+                if (target == null) continue;
+                batch.put(target, key, iter.value());
+                batch.remove(auxCF, key);
+                if (++moved % 10_000 == 0) {
+                    rocksDB.write(writeOptions, batch);
+                    batch.close();
+                    batch = new WriteBatch();
+                }
+            }
+            rocksDB.write(writeOptions, batch);
+            batch.close();
+        }
+        logger.info("migrated {} windows into summary/landmark column families", moved);
+    }
+
     static {
         RocksDB.loadLibrary();
     }
@@ -120,61 +193,216 @@ public class RocksDBBackingStore extends BackingStore {
         return Utilities.byteArrayToLong(key, 8);
     }
 
-    private void insertIntoCache(ConcurrentHashMap<Long, SummaryWindow> streamCache, long swid, SummaryWindow window) {
-        if (streamCache.size() >= cacheSizePerStream) { // evict random
-            Map.Entry<Long, SummaryWindow> evictedEntry = streamCache.entrySet().iterator().next(); // basically a random evict
-            streamCache.remove(evictedEntry.getKey());
-        }
-        streamCache.put(swid, window);
-    }
-
     @Override
     SummaryWindow getSummaryWindow(long streamID, long swid, SerDe serDe) throws BackingStoreException {
-        ConcurrentHashMap<Long, SummaryWindow> streamCache;
         if (cache == null) {
-            streamCache = null;
-        } else {
-            streamCache = cache.get(streamID);
-            if (streamCache == null) cache.put(streamID, streamCache = new ConcurrentHashMap<>());
-        }
-
-        SummaryWindow window = streamCache != null ? streamCache.get(swid) : null;
-        if (window != null) { // cache hit
-            return window;
-        } else { // either no cache or cache miss; read-through from RocksDB
-            byte[] rocksKey = getRocksDBKey(streamID, swid);
             try {
-                byte[] rocksValue = rocksDB.get(rocksKey);
-                window = serDe.deserializeSummaryWindow(rocksValue);
+                return serDe.deserializeSummaryWindow(rocksDB.get(summaryCF, getRocksDBKey(streamID, swid)));
             } catch (RocksDBException e) {
                 throw new BackingStoreException(e);
             }
-            if (streamCache != null) insertIntoCache(streamCache, swid, window);
-            return window;
         }
+        SummaryWindow window = cache.get(streamID, swid);
+        if (window != null) return window;
+        // cache miss; read-through from RocksDB
+        long version = cache.getVersion(streamID);
+        byte[] rocksValue;
+        try {
+            rocksValue = rocksDB.get(summaryCF, getRocksDBKey(streamID, swid));
+        } catch (RocksDBException e) {
+            throw new BackingStoreException(e);
+        }
+        return deserialize(streamID, swid, rocksValue, serDe, version);
+    }
+
+    /**
+     * Up to this many windows are fetched with one multiGet, i.e. one bloom filter check and index lookup per key. Past
+     * it a single iterator scan from the first to the last window is cheaper, since the caller (a read index) asks for
+     * every stored window in between and a scan reads each data block just once
+     */
+    private static final int MAX_MULTIGET_KEYS = 64;
+    private final LongAdder numMultiGets = new LongAdder(), numBatchScans = new LongAdder();
+
+    @Override
+    List<SummaryWindow> getSummaryWindows(long streamID, LongList swids, SerDe serDe) throws BackingStoreException {
+        SummaryWindow[] windows = new SummaryWindow[swids.size()];
+        // cache hits can only be combined with windows fetched from RocksDB if no write begins in between
+        long cacheVersion = cache != null ? cache.getStableVersion(streamID) : -1;
+        IntArrayList misses = new IntArrayList(); // indexes into swids
+        for (int i = 0; i < swids.size(); ++i) {
+            if (cacheVersion != -1) windows[i] = cache.get(streamID, swids.getLong(i));
+            if (windows[i] == null) misses.add(i);
+        }
+        try {
+            fetchSummaryWindows(streamID, swids, misses, serDe, cacheVersion, windows);
+            if (misses.size() < swids.size() && cache.getVersion(streamID) != cacheVersion) {
+                // a write began since we took the hits, so they may not match what we fetched: refetch them too
+                misses.clear();
+                for (int i = 0; i < swids.size(); ++i) {
+                    windows[i] = null;
+                    misses.add(i);
+                }
+                fetchSummaryWindows(streamID, swids, misses, serDe, cacheVersion, windows);
+            }
+        } catch (RocksDBException e) {
+            throw new BackingStoreException(e);
+        }
+        List<SummaryWindow> ret = new ArrayList<>(windows.length);
+        for (SummaryWindow window : windows) {
+            if (window != null) ret.add(window);
+        }
+        return ret;
+    }
+
+    /**
+     * Fill in windows[i] for each i in misses from RocksDB, with one multiGet or one scan. Either reads a consistent
+     * view of the store
+     */
+    private void fetchSummaryWindows(long streamID, LongList swids, IntArrayList misses, SerDe serDe,
+                                     long cacheVersion, SummaryWindow[] windows) throws RocksDBException {
+        if (misses.size() > MAX_MULTIGET_KEYS) {
+            numBatchScans.increment();
+            scanSummaryWindows(streamID, swids, misses, serDe, cacheVersion, windows);
+        } else if (!misses.isEmpty()) {
+            numMultiGets.increment();
+            List<byte[]> keys = new ArrayList<>(misses.size());
+            for (int m = 0; m < misses.size(); ++m) {
+                keys.add(getRocksDBKey(streamID, swids.getLong(misses.getInt(m))));
+            }
+            Map<byte[], byte[]> values = rocksDB.multiGet(Collections.nCopies(keys.size(), summaryCF), keys);
+            for (int m = 0; m < misses.size(); ++m) {
+                byte[] value = values.get(keys.get(m)); // values is keyed by the array instances we passed in
+                int i = misses.getInt(m);
+                if (value != null) windows[i] = deserialize(streamID, swids.getLong(i), value, serDe, cacheVersion);
+            }
+        }
+    }
+
+    /** Fill in windows[i] for each i in misses with one pass of a prefix iterator */
+    private void scanSummaryWindows(long streamID, LongList swids, IntArrayList misses, SerDe serDe,
+                                    long cacheVersion, SummaryWindow[] windows) {
+        long last = swids.getLong(misses.getInt(misses.size() - 1));
+        try (RocksIterator iter = rocksDB.newIterator(summaryCF, prefixReadOptions)) {
+            int m = 0;
+            for (iter.seek(getRocksDBKey(streamID, swids.getLong(misses.getInt(0)))); iter.isValid(); iter.next()) {
+                byte[] key = iter.key();
+                if (key.length != KEY_SIZE || getStreamIDFromRocksDBKey(key) != streamID) break;
+                long swid = getWindowIDFromRocksDBKey(key);
+                if (swid > last) break;
+                while (swids.getLong(misses.getInt(m)) < swid) ++m; // skip requested windows that are not stored
+                if (swids.getLong(misses.getInt(m)) == swid) { // else a window we already had, or did not ask for
+                    int i = misses.getInt(m++);
+                    windows[i] = deserialize(streamID, swid, iter.value(), serDe, cacheVersion);
+                    if (m == misses.size()) break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deserialize a window read from RocksDB, offering it to the cache (see WindowCache.putIfUnchanged). With caching
+     * on, windows are decoded in full even if serDe is a projection (see SerDe.projectedTo): queries always read
+     * through a projection, and a projected window could only serve later queries on the same operator
+     */
+    private SummaryWindow deserialize(long streamID, long swid, byte[] value, SerDe serDe, long cacheVersion) {
+        if (cache == null) return serDe.deserializeSummaryWindow(value);
+        SummaryWindow window = serDe.withAllOperators().deserializeSummaryWindow(value);
+        cache.putIfUnchanged(streamID, swid, window, value.length, cacheVersion);
+        return window;
+    }
+
+    /** Number of summary window reads served from the cache so far, e.g. for monitoring its hit rate */
+    public long getCacheHits() {
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    /** Number of windows the cache has evicted to stay within its byte budget */
+    public long getCacheEvictions() {
+        return cache != null ? cache.getEvictionCount() : 0;
+    }
+
+    /** Number of getSummaryWindows calls that fetched their cache misses with one multiGet */
+    public long getNumMultiGets() {
+        return numMultiGets.sum();
+    }
+
+    /** Number of getSummaryWindows calls that fetched their cache misses with one iterator scan */
+    public long getNumBatchScans() {
+        return numBatchScans.sum();
     }
 
     @Override
     void deleteSummaryWindow(long streamID, long swid, SerDe serDe) throws BackingStoreException {
-        assert cache == null;
+        if (cache != null) cache.beginWrites(streamID);
         try {
             byte[] key = getRocksDBKey(streamID, swid);
-            rocksDB.delete(key);
+            rocksDB.delete(summaryCF, key);
         } catch (RocksDBException e) {
+            if (cache != null) cache.abortWrites(streamID);
             throw new BackingStoreException(e);
         }
+        if (cache != null) {
+            cache.applyWrites(streamID, LongLists.singleton(swid), Collections.singletonList(null), new int[1],
+                    LongLists.EMPTY_LIST);
+        }
     }
 
     @Override
     void putSummaryWindow(long streamID, long swid, SerDe serDe, SummaryWindow window) throws BackingStoreException {
-        assert cache == null;
+        byte[] value = serDe.serializeSummaryWindow(window);
+        if (cache != null) cache.beginWrites(streamID);
         try {
             byte[] key = getRocksDBKey(streamID, swid);
-            byte[] value = serDe.serializeSummaryWindow(window);
-            rocksDB.put(rocksDBWriteOptions, key, value);
+            rocksDB.put(summaryCF, rocksDBWriteOptions, key, value);
         } catch (RocksDBException e) {
+            if (cache != null) cache.abortWrites(streamID);
             throw new BackingStoreException(e);
         }
+        if (cache != null) {
+            cache.applyWrites(streamID, LongLists.singleton(swid), Collections.singletonList(window),
+                    new int[]{value.length}, LongLists.EMPTY_LIST);
+        }
+    }
+
+    /** Issues all mutations as one RocksDB WriteBatch, i.e. a single JNI call and an atomic memtable insert */
+    @Override
+    void writeSummaryWindows(long streamID, SerDe serDe, LongList swids, List<SummaryWindow> windows)
+            throws BackingStoreException {
+        writeSummaryWindows(streamID, serDe, swids, windows, LongLists.EMPTY_LIST);
+    }
+
+    @Override
+    void writeSummaryWindows(long streamID, SerDe serDe, LongList swids, List<SummaryWindow> windows,
+                             LongList rangeDeletes) throws BackingStoreException {
+        int[] serializedSizes = new int[swids.size()];
+        try (WriteBatch batch = new WriteBatch()) {
+            for (int i = 0; i < rangeDeletes.size(); i += 2) {
+                // deleteRange takes a half-open key range
+                batch.deleteRange(summaryCF, getRocksDBKey(streamID, rangeDeletes.getLong(i)),
+                        getRocksDBKey(streamID, rangeDeletes.getLong(i + 1) + 1));
+            }
+            for (int i = 0; i < swids.size(); ++i) {
+                byte[] key = getRocksDBKey(streamID, swids.getLong(i));
+                SummaryWindow window = windows.get(i);
+                if (window != null) {
+                    byte[] value = serDe.serializeSummaryWindow(window);
+                    serializedSizes[i] = value.length;
+                    batch.put(summaryCF, key, value);
+                } else {
+                    batch.remove(summaryCF, key);
+                }
+            }
+            if (cache != null) cache.beginWrites(streamID);
+            try {
+                rocksDB.write(rocksDBWriteOptions, batch);
+            } catch (RocksDBException e) {
+                if (cache != null) cache.abortWrites(streamID);
+                throw e;
+            }
+        } catch (RocksDBException e) {
+            throw new BackingStoreException(e);
+        }
+        if (cache != null) cache.applyWrites(streamID, swids, windows, serializedSizes, rangeDeletes);
     }
 
     /** Iterate over and return all summary windows in RocksDB overlapping the time-range given in the constructor */
@@ -185,41 +413,75 @@ public class RocksDBBackingStore extends BackingStore {
         private final long streamID;
         private final SerDe serde;
         private final long t0, t1;
+        private final long cacheVersion;
 
         private OverlappingRocksIterator(long streamID, long t0, long t1, SerDe serde) throws RocksDBException {
             this.streamID = streamID;
             this.serde = serde;
             this.t0 = t0;
             this.t1 = t1;
+            // before creating the RocksDB iterator, which reads from an implicit snapshot taken at creation. Cache hits
+            // are only used while the version stays the same, i.e. while the cache matches the snapshot
+            this.cacheVersion = cache != null ? cache.getStableVersion(streamID) : -1;
 
-            // Note that Stream.query() ensures stream (1) is non-empty, (2) time interval [T0, T1] fully covers [t0, t1]
-            rocksIterator = rocksDB.newIterator();
+            rocksIterator = rocksDB.newIterator(summaryCF, prefixReadOptions);
             rocksIterator.seek(getRocksDBKey(streamID, t0));
-            assert rocksIterator.isValid();
-            nextWindow = readFromRocksIterator();
-            if (nextWindow == null) { // only one window in stream and t0 > T0
-                rocksIterator.seek(getRocksDBKey(streamID, 0));
-                nextWindow = readFromRocksIterator();
-                assert nextWindow != null;
+            /* rocksIterator now points to the first key >= (streamID, t0). Unless that is a window starting exactly at
+             * t0, we also need to return the window just before it (the last window with start timestamp < t0, which
+             * may overlap t0), so we step back one key. */
+            if (isAtWindowOfThisStream()) {
+                if (getWindowIDFromRocksDBKey(rocksIterator.key()) != t0) {
+                    rocksIterator.prev();
+                    if (!isAtWindowOfThisStream()) { // no window starts before t0
+                        rocksIterator.seek(getRocksDBKey(streamID, t0));
+                    }
+                }
+            } else {
+                /* The seek ran off the end of the stream, e.g. if the newest windows of the stream are still in
+                 * StreamWindowManager's write-back cache. A prefix iterator cannot step back from there (it is no
+                 * longer positioned within the prefix), so find the stream's last window in total order instead */
+                byte[] lastKey = getLastKeyBefore(streamID, t0);
+                if (lastKey != null) rocksIterator.seek(lastKey);
             }
-            assert nextWindow.ts >= t0;
-            /* rocksIterator now points to the first window with start timestamp >= t0. If timestamp == t0, we only
-             * need to return this window and its successors. If timestamp > t0, we also need to return the window just
-             * before this one (which is the last window with start timestamp < t0), so we call iterator.prev() */
-            if (nextWindow.ts > t0) {
-                rocksIterator.prev();
-                nextWindow = readFromRocksIterator();
-                assert nextWindow != null;
+            nextWindow = readFromRocksIterator();
+        }
+
+        /** Key of the last window of this stream starting before t, or null if there is none */
+        private byte[] getLastKeyBefore(long streamID, long t) {
+            try (RocksIterator iter = rocksDB.newIterator(summaryCF, totalOrderReadOptions)) {
+                iter.seek(getRocksDBKey(streamID, t));
+                if (iter.isValid()) {
+                    iter.prev();
+                } else {
+                    iter.seekToLast();
+                }
+                if (!iter.isValid()) return null;
+                byte[] key = iter.key();
+                return key.length == KEY_SIZE && getStreamIDFromRocksDBKey(key) == streamID ? key : null;
             }
         }
 
+        private boolean isAtWindowOfThisStream() {
+            if (!rocksIterator.isValid()) return false;
+            byte[] key = rocksIterator.key();
+            return key.length == KEY_SIZE && getStreamIDFromRocksDBKey(key) == streamID;
+        }
+
         private SummaryWindow readFromRocksIterator() {
             if (rocksIterator.isValid()) {
                 byte[] key = rocksIterator.key();
                 if (key.length == KEY_SIZE) {
                     long streamID = getStreamIDFromRocksDBKey(key), ts = getWindowIDFromRocksDBKey(key);
                     if (streamID == this.streamID && ts <= t1) {
-                        return serde.deserializeSummaryWindow(rocksIterator.value());
+                        if (cache == null) return serde.deserializeSummaryWindow(rocksIterator.value());
+                        SummaryWindow window = cacheVersion != -1 ? cache.get(streamID, ts) : null;
+                        if (window != null && cache.getVersion(streamID) != cacheVersion) {
+                            window = null; // may be newer than the snapshot, e.g. the result of a later merge
+                        }
+                        if (window == null) { // miss; the cache decides whether to keep the deserialized window
+                            window = deserialize(streamID, ts, rocksIterator.value(), serde, cacheVersion);
+                        }
+                        return window;
                     }
                 }
             }
@@ -255,7 +517,7 @@ public class RocksDBBackingStore extends BackingStore {
 
     @Override
     long getNumSummaryWindows(long streamID, SerDe serde) {
-        try (RocksIterator iter = rocksDB.newIterator()){
+        try (RocksIterator iter = rocksDB.newIterator(summaryCF, prefixReadOptions)) {
             iter.seek(getRocksDBKey(streamID, 0L));
             long ct = 0;
             for (; iter.isValid() && getStreamIDFromRocksDBKey(iter.key()) == streamID; iter.next()) {
@@ -268,21 +530,6 @@ public class RocksDBBackingStore extends BackingStore {
     @Override
     public void flushToDisk(long streamID, SerDe serDe) throws BackingStoreException {
         flushLandmarksToDisk(streamID, serDe);
-        if (cache == null) return;
-        Map<Long, SummaryWindow> streamCache = cache.get(streamID);
-        if (streamCache != null) {
-            for (Map.Entry<Long, SummaryWindow> entry: streamCache.entrySet()) {
-                long swid = entry.getKey();
-                SummaryWindow window = entry.getValue();
-                byte[] rocksKey = getRocksDBKey(streamID, swid);
-                byte[] rocksValue = serDe.serializeSummaryWindow(window);
-                try {
-                    rocksDB.put(rocksKey, rocksValue);
-                } catch (RocksDBException e) {
-                    throw new BackingStoreException(e);
-                }
-            }
-        }
     }
 
     /* **** FIXME: Landmark cache has unbounded size **** */
@@ -306,7 +553,7 @@ public class RocksDBBackingStore extends BackingStore {
             long lwid = windowEntry.getKey();
             LandmarkWindow window = windowEntry.getValue();
             try {
-                rocksDB.put(getLandmarkRocksKey(streamID, lwid), serDe.serializeLandmarkWindow(window));
+                rocksDB.put(landmarkCF, getLandmarkRocksKey(streamID, lwid), serDe.serializeLandmarkWindow(window));
             } catch (RocksDBException e) {
                 throw new BackingStoreException(e);
             }
@@ -321,7 +568,7 @@ public class RocksDBBackingStore extends BackingStore {
         } else {
             byte[] bytes;
             try {
-                bytes = rocksDB.get(getLandmarkRocksKey(streamID, lwid));
+                bytes = rocksDB.get(landmarkCF, getLandmarkRocksKey(streamID, lwid));
             } catch (RocksDBException e) {
                 throw new BackingStoreException(e);
             }
@@ -350,7 +597,7 @@ public class RocksDBBackingStore extends BackingStore {
     @Override
     public byte[] getAux(String key) throws BackingStoreException {
         try {
-            return rocksDB.get(getAuxRocksKey(key));
+            return rocksDB.get(auxCF, getAuxRocksKey(key));
         } catch (RocksDBException e) {
             throw new BackingStoreException(e);
         }
@@ -359,7 +606,7 @@ public class RocksDBBackingStore extends BackingStore {
     @Override
     public void putAux(String key, byte[] value) throws BackingStoreException {
         try {
-            rocksDB.put(getAuxRocksKey(key), value);
+            rocksDB.put(auxCF, getAuxRocksKey(key), value);
         } catch (RocksDBException e) {
             throw new BackingStoreException(e);
         }
@@ -367,7 +614,17 @@ public class RocksDBBackingStore extends BackingStore {
 
     @Override
     public void close() throws BackingStoreException {
+        for (ColumnFamilyHandle handle : columnFamilyHandles) {
+            handle.close();
+        }
         if (rocksDB != null) rocksDB.close();
+        prefixReadOptions.close();
+        totalOrderReadOptions.close();
+        /* Column family options own the block caches, whose cached filter blocks still point at the statistics object
+         * owned by rocksDBOptions when they are freed, so close options before the objects they refer to */
+        for (int i = columnFamilyResources.size() - 1; i >= 0; --i) {
+            columnFamilyResources.get(i).close();
+        }
         rocksDBOptions.close();
         logger.info("rocksDB closed");
     }
@@ -16,42 +16,139 @@
 package com.samsung.sra.datastore.storage;
 
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.samsung.sra.datastore.BinaryWindowOperator;
 import com.samsung.sra.datastore.LandmarkWindow;
 import com.samsung.sra.datastore.SummaryWindow;
 import com.samsung.sra.datastore.WindowOperator;
 import com.samsung.sra.protocol.SummaryStore;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
+/**
+ * Summary windows are stored in a binary format that lets a query decode just the aggregate it needs (see
+ * projectedTo), straight out of the bytes read from the backing store:
+ *
+ *   byte      BINARY_FORMAT
+ *   varlong   ts, te - ts, cs, ce - cs (zigzag varints, so the deltas of small windows take a byte or two)
+ *   byte      number of operators
+ *   per operator, 5 bytes: encoding (ENCODED_BINARY or ENCODED_PROTO), then int offset of the end of its aggregate
+ *   aggregates, back to back. Offsets are relative to the start of the first aggregate
+ *
+ * Aggregates of BinaryWindowOperators are stored with encode(); all others as a serialized ProtoOperator. Windows
+ * written by earlier versions, as a ProtoSummaryWindow, are still read: a protobuf-encoded ProtoSummaryWindow always
+ * begins with ts's field tag, 0x08, never with BINARY_FORMAT. They are rewritten in the binary format whenever the
+ * store next writes them, e.g. when they are merged.
+ */
 class SerDe implements Serializable {
+    private static final byte BINARY_FORMAT = (byte) 0xB1;
+    private static final byte ENCODED_PROTO = 0, ENCODED_BINARY = 1;
+    private static final int ALL_OPERATORS = -1;
+
     private final WindowOperator[] operators;
+    private final int projectedOperator;
 
     SerDe(WindowOperator[] operators) {
+        this(operators, ALL_OPERATORS);
+    }
+
+    private SerDe(WindowOperator[] operators, int projectedOperator) {
         this.operators = operators;
+        this.projectedOperator = projectedOperator;
+    }
+
+    /**
+     * View of this SerDe whose deserializeSummaryWindow only decodes aggregates[operatorNum], leaving the other
+     * aggregates null. For windows that are only going to be queried with that one operator
+     */
+    SerDe projectedTo(int operatorNum) {
+        return new SerDe(operators, operatorNum);
+    }
+
+    /** The SerDe this one is a projection of, or this SerDe itself if it decodes all aggregates */
+    SerDe withAllOperators() {
+        return decodesAllOperators() ? this : new SerDe(operators);
+    }
+
+    /** Whether deserialized windows are complete, as opposed to projected (see projectedTo) */
+    boolean decodesAllOperators() {
+        return projectedOperator == ALL_OPERATORS;
     }
 
+    @SuppressWarnings("unchecked")
     byte[] serializeSummaryWindow(SummaryWindow window) {
-        assert window != null;
-        SummaryStore.ProtoSummaryWindow.Builder protoWindow = SummaryStore.ProtoSummaryWindow.newBuilder()
-                .setTs(window.ts)
-                .setTe(window.te)
-                .setCs(window.cs)
-                .setCe(window.ce);
+        assert window != null && window.aggregates.length == operators.length && operators.length < 256;
+        byte[][] protoAggregates = new byte[operators.length][];
+        int size = 1 + varLongSize(window.ts) + varLongSize(window.te - window.ts) + varLongSize(window.cs)
+                + varLongSize(window.ce - window.cs) + 1 + 5 * operators.length;
         for (int op = 0; op < operators.length; ++op) {
-            try {
-                assert window.aggregates[op] != null;
-                protoWindow.addOperator(operators[op].protofy(window.aggregates[op]));
-            } catch (Exception e) {
-                e.printStackTrace();
+            assert window.aggregates[op] != null;
+            if (operators[op] instanceof BinaryWindowOperator) {
+                size += ((BinaryWindowOperator) operators[op]).getEncodedSize(window.aggregates[op]);
+            } else {
+                protoAggregates[op] = operators[op].protofy(window.aggregates[op]).build().toByteArray();
+                size += protoAggregates[op].length;
             }
-
         }
 
-        return protoWindow.build().toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(BINARY_FORMAT);
+        putVarLong(buffer, window.ts);
+        putVarLong(buffer, window.te - window.ts);
+        putVarLong(buffer, window.cs);
+        putVarLong(buffer, window.ce - window.cs);
+        buffer.put((byte) operators.length);
+        int tableStart = buffer.position(), payloadStart = tableStart + 5 * operators.length;
+        buffer.position(payloadStart);
+        for (int op = 0; op < operators.length; ++op) {
+            if (protoAggregates[op] == null) {
+                ((BinaryWindowOperator) operators[op]).encode(window.aggregates[op], buffer);
+                buffer.put(tableStart + 5 * op, ENCODED_BINARY);
+            } else {
+                buffer.put(protoAggregates[op]);
+                buffer.put(tableStart + 5 * op, ENCODED_PROTO);
+            }
+            buffer.putInt(tableStart + 5 * op + 1, buffer.position() - payloadStart);
+        }
+        assert buffer.position() == size;
+        return buffer.array();
     }
 
     SummaryWindow deserializeSummaryWindow(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != BINARY_FORMAT) return deserializeProtoSummaryWindow(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(1);
+        SummaryWindow window = new SummaryWindow();
+        window.ts = getVarLong(buffer);
+        window.te = window.ts + getVarLong(buffer);
+        window.cs = getVarLong(buffer);
+        window.ce = window.cs + getVarLong(buffer);
+
+        int numOperators = buffer.get() & 0xFF;
+        assert numOperators == operators.length;
+        int tableStart = buffer.position(), payloadStart = tableStart + 5 * numOperators;
+        window.aggregates = new Object[operators.length];
+        for (int op = 0; op < operators.length; ++op) {
+            if (!decodesAllOperators() && op != projectedOperator) continue;
+            int start = payloadStart + (op > 0 ? buffer.getInt(tableStart + 5 * (op - 1) + 1) : 0);
+            int length = payloadStart + buffer.getInt(tableStart + 5 * op + 1) - start;
+            if (buffer.get(tableStart + 5 * op) == ENCODED_BINARY) {
+                window.aggregates[op] = ((BinaryWindowOperator) operators[op]).decode(buffer, start, length);
+            } else {
+                try {
+                    window.aggregates[op] = operators[op].deprotofy(
+                            SummaryStore.ProtoOperator.parser().parseFrom(bytes, start, length));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return window;
+    }
+
+    /** Read a window in the format used before the binary one */
+    private SummaryWindow deserializeProtoSummaryWindow(byte[] bytes) {
         SummaryStore.ProtoSummaryWindow protoSummaryWindow;
         try {
             protoSummaryWindow = SummaryStore.ProtoSummaryWindow.parseFrom(bytes);
@@ -67,12 +164,42 @@ class SerDe implements Serializable {
         assert protoSummaryWindow.getOperatorCount() == operators.length;
         window.aggregates = new Object[operators.length];
         for (int op = 0; op < operators.length; ++op) {
+            if (!decodesAllOperators() && op != projectedOperator) continue;
             window.aggregates[op] = operators[op].deprotofy(protoSummaryWindow.getOperator(op));
         }
 
         return window;
     }
 
+    private static int varLongSize(long value) {
+        long v = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((v & ~0x7FL) != 0) {
+            ++size;
+            v >>>= 7;
+        }
+        return size;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
     byte[] serializeLandmarkWindow(LandmarkWindow window) {
         SummaryStore.ProtoLandmarkWindow.Builder builder = SummaryStore.ProtoLandmarkWindow.newBuilder()
                 .setTs(window.ts)
@@ -15,14 +15,33 @@
 */
 package com.samsung.sra.datastore.storage;
 
+import com.samsung.sra.datastore.DoubleWindowOperator;
 import com.samsung.sra.datastore.LandmarkWindow;
+import com.samsung.sra.datastore.LongWindowOperator;
+import com.samsung.sra.datastore.ScalarDoubleOperator;
+import com.samsung.sra.datastore.ScalarLongOperator;
 import com.samsung.sra.datastore.SummaryWindow;
 import com.samsung.sra.datastore.WindowOperator;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Consumer;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -35,6 +54,9 @@ public class StreamWindowManager implements Serializable {
     // FIXME: what if user actually wants to insert Long.MIN_VALUE? Not an issue unless setValuesAreLongs is called to
     //        make us use LongIngestBuffer
     public static final Object LANDMARK_SENTINEL = Long.MIN_VALUE; // sentinel used when handling append
+    private static final long LONG_LANDMARK_SENTINEL = Long.MIN_VALUE; // same, for the unboxed insert paths
+    /** Same, for double-valued ingest buffers: bits of a NaN that arithmetic never produces */
+    public static final long DOUBLE_LANDMARK_SENTINEL_BITS = 0x7ff8_0000_1a4d_3a4bL;
 
     private transient BackingStore backingStore;
     public final long streamID;
@@ -43,6 +65,28 @@ public class StreamWindowManager implements Serializable {
 
     private final QueryIndex summaryIndex, landmarkIndex;
 
+    /** Capacity (# windows) of the write-back cache of young summary windows; 0 disables it */
+    private int writeBackCacheSize = 0;
+    /**
+     * Summary windows with swid >= this live only in writeBackCache, older windows only in the backing store. Never
+     * decreases, since new windows always start after existing ones. Long.MIN_VALUE if nothing has been persisted yet
+     */
+    private volatile long writeBackWatermark = Long.MIN_VALUE;
+    /** Newest windows of the stream. Holding the monitor on this map serializes all writes that touch it */
+    private transient ConcurrentSkipListMap<Long, SummaryWindow> writeBackCache = null;
+    /**
+     * Write-locked while committing a SummaryWindowBatch, so that reads going through the read index or write-back
+     * cache (which are updated separately from the backing store) never observe half of a batch, e.g. a merge
+     */
+    private transient StampedLock batchLock = new StampedLock();
+    /**
+     * Merges that have been decided but not yet physically applied (see addLogicalMerges): maps the head swid of each
+     * merged window to the swid of its last stored window. Queries combine the stored windows in each range on the fly
+     */
+    private final ConcurrentSkipListMap<Long, Long> logicalMerges = new ConcurrentSkipListMap<>();
+    /** Number of stored windows that are non-head members of some range in logicalMerges */
+    private volatile long numLogicallyMergedWindows = 0;
+
     public StreamWindowManager(long streamID, WindowOperator[] operators, boolean keepReadIndex) {
         this.streamID = streamID;
         this.operators = operators;
@@ -54,6 +98,19 @@ public class StreamWindowManager implements Serializable {
 
     public void populateTransientFields(BackingStore backingStore) {
         this.backingStore = backingStore;
+        this.batchLock = new StampedLock();
+        if (writeBackCacheSize > 0) writeBackCache = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Keep the specified number of newest summary windows in memory and only write a window to the backing store once
+     * that many newer windows exist (or on flushToDisk). Most merges involve young windows, so this lets them happen
+     * entirely in memory instead of as backing store read-modify-writes. Must be set before any windows are written.
+     * Writes that touch cached windows become visible to readers immediately, as with MainMemoryBackingStore
+     */
+    public void setWriteBackCacheSize(int windows) {
+        this.writeBackCacheSize = windows;
+        this.writeBackCache = windows > 0 ? new ConcurrentSkipListMap<>() : null;
     }
 
     public SummaryWindow createEmptySummaryWindow(long ts, long te, long cs, long ce) {
@@ -75,6 +132,115 @@ public class StreamWindowManager implements Serializable {
         }
     }
 
+    /** Unboxed version of insertIntoSummaryWindow, used when values are known to be longs */
+    @SuppressWarnings("unchecked")
+    public void insertIntoSummaryWindow(SummaryWindow window, long ts, long value) {
+        assert window.ts <= ts && (window.te == -1 || ts <= window.te)
+                && operators.length == window.aggregates.length;
+        if (value == LONG_LANDMARK_SENTINEL) {
+            return; // see comment in the Object version above
+        }
+        for (int i = 0; i < operators.length; ++i) {
+            window.aggregates[i] = operators[i] instanceof LongWindowOperator
+                    ? ((LongWindowOperator) operators[i]).insertLong(window.aggregates[i], ts, value)
+                    : operators[i].insert(window.aggregates[i], ts, value);
+        }
+    }
+
+    /** Unboxed version of insertIntoSummaryWindow, used when values are known to be doubles */
+    @SuppressWarnings("unchecked")
+    public void insertIntoSummaryWindow(SummaryWindow window, long ts, double value) {
+        assert window.ts <= ts && (window.te == -1 || ts <= window.te)
+                && operators.length == window.aggregates.length;
+        if (isLandmarkSentinel(value)) {
+            return; // see comment in the Object version above
+        }
+        for (int i = 0; i < operators.length; ++i) {
+            window.aggregates[i] = operators[i] instanceof DoubleWindowOperator
+                    ? ((DoubleWindowOperator) operators[i]).insertDouble(window.aggregates[i], ts, value)
+                    : operators[i].insert(window.aggregates[i], ts, value);
+        }
+    }
+
+    public static boolean isLandmarkSentinel(double value) {
+        return Double.doubleToRawLongBits(value) == DOUBLE_LANDMARK_SENTINEL_BITS;
+    }
+
+    /**
+     * Insert values(from), values(from + 1), ..., values(to - 1) with the corresponding timestamps into window.
+     * Operators implementing ScalarLongOperator accumulate into a primitive holder that is boxed once at the end;
+     * other LongWindowOperators get unboxed insertLong calls. Only operators that are neither fall back to boxing.
+     */
+    @SuppressWarnings("unchecked")
+    public void insertIntoSummaryWindow(SummaryWindow window, int from, int to,
+                                        IntToLongFunction timestamps, IntToLongFunction values) {
+        assert operators.length == window.aggregates.length;
+        for (int i = 0; i < operators.length; ++i) {
+            WindowOperator op = operators[i];
+            if (op instanceof ScalarLongOperator) {
+                ScalarLongOperator sop = (ScalarLongOperator) op;
+                long aggr = (Long) window.aggregates[i];
+                for (int c = from; c < to; ++c) {
+                    long value = values.applyAsLong(c);
+                    if (value != LONG_LANDMARK_SENTINEL) aggr = sop.insertScalar(aggr, timestamps.applyAsLong(c), value);
+                }
+                window.aggregates[i] = aggr;
+            } else if (op instanceof LongWindowOperator) {
+                LongWindowOperator lop = (LongWindowOperator) op;
+                Object aggr = window.aggregates[i];
+                for (int c = from; c < to; ++c) {
+                    long value = values.applyAsLong(c);
+                    if (value != LONG_LANDMARK_SENTINEL) aggr = lop.insertLong(aggr, timestamps.applyAsLong(c), value);
+                }
+                window.aggregates[i] = aggr;
+            } else {
+                Object aggr = window.aggregates[i];
+                for (int c = from; c < to; ++c) {
+                    long value = values.applyAsLong(c);
+                    if (value != LONG_LANDMARK_SENTINEL) aggr = op.insert(aggr, timestamps.applyAsLong(c), value);
+                }
+                window.aggregates[i] = aggr;
+            }
+        }
+    }
+
+    /**
+     * Double-valued version of the batch insertIntoSummaryWindow above: ScalarDoubleOperators accumulate into a
+     * primitive double, other DoubleWindowOperators get unboxed insertDouble calls
+     */
+    @SuppressWarnings("unchecked")
+    public void insertDoublesIntoSummaryWindow(SummaryWindow window, int from, int to,
+                                               IntToLongFunction timestamps, IntToDoubleFunction values) {
+        assert operators.length == window.aggregates.length;
+        for (int i = 0; i < operators.length; ++i) {
+            WindowOperator op = operators[i];
+            if (op instanceof ScalarDoubleOperator) {
+                ScalarDoubleOperator sop = (ScalarDoubleOperator) op;
+                double aggr = (Double) window.aggregates[i];
+                for (int c = from; c < to; ++c) {
+                    double value = values.applyAsDouble(c);
+                    if (!isLandmarkSentinel(value)) aggr = sop.insertScalar(aggr, timestamps.applyAsLong(c), value);
+                }
+                window.aggregates[i] = aggr;
+            } else if (op instanceof DoubleWindowOperator) {
+                DoubleWindowOperator dop = (DoubleWindowOperator) op;
+                Object aggr = window.aggregates[i];
+                for (int c = from; c < to; ++c) {
+                    double value = values.applyAsDouble(c);
+                    if (!isLandmarkSentinel(value)) aggr = dop.insertDouble(aggr, timestamps.applyAsLong(c), value);
+                }
+                window.aggregates[i] = aggr;
+            } else {
+                Object aggr = window.aggregates[i];
+                for (int c = from; c < to; ++c) {
+                    double value = values.applyAsDouble(c);
+                    if (!isLandmarkSentinel(value)) aggr = op.insert(aggr, timestamps.applyAsLong(c), value);
+                }
+                window.aggregates[i] = aggr;
+            }
+        }
+    }
+
     /** Replace windows[0] with union(windows) */
     public void mergeSummaryWindows(SummaryWindow... windows) {
         if (windows.length == 0) return;
@@ -87,40 +253,466 @@ public class StreamWindowManager implements Serializable {
         }
     }
 
+    /**
+     * Return union(windows) as a new window. Unlike mergeSummaryWindows, does not modify windows[0], which may be a
+     * live object visible to concurrent readers (in MainMemoryBackingStore or the write-back cache)
+     */
+    public SummaryWindow getMergedSummaryWindow(SummaryWindow... windows) {
+        SummaryWindow merged = new SummaryWindow();
+        merged.ts = windows[0].ts;
+        merged.cs = windows[0].cs;
+        merged.te = windows[windows.length - 1].te;
+        merged.ce = windows[windows.length - 1].ce;
+        merged.aggregates = new Object[operators.length];
+        for (int opNum = 0; opNum < operators.length; ++opNum) {
+            final int i = opNum;
+            merged.aggregates[i] = operators[i].merge(Stream.of(windows).map(b -> b.aggregates[i]));
+        }
+        return merged;
+    }
+
+    /** Get the stored window with the specified ID. Does not take pending logical merges into account */
     public SummaryWindow getSummaryWindow(long swid) throws BackingStoreException {
+        if (writeBackCache != null) {
+            // evictions write to the backing store before removing from the cache, so a miss here cannot lose a window
+            SummaryWindow window = writeBackCache.get(swid);
+            if (window != null) return window;
+        }
         return backingStore.getSummaryWindow(streamID, swid, serde);
     }
 
     /** Get all summary windows overlapping [t0, t1] */
     public Stream<SummaryWindow> getSummaryWindowsOverlapping(long t0, long t1) throws BackingStoreException {
-        return summaryIndex == null
-                ? backingStore.getSummaryWindowsOverlapping(streamID, t0, t1, serde)
-                : summaryIndex
-                .getOverlappingWindowIDs(t0, t1)
-                .map(swid -> {
-                    try {
-                        return backingStore.getSummaryWindow(streamID, swid, serde);
-                    } catch (BackingStoreException e) {
-                        throw new RuntimeException(e);
-                    }
-                })
+        return getSummaryWindowsOverlapping(t0, t1, serde);
+    }
+
+    /**
+     * Get all summary windows overlapping [t0, t1], for a query on operator operatorNum: only aggregates[operatorNum]
+     * is guaranteed to be set, and windows read from the backing store skip decoding the others. Must not be used for
+     * anything that writes windows back (e.g. merges)
+     */
+    public Stream<SummaryWindow> getSummaryWindowsOverlapping(long t0, long t1, int operatorNum)
+            throws BackingStoreException {
+        return getSummaryWindowsOverlapping(t0, t1, serde.projectedTo(operatorNum));
+    }
+
+    private Stream<SummaryWindow> getSummaryWindowsOverlapping(long t0, long t1, SerDe reader)
+            throws BackingStoreException {
+        if (summaryIndex == null && writeBackCache == null && logicalMerges.isEmpty()) {
+            return backingStore.getSummaryWindowsOverlapping(streamID, t0, t1, reader);
+        }
+        return readConsistently(() -> {
+            try {
+                // combining logically merged windows needs all of their aggregates
+                return logicalMerges.isEmpty()
+                        ? getStoredSummaryWindowsOverlapping(t0, t1, reader)
+                        : getLogicalSummaryWindowsOverlapping(t0, t1);
+            } catch (BackingStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }).stream();
+    }
+
+    /** Stored windows overlapping [t0, t1], ignoring logical merges. Callers must take care of batchLock */
+    private Stream<SummaryWindow> getStoredSummaryWindowsOverlapping(long t0, long t1) throws BackingStoreException {
+        return getStoredSummaryWindowsOverlapping(t0, t1, serde);
+    }
+
+    /** As above, decoding windows read from the backing store with reader */
+    private Stream<SummaryWindow> getStoredSummaryWindowsOverlapping(long t0, long t1, SerDe reader)
+            throws BackingStoreException {
+        if (summaryIndex == null) {
+            return writeBackCache != null
+                    ? getSummaryWindowsOverlappingWithWriteBack(t0, t1, reader)
+                    : backingStore.getSummaryWindowsOverlapping(streamID, t0, t1, reader);
+        }
+        LongArrayList swids = new LongArrayList();
+        summaryIndex.getOverlappingWindowIDs(t0, t1).forEach(swids::add);
+        return getSummaryWindows(swids, reader).stream()
+                .filter(w -> w.te >= t0); // filter needed because very first window may not overlap [t0, t1]
+    }
+
+    /**
+     * Get the stored windows with the given IDs (sorted ascending) in one backing store call, rather than one call per
+     * window as with getSummaryWindow. Does not take pending logical merges into account
+     */
+    private List<SummaryWindow> getSummaryWindows(LongArrayList swids, SerDe reader) throws BackingStoreException {
+        if (writeBackCache == null) return backingStore.getSummaryWindows(streamID, swids, reader);
+        // as in getSummaryWindow, look in the cache first, so that a concurrent eviction cannot lose a window
+        List<SummaryWindow> cached = new ArrayList<>();
+        LongArrayList persisted = new LongArrayList();
+        for (int i = 0; i < swids.size(); ++i) {
+            SummaryWindow window = writeBackCache.get(swids.getLong(i));
+            if (window != null) {
+                cached.add(window);
+            } else {
+                persisted.add(swids.getLong(i));
+            }
+        }
+        List<SummaryWindow> windows = persisted.isEmpty()
+                ? new ArrayList<>()
+                : backingStore.getSummaryWindows(streamID, persisted, reader);
+        if (!cached.isEmpty()) {
+            windows.addAll(cached);
+            windows.sort(Comparator.comparingLong(w -> w.ts));
+        }
+        return windows;
+    }
+
+    /**
+     * Windows overlapping [t0, t1] with pending logical merges resolved: the stored windows of each logically merged
+     * range are combined into one window. If [t0, t1] only partially covers a merged range the rest of the range is
+     * read too, so that the combined window is complete
+     */
+    private Stream<SummaryWindow> getLogicalSummaryWindowsOverlapping(long t0, long t1) throws BackingStoreException {
+        List<SummaryWindow> stored = getStoredSummaryWindowsOverlapping(t0, t1).collect(Collectors.toList());
+        if (stored.isEmpty()) return Stream.empty();
+        long firstTS = stored.get(0).ts, lastTS = stored.get(stored.size() - 1).ts;
+        List<SummaryWindow> windows = new ArrayList<>();
+        Map.Entry<Long, Long> range = logicalMerges.floorEntry(firstTS);
+        if (range != null && range.getKey() < firstTS && range.getValue() >= firstTS) {
+            long head = range.getKey();
+            getStoredSummaryWindowsOverlapping(head, firstTS - 1)
+                    .filter(w -> head <= w.ts && w.ts < firstTS)
+                    .forEach(windows::add);
+        }
+        windows.addAll(stored);
+        range = logicalMerges.floorEntry(lastTS);
+        if (range != null && range.getValue() > lastTS) {
+            long last = range.getValue();
+            getStoredSummaryWindowsOverlapping(lastTS + 1, last)
+                    .filter(w -> lastTS < w.ts && w.ts <= last)
+                    .forEach(windows::add);
+        }
+
+        List<SummaryWindow> resolved = new ArrayList<>();
+        for (int i = 0; i < windows.size(); ) {
+            SummaryWindow window = windows.get(i);
+            range = logicalMerges.floorEntry(window.ts);
+            int j = i + 1;
+            if (range != null && range.getValue() >= window.ts) {
+                while (j < windows.size() && windows.get(j).ts <= range.getValue()) ++j;
+            }
+            resolved.add(j == i + 1
+                    ? window
+                    : getMergedSummaryWindow(windows.subList(i, j).toArray(new SummaryWindow[0])));
+            i = j;
+        }
+        return resolved.stream().filter(w -> w.te >= t0 && w.ts <= t1);
+    }
+
+    /**
+     * Materialize read without blocking batch commits if possible: first try an optimistic read, which is discarded
+     * (along with any exception a concurrent commit may have caused, e.g. a window vanishing) if a commit overlapped
+     * it, then fall back to reading under the read lock
+     */
+    private List<SummaryWindow> readConsistently(Supplier<Stream<SummaryWindow>> read) {
+        long stamp = batchLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                List<SummaryWindow> windows = read.get().collect(Collectors.toList());
+                if (batchLock.validate(stamp)) return windows;
+            } catch (RuntimeException e) {
+                if (batchLock.validate(stamp)) throw e;
+            }
+        }
+        stamp = batchLock.readLock();
+        try {
+            return read.get().collect(Collectors.toList());
+        } finally {
+            batchLock.unlockRead(stamp);
+        }
+    }
+
+    /** Combine the cached windows overlapping [t0, t1] with the persisted ones, when there is no read index */
+    private Stream<SummaryWindow> getSummaryWindowsOverlappingWithWriteBack(long t0, long t1, SerDe reader)
+            throws BackingStoreException {
+        Long first = writeBackCache.floorKey(t0);
+        List<SummaryWindow> cached = t1 >= (first != null ? first : t0)
+                ? new ArrayList<>(writeBackCache.subMap(first != null ? first : t0, true, t1, true).values())
+                : new ArrayList<>();
+        long firstCachedTS = cached.isEmpty() ? Long.MAX_VALUE : cached.get(0).ts;
+        // only need the backing store if no cached window starts at or before t0
+        Stream<SummaryWindow> persisted = writeBackWatermark != Long.MIN_VALUE && firstCachedTS > t0
+                ? backingStore.getSummaryWindowsOverlapping(streamID, t0, t1, reader)
+                // windows evicted after we snapshotted the cache would otherwise be returned twice
+                .filter(w -> w.ts < firstCachedTS)
+                : Stream.empty();
+        return Stream.concat(persisted, cached.stream())
                 .filter(w -> w.te >= t0); // filter needed because very first window may not overlap [t0, t1]
     }
 
     public void deleteSummaryWindow(long swid) throws BackingStoreException {
+        if (writeBackCache != null) {
+            SummaryWindowBatch batch = new SummaryWindowBatch();
+            batch.delete(swid);
+            batch.commit();
+            return;
+        }
         if (summaryIndex != null) summaryIndex.remove(swid);
         backingStore.deleteSummaryWindow(streamID, swid, serde);
     }
 
     public void putSummaryWindow(SummaryWindow window) throws BackingStoreException {
+        if (writeBackCache != null) {
+            SummaryWindowBatch batch = new SummaryWindowBatch();
+            batch.put(window);
+            batch.commit();
+            return;
+        }
         if (summaryIndex != null) summaryIndex.add(window.ts);
         backingStore.putSummaryWindow(streamID, window.ts, serde, window);
     }
 
+    /**
+     * Apply mutations to writeBackCache or the backing store depending on which one holds each swid, then age the
+     * oldest cached windows out to the backing store if the cache is over capacity. The cache is only changed once the
+     * backing store write (including the aged-out windows) has succeeded, so a failed write leaves both untouched
+     */
+    private void writeSummaryWindows(LongArrayList swids, List<SummaryWindow> windows, LongArrayList rangeDeletes)
+            throws BackingStoreException {
+        synchronized (writeBackCache) {
+            // new contents of each cached swid that is touched (null = removed), range deletes first as in the store
+            TreeMap<Long, SummaryWindow> cacheUpdates = new TreeMap<>();
+            LongArrayList storeRangeDeletes = new LongArrayList();
+            for (int i = 0; i < rangeDeletes.size(); i += 2) {
+                long first = rangeDeletes.getLong(i), last = rangeDeletes.getLong(i + 1);
+                if (last >= writeBackWatermark) {
+                    for (Long swid : writeBackCache.subMap(Math.max(first, writeBackWatermark), true, last, true)
+                            .keySet()) {
+                        cacheUpdates.put(swid, null);
+                    }
+                }
+                if (first < writeBackWatermark) {
+                    storeRangeDeletes.add(first);
+                    storeRangeDeletes.add(Math.min(last, writeBackWatermark - 1));
+                }
+            }
+            LongArrayList storeSwids = new LongArrayList();
+            List<SummaryWindow> storeWindows = new ArrayList<>();
+            for (int i = 0; i < swids.size(); ++i) {
+                long swid = swids.getLong(i);
+                if (swid >= writeBackWatermark) {
+                    cacheUpdates.put(swid, windows.get(i));
+                } else {
+                    storeSwids.add(swid);
+                    storeWindows.add(windows.get(i));
+                }
+            }
+            int newSize = writeBackCache.size();
+            for (Map.Entry<Long, SummaryWindow> update : cacheUpdates.entrySet()) {
+                newSize += (update.getValue() != null ? 1 : 0) - (writeBackCache.containsKey(update.getKey()) ? 1 : 0);
+            }
+            int numEvicted = Math.max(0, newSize - writeBackCacheSize);
+            for (SummaryWindow window : oldestAfterUpdates(cacheUpdates, numEvicted)) {
+                storeSwids.add(window.ts);
+                storeWindows.add(window);
+            }
+            if (!storeRangeDeletes.isEmpty()) {
+                backingStore.writeSummaryWindows(streamID, serde, storeSwids, storeWindows, storeRangeDeletes);
+            } else if (!storeSwids.isEmpty()) {
+                backingStore.writeSummaryWindows(streamID, serde, storeSwids, storeWindows);
+            }
+            for (Map.Entry<Long, SummaryWindow> update : cacheUpdates.entrySet()) {
+                if (update.getValue() != null) {
+                    writeBackCache.put(update.getKey(), update.getValue());
+                } else {
+                    writeBackCache.remove(update.getKey());
+                }
+            }
+            evict(numEvicted);
+        }
+    }
+
+    /** The n oldest windows writeBackCache will hold once cacheUpdates (as built above) are applied to it */
+    private List<SummaryWindow> oldestAfterUpdates(TreeMap<Long, SummaryWindow> cacheUpdates, int n) {
+        List<SummaryWindow> oldest = new ArrayList<>(n);
+        Iterator<Map.Entry<Long, SummaryWindow>> cached = writeBackCache.entrySet().iterator(),
+                updated = cacheUpdates.entrySet().iterator();
+        Map.Entry<Long, SummaryWindow> c = cached.hasNext() ? cached.next() : null,
+                u = updated.hasNext() ? updated.next() : null;
+        while (oldest.size() < n) {
+            SummaryWindow window;
+            if (u == null || (c != null && c.getKey() < u.getKey())) {
+                window = c.getValue();
+                c = cached.hasNext() ? cached.next() : null;
+            } else {
+                if (c != null && c.getKey().equals(u.getKey())) c = cached.hasNext() ? cached.next() : null;
+                window = u.getValue();
+                u = updated.hasNext() ? updated.next() : null;
+            }
+            if (window != null) oldest.add(window);
+        }
+        return oldest;
+    }
+
+    /** Drop the n oldest windows from writeBackCache (which must already be persisted), advancing the watermark */
+    private void evict(int n) {
+        for (int i = 0; i < n; ++i) {
+            writeBackWatermark = writeBackCache.pollFirstEntry().getKey() + 1;
+        }
+    }
+
+    public SummaryWindowBatch newSummaryWindowBatch() {
+        return new SummaryWindowBatch();
+    }
+
+    /**
+     * Puts and deletes of this stream's summary windows, buffered until commit() writes them to the backing store as
+     * one atomic unit (with RocksDB, a single WriteBatch). Used to group the Writer's puts and to make each merge
+     * (put of the head window plus deletes of the tail windows) all-or-nothing. Not thread-safe.
+     */
+    public class SummaryWindowBatch {
+        private final LongArrayList swids = new LongArrayList();
+        private final List<SummaryWindow> windows = new ArrayList<>(); // null entry = delete
+        private final LongArrayList rangeDeletes = new LongArrayList(); // pairs of first, last swid
+        // logical merges physically applied by this batch, and the number of stored windows they eliminate
+        private final LongArrayList compactedHeads = new LongArrayList();
+        private long numCompactedWindows = 0;
+
+        private SummaryWindowBatch() {
+        }
+
+        public void put(SummaryWindow window) {
+            swids.add(window.ts);
+            windows.add(window);
+        }
+
+        public void delete(long swid) {
+            swids.add(swid);
+            windows.add(null);
+        }
+
+        /** Delete all windows with swid in [first, last] */
+        public void deleteRange(long first, long last) {
+            rangeDeletes.add(first);
+            rangeDeletes.add(last);
+        }
+
+        /** Number of buffered mutations */
+        public int size() {
+            return swids.size() + rangeDeletes.size() / 2;
+        }
+
+        /**
+         * Write all buffered mutations and clear the batch. Readers are locked out for the whole commit, so the read
+         * index is only updated once the write has succeeded: if it fails, the index still agrees with the backing
+         * store, and the batch is left intact to be retried
+         */
+        public void commit() throws BackingStoreException {
+            if (swids.isEmpty() && rangeDeletes.isEmpty()) return;
+            long stamp = batchLock.writeLock();
+            try {
+                if (writeBackCache != null) {
+                    writeSummaryWindows(swids, windows, rangeDeletes);
+                } else if (!rangeDeletes.isEmpty()) {
+                    backingStore.writeSummaryWindows(streamID, serde, swids, windows, rangeDeletes);
+                } else {
+                    backingStore.writeSummaryWindows(streamID, serde, swids, windows);
+                }
+                if (summaryIndex != null) {
+                    // range deletes come first, as in the write
+                    for (int i = 0; i < rangeDeletes.size(); i += 2) {
+                        summaryIndex.removeRange(rangeDeletes.getLong(i), rangeDeletes.getLong(i + 1));
+                    }
+                    for (int i = 0; i < swids.size(); ++i) {
+                        if (windows.get(i) != null) {
+                            summaryIndex.add(swids.getLong(i));
+                        } else {
+                            summaryIndex.remove(swids.getLong(i));
+                        }
+                    }
+                }
+                for (int i = 0; i < compactedHeads.size(); ++i) {
+                    logicalMerges.remove(compactedHeads.getLong(i));
+                }
+                numLogicallyMergedWindows -= numCompactedWindows;
+            } finally {
+                batchLock.unlockWrite(stamp);
+            }
+            swids.clear();
+            windows.clear();
+            rangeDeletes.clear();
+            compactedHeads.clear();
+            numCompactedWindows = 0;
+        }
+    }
+
+    /**
+     * Record merges without touching the stored windows: for each entry, the windows in the value list are merged into
+     * the window with the key swid, as in a merge issued through SummaryWindowBatch. Queries see the merged windows
+     * immediately; compactLogicalMerges physically applies them later, in bulk. Must not be mixed with physical merges
+     * of windows in a pending range, and must be called by one thread at a time.
+     */
+    public void addLogicalMerges(Long2ObjectMap<? extends LongList> merges) {
+        if (merges.isEmpty()) return;
+        long stamp = batchLock.writeLock();
+        try {
+            for (Long2ObjectMap.Entry<? extends LongList> merge : merges.long2ObjectEntrySet()) {
+                long head = merge.getLongKey();
+                LongList tail = merge.getValue();
+                Long last = logicalMerges.get(head);
+                if (last == null) last = head;
+                for (int i = 0; i < tail.size(); ++i) {
+                    // tail windows may themselves be heads of earlier logical merges
+                    Long tailLast = logicalMerges.remove(tail.getLong(i));
+                    last = Math.max(last, tailLast != null ? tailLast : tail.getLong(i));
+                }
+                logicalMerges.put(head, last);
+                numLogicallyMergedWindows += tail.size();
+            }
+        } finally {
+            batchLock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean hasLogicalMerges() {
+        return !logicalMerges.isEmpty();
+    }
+
+    /**
+     * Physically apply all pending logical merges, oldest first. The stored windows of each merged range are read with
+     * one range scan and replaced with a single window: a put of the merged window plus a range delete of the rest.
+     * Ranges are written in groups of up to COMPACTION_BATCH_SIZE, each group as one atomic batch. Must not run
+     * concurrently with addLogicalMerges.
+     */
+    public void compactLogicalMerges() throws BackingStoreException {
+        SummaryWindowBatch batch = new SummaryWindowBatch();
+        for (Map.Entry<Long, Long> range : logicalMerges.entrySet()) {
+            long head = range.getKey(), last = range.getValue();
+            SummaryWindow[] windows = readConsistently(() -> {
+                try {
+                    return getStoredSummaryWindowsOverlapping(head, last).filter(w -> head <= w.ts && w.ts <= last);
+                } catch (BackingStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }).toArray(new SummaryWindow[0]);
+            assert windows.length > 0 && windows[0].ts == head;
+            batch.put(getMergedSummaryWindow(windows));
+            batch.deleteRange(head + 1, last);
+            batch.compactedHeads.add(head);
+            batch.numCompactedWindows += windows.length - 1;
+            if (batch.compactedHeads.size() >= COMPACTION_BATCH_SIZE) batch.commit();
+        }
+        batch.commit();
+    }
+
+    private static final int COMPACTION_BATCH_SIZE = 256;
+
     public long getNumSummaryWindows() throws BackingStoreException {
-        return summaryIndex == null
-                ? backingStore.getNumSummaryWindows(streamID, serde)
-                : summaryIndex.getNumWindows();
+        return getNumStoredSummaryWindows() - numLogicallyMergedWindows;
+    }
+
+    private long getNumStoredSummaryWindows() throws BackingStoreException {
+        if (summaryIndex != null) {
+            return summaryIndex.getNumWindows();
+        } else if (writeBackCache != null) {
+            return writeBackCache.size() + (writeBackWatermark != Long.MIN_VALUE
+                    ? backingStore.getNumSummaryWindows(streamID, serde)
+                    : 0);
+        } else {
+            return backingStore.getNumSummaryWindows(streamID, serde);
+        }
     }
 
     public LandmarkWindow getLandmarkWindow(long lwid) throws BackingStoreException {
@@ -159,6 +751,15 @@ public class StreamWindowManager implements Serializable {
     }
 
     public void flushToDisk() throws BackingStoreException {
+        if (writeBackCache != null) {
+            synchronized (writeBackCache) {
+                if (!writeBackCache.isEmpty()) {
+                    LongArrayList swids = new LongArrayList(writeBackCache.keySet());
+                    backingStore.writeSummaryWindows(streamID, serde, swids, new ArrayList<>(writeBackCache.values()));
+                    evict(swids.size());
+                }
+            }
+        }
         backingStore.flushToDisk(streamID, serde);
     }
 }
@@ -0,0 +1,430 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.storage;
+
+import com.samsung.sra.datastore.SummaryWindow;
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Store-wide cache of deserialized summary windows with a byte budget, using W-TinyLFU: new windows enter a small LRU
+ * "window" segment, and on leaving it are only admitted into the main segmented LRU (probation + protected) if a
+ * frequency sketch says they are accessed more often than the main segment's eviction victim. This keeps one-off range
+ * scans from flushing the windows that repeated queries keep hitting.
+ *
+ * The cache is kept coherent with writes by the backing store, which announces every batch of puts and deletes before
+ * applying it (beginWrites) and reports it after (applyWrites or abortWrites). Both bump the stream's version, so a
+ * reader that missed and fetched a window from the backing store only inserts it if the version is unchanged since it
+ * took a stamp before the fetch. A reader combining cache hits with windows from a backing store snapshot must likewise
+ * only use hits while the version matches a stamp taken (with getStableVersion) before the snapshot.
+ *
+ * Thread-safe. Lookups take no lock: hits are recorded in a small lossy buffer, which is replayed into the frequency
+ * sketch and LRU order under the lock by whichever reader fills it (unless another thread holds the lock) or by the
+ * next write. Records dropped because the buffer wrapped around only make eviction slightly less accurate.
+ */
+class WindowCache {
+    /** Rough heap overhead of a cache entry and its window, on top of the window's serialized size */
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final double WINDOW_FRACTION = 0.01, PROTECTED_FRACTION = 0.8;
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private static class Node {
+        final long streamID, swid;
+        volatile SummaryWindow window;
+        long weight;
+        int segment;
+        Node prev, next;
+
+        Node(long streamID, long swid) {
+            this.streamID = streamID;
+            this.swid = swid;
+        }
+    }
+
+    /** Circular doubly-linked list with a sentinel head, LRU first */
+    private static class Segment {
+        final Node head = new Node(-1, -1);
+        long weight = 0;
+
+        Segment() {
+            head.prev = head.next = head;
+        }
+
+        Node first() {
+            return head.next != head ? head.next : null;
+        }
+
+        void addLast(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+            weight -= node.weight;
+        }
+    }
+
+    /** Write state of one stream. Only modified under lock */
+    private static class StreamVersion {
+        /** Bumped when a batch of writes begins and again when it ends */
+        volatile long version = 0;
+        volatile int writesInFlight = 0;
+    }
+
+    private static final int READ_BUFFER_SIZE = 64; // power of 2
+
+    /** Guards everything except nodes' windows and the read buffer */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long maxWeight, maxWindowWeight, maxProtectedWeight;
+    private final Segment[] segments = {new Segment(), new Segment(), new Segment()};
+    /**
+     * streamID -> swid -> node. Sorted by swid, so that range deletes can find their windows. Concurrent so that
+     * lookups need no lock; only modified under lock
+     */
+    private final ConcurrentHashMap<Long, ConcurrentNavigableMap<Long, Node>> nodes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, StreamVersion> versions = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long numEntries = 0;
+    /** Recent hits not yet replayed into the eviction policy, see recordHit */
+    private final AtomicReferenceArray<Node> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong numReads = new AtomicLong();
+    private final LongAdder numHits = new LongAdder();
+    private final LongAdder numEvictions = new LongAdder();
+
+    /** @param maxBytes  approximate heap budget for cached windows */
+    WindowCache(long maxBytes) {
+        this.maxWeight = maxBytes;
+        this.maxWindowWeight = Math.max(1, (long) (maxBytes * WINDOW_FRACTION));
+        this.maxProtectedWeight = (long) ((maxBytes - maxWindowWeight) * PROTECTED_FRACTION);
+    }
+
+    /**
+     * Returns null on a miss. Misses are counted in the frequency sketch by the putIfUnchanged that is expected to
+     * follow them
+     */
+    SummaryWindow get(long streamID, long swid) {
+        Node node = getNode(streamID, swid);
+        if (node == null) return null;
+        numHits.increment();
+        recordHit(node);
+        return node.window;
+    }
+
+    long getHitCount() {
+        return numHits.sum();
+    }
+
+    /** Number of windows dropped to stay within the byte budget (not counting ones invalidated by writes) */
+    long getEvictionCount() {
+        return numEvictions.sum();
+    }
+
+    /** Version stamp to take before fetching a window from the backing store, for putIfUnchanged */
+    long getVersion(long streamID) {
+        StreamVersion version = versions.get(streamID);
+        return version != null ? version.version : 0;
+    }
+
+    /**
+     * As getVersion, but returns -1 (a version no stream ever has) if writes to the stream are in flight, i.e. the
+     * backing store may already hold writes the cache does not reflect yet
+     */
+    long getStableVersion(long streamID) {
+        StreamVersion version = versions.get(streamID);
+        if (version == null) return 0;
+        long stamp = version.version; // before checking for writes in flight, see beginWrites
+        return version.writesInFlight == 0 ? stamp : -1;
+    }
+
+    /**
+     * Announce writes to one stream that the backing store is about to apply. Must be followed by applyWrites or
+     * abortWrites
+     */
+    void beginWrites(long streamID) {
+        lock.lock();
+        try {
+            StreamVersion version = versions.computeIfAbsent(streamID, k -> new StreamVersion());
+            ++version.writesInFlight; // before bumping version, so that getStableVersion cannot miss the write
+            ++version.version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Report that writes announced with beginWrites failed, without modifying the backing store */
+    void abortWrites(long streamID) {
+        lock.lock();
+        try {
+            endWrites(streamID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void endWrites(long streamID) {
+        StreamVersion version = versions.get(streamID);
+        ++version.version;
+        --version.writesInFlight;
+    }
+
+    /**
+     * Cache a window fetched from the backing store after a miss, unless a write to the stream was applied since
+     * version was taken
+     * @param serializedSize  size of the window in the backing store, used to estimate its footprint
+     */
+    void putIfUnchanged(long streamID, long swid, SummaryWindow window, int serializedSize, long version) {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            sketch.increment(streamID, swid);
+            if (getVersion(streamID) != version || getNode(streamID, swid) != null) return;
+            long weight = serializedSize + ENTRY_OVERHEAD;
+            if (weight > maxWeight - maxWindowWeight) return; // would flush the whole main segment
+            Node node = new Node(streamID, swid);
+            node.window = window;
+            node.weight = weight;
+            node.segment = WINDOW;
+            segments[WINDOW].addLast(node);
+            streamNodes(streamID).put(swid, node);
+            ++numEntries;
+            sketch.ensureCapacity(numEntries);
+            evictFromWindow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report writes announced with beginWrites and just applied to one stream in the backing store, with the same
+     * arguments as BackingStore.writeSummaryWindows: cached copies of deleted windows are dropped and those of
+     * overwritten windows replaced. Windows not already cached are not added
+     * @param serializedSizes  serialized size of each of windows (ignored for deletes)
+     */
+    void applyWrites(long streamID, LongList swids, List<SummaryWindow> windows, int[] serializedSizes,
+                     LongList rangeDeletes) {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            ConcurrentNavigableMap<Long, Node> streamNodes = nodes.get(streamID);
+            if (streamNodes != null) {
+                for (int i = 0; i < rangeDeletes.size(); i += 2) {
+                    long first = rangeDeletes.getLong(i), last = rangeDeletes.getLong(i + 1);
+                    if (first > last) continue;
+                    for (Node node : new ArrayList<>(streamNodes.subMap(first, true, last, true).values())) {
+                        remove(node);
+                    }
+                }
+                for (int i = 0; i < swids.size(); ++i) {
+                    Node node = streamNodes.get(swids.getLong(i));
+                    if (node == null) continue;
+                    SummaryWindow window = windows.get(i);
+                    if (window == null) {
+                        remove(node);
+                    } else {
+                        Segment segment = segments[node.segment];
+                        segment.weight -= node.weight;
+                        node.window = window;
+                        node.weight = serializedSizes[i] + ENTRY_OVERHEAD;
+                        segment.weight += node.weight;
+                    }
+                }
+                evictFromWindow();
+                evictFromMain();
+            }
+            // only now, so that a reader who sees any of the above also sees the writes as in flight or finished
+            endWrites(streamID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Node getNode(long streamID, long swid) {
+        ConcurrentNavigableMap<Long, Node> streamNodes = nodes.get(streamID);
+        return streamNodes != null ? streamNodes.get(swid) : null;
+    }
+
+    private ConcurrentNavigableMap<Long, Node> streamNodes(long streamID) {
+        return nodes.computeIfAbsent(streamID, k -> new ConcurrentSkipListMap<>());
+    }
+
+    /**
+     * Queue a hit for replay into the eviction policy. Replays once every READ_BUFFER_SIZE hits, if no other thread
+     * holds the lock; otherwise the buffer may wrap around and overwrite some hits before they are replayed
+     */
+    private void recordHit(Node node) {
+        long n = numReads.getAndIncrement();
+        int slot = (int) n & (READ_BUFFER_SIZE - 1);
+        readBuffer.lazySet(slot, node);
+        if (slot == READ_BUFFER_SIZE - 1 && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Replay buffered hits. Caller must hold lock */
+    private void drainReadBuffer() {
+        for (int i = 0; i < READ_BUFFER_SIZE; ++i) {
+            Node node = readBuffer.getAndSet(i, null);
+            if (node == null) continue;
+            sketch.increment(node.streamID, node.swid);
+            if (node.next != null) onHit(node); // else removed since the hit
+        }
+    }
+
+    private void onHit(Node node) {
+        segments[node.segment].remove(node);
+        if (node.segment == PROBATION) {
+            node.segment = PROTECTED;
+            segments[PROTECTED].addLast(node);
+            // demote protected LRU windows to make room
+            while (segments[PROTECTED].weight > maxProtectedWeight) {
+                Node demoted = segments[PROTECTED].first();
+                segments[PROTECTED].remove(demoted);
+                demoted.segment = PROBATION;
+                segments[PROBATION].addLast(demoted);
+            }
+        } else {
+            segments[node.segment].addLast(node);
+        }
+    }
+
+    /** Move LRU windows out of the window segment, into probation if they beat the main segment's victim */
+    private void evictFromWindow() {
+        long maxMainWeight = maxWeight - maxWindowWeight;
+        while (segments[WINDOW].weight > maxWindowWeight) {
+            Node candidate = segments[WINDOW].first();
+            segments[WINDOW].remove(candidate);
+            if (mainWeight() + candidate.weight > maxMainWeight) {
+                Node victim = segments[PROBATION].first();
+                if (victim == null) victim = segments[PROTECTED].first();
+                if (victim != null && sketch.frequency(candidate.streamID, candidate.swid)
+                        <= sketch.frequency(victim.streamID, victim.swid)) {
+                    drop(candidate);
+                    numEvictions.increment();
+                    continue;
+                }
+            }
+            candidate.segment = PROBATION;
+            segments[PROBATION].addLast(candidate);
+            evictFromMain();
+        }
+    }
+
+    private void evictFromMain() {
+        long maxMainWeight = maxWeight - maxWindowWeight;
+        while (mainWeight() > maxMainWeight) {
+            Node victim = segments[PROBATION].first();
+            if (victim == null) victim = segments[PROTECTED].first();
+            remove(victim);
+            numEvictions.increment();
+        }
+    }
+
+    private long mainWeight() {
+        return segments[PROBATION].weight + segments[PROTECTED].weight;
+    }
+
+    private void remove(Node node) {
+        segments[node.segment].remove(node);
+        drop(node);
+    }
+
+    /** Forget a node that is not linked into any segment */
+    private void drop(Node node) {
+        nodes.get(node.streamID).remove(node.swid);
+        --numEntries;
+    }
+
+    /**
+     * Count-min sketch of recent access frequencies, with 4 rows of byte counters saturating at 15. All counters are
+     * halved once every 10 increments per counter, so that the sketch tracks recent popularity
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15, SAMPLE_FACTOR = 10;
+        private static final long[] SEEDS = {0x97CB3127A9DE2F65L, 0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L,
+                0x9AE16A3B2F90404FL};
+        private byte[][] rows = new byte[4][1024];
+        private int mask = 1023, numIncrements = 0;
+
+        /** Widen the sketch (losing its counts) once it is narrower than twice the number of cached entries */
+        void ensureCapacity(long numEntries) {
+            if (numEntries * 2 <= rows[0].length || rows[0].length >= 1 << 28) return;
+            int width = Integer.highestOneBit((int) Math.min(numEntries * 4, 1 << 28));
+            rows = new byte[4][width];
+            mask = width - 1;
+            numIncrements = 0;
+        }
+
+        void increment(long streamID, long swid) {
+            long hash = hash(streamID, swid);
+            for (int r = 0; r < rows.length; ++r) {
+                int i = index(hash, r);
+                if (rows[r][i] < MAX_COUNT) ++rows[r][i];
+            }
+            if (++numIncrements >= SAMPLE_FACTOR * rows[0].length) age();
+        }
+
+        int frequency(long streamID, long swid) {
+            long hash = hash(streamID, swid);
+            int min = MAX_COUNT;
+            for (int r = 0; r < rows.length; ++r) {
+                min = Math.min(min, rows[r][index(hash, r)]);
+            }
+            return min;
+        }
+
+        private void age() {
+            for (byte[] row : rows) {
+                for (int i = 0; i < row.length; ++i) {
+                    row[i] >>= 1;
+                }
+            }
+            numIncrements /= 2;
+        }
+
+        private int index(long hash, int row) {
+            long h = hash * SEEDS[row];
+            return (int) (h >>> 32) & mask;
+        }
+
+        private static long hash(long streamID, long swid) {
+            long h = streamID * 0xC2B2AE3D27D4EB4FL + swid;
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -16,21 +16,134 @@
 package com.samsung.sra.datastore;
 
 import com.samsung.sra.datastore.aggregates.SimpleCountOperator;
+import com.samsung.sra.datastore.aggregates.SumOperator;
 import com.samsung.sra.datastore.ingest.CountBasedWBMH;
+import com.samsung.sra.datastore.ingest.WaitStrategy;
 import com.samsung.sra.datastore.storage.MainMemoryBackingStore;
 import com.samsung.sra.datastore.storage.StreamWindowManager;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class CountBasedWBMHTest {
     @Test
     public void exponential() throws Exception {
+        exponentialTest(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2))));
+    }
+
+    @Test
+    public void exponentialRingBuffers() throws Exception {
+        exponentialTest(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)), WaitStrategy.YIELD));
+    }
+
+    @Test
+    public void exponentialParallelMerge() throws Exception {
+        exponentialTest(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)))
+                .setParallelizeMerge(2));
+    }
+
+    @Test
+    public void exponentialDeferredMerge() throws Exception {
+        exponentialTest(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)))
+                .setDeferredMerging(3));
+    }
+
+    @Test
+    public void exponentialInline() throws Exception {
+        exponentialTest(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)))
+                .setInlineIngest(true));
+    }
+
+    /** Inline ingest, and switching to and from it mid-stream, must produce the same windows as threaded ingest */
+    @Test
+    public void inlineIngest() throws Exception {
+        int N = 100_000;
+        List<String> expected = summarize(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2))), N, 1 << 6);
+        assertEquals(expected, summarize(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)))
+                .setInlineIngest(true), N, 1 << 6));
+
+        StreamWindowManager swm = new StreamWindowManager(0L,
+                new WindowOperator[]{new SimpleCountOperator(), new SumOperator()}, true);
+        swm.populateTransientFields(new MainMemoryBackingStore());
+        CountBasedWBMH wbmh = new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)))
+                .setValuesAreLongs(true).setBufferSize(1 << 6, 2);
+        wbmh.populateTransientFields(swm);
+        for (long t = 0; t < N; ++t) {
+            if (t == N / 3) wbmh.setInlineIngest(true);
+            if (t == 2 * N / 3) wbmh.setInlineIngest(false);
+            wbmh.append(t, t);
+        }
+        wbmh.flush();
+        // switching flushes, so window boundaries differ from the expected ones; check the windows still tile [0, N)
+        long expectedCS = 0, count = 0, sum = 0;
+        for (SummaryWindow window : swm.getSummaryWindowsOverlapping(0, N).collect(Collectors.toList())) {
+            assertEquals(expectedCS, window.cs);
+            expectedCS = window.ce + 1;
+            count += (Long) window.aggregates[0];
+            sum += (Long) window.aggregates[1];
+        }
+        wbmh.close();
+        assertEquals(N, expectedCS);
+        assertEquals(N, count);
+        assertEquals((long) N * (N - 1) / 2, sum);
+    }
+
+    /** Enough windows to make HeapMerger compact its window arrays */
+    @Test
+    public void manyWindows() throws Exception {
+        int N = 200_000;
+        long expectedCS = 0;
+        for (String window : summarize(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2))), N, 1 << 6)) {
+            // "cs-ce:count,sum"
+            long cs = Long.parseLong(window.substring(0, window.indexOf('-')));
+            long ce = Long.parseLong(window.substring(window.indexOf('-') + 1, window.indexOf(':')));
+            assertEquals(expectedCS, cs);
+            expectedCS = ce + 1;
+        }
+        assertEquals(N, expectedCS);
+    }
+
+    /**
+     * Buffers are large enough that the parallel Summarizer fills their windows concurrently; results must match the
+     * serial one
+     */
+    @Test
+    public void parallelSummarize() throws Exception {
+        int N = 2_000_000, bufferSize = 1 << 20;
+        CountBasedWBMH parallel = new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)))
+                .setParallelizeSummarize(4);
+        assertEquals(
+                summarize(new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2))), N, bufferSize),
+                summarize(parallel, N, bufferSize));
+        // buffers of up to 1 << 14 values are summarized serially even in parallel mode
+        assertTrue(parallel.getBufferSize() > 1 << 14);
+    }
+
+    private List<String> summarize(CountBasedWBMH wbmh, int N, int bufferSize) throws Exception {
+        StreamWindowManager swm = new StreamWindowManager(0L,
+                new WindowOperator[]{new SimpleCountOperator(), new SumOperator()}, true);
+        swm.populateTransientFields(new MainMemoryBackingStore());
+        wbmh.setValuesAreLongs(true).setBufferSize(bufferSize, 2);
+        wbmh.populateTransientFields(swm);
+        for (long t = 0; t < N; ++t) {
+            wbmh.append(t, t);
+        }
+        wbmh.flush();
+        List<String> windows = swm.getSummaryWindowsOverlapping(0, N)
+                .map(w -> w.cs + "-" + w.ce + ":" + w.aggregates[0] + "," + w.aggregates[1])
+                .collect(Collectors.toList());
+        wbmh.close();
+        return windows;
+    }
+
+    private void exponentialTest(CountBasedWBMH wbmh) throws Exception {
         StreamWindowManager swm = new StreamWindowManager(0L, new WindowOperator[]{new SimpleCountOperator()}, true);
         swm.populateTransientFields(new MainMemoryBackingStore());
-        CountBasedWBMH wbmh = new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)));
         wbmh.populateTransientFields(swm);
 
         Integer[][] expectedEvolution = {
@@ -61,5 +174,6 @@ public class CountBasedWBMHTest {
                     .collect(Collectors.toList())
                     .toArray(new Integer[0]));
         }
+        wbmh.close();
     }
 }
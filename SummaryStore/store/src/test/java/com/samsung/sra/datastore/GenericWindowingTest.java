@@ -56,4 +56,57 @@ public class GenericWindowingTest {
         assertThat(exp.getWindowsCoveringUpto(62), is(Arrays.asList(1L, 2L, 4L, 8L, 16L)));
         assertThat(exp.getWindowsCoveringUpto(63), is(Arrays.asList(1L, 2L, 4L, 8L, 16L, 32L)));
     }
-}
\ No newline at end of file
+
+    /** RationalPowerWindowing must agree with GenericWindowing over the same window lengths */
+    @Test
+    public void rationalPowerMatchesGeneric() throws Exception {
+        long[][] params = {{1, 1, 1, 1}, {2, 1, 1, 1}, {1, 2, 2, 3}, {2, 1, 3, 2}, {1, 0, 1, 4}};
+        for (long[] pqrs : params) {
+            long p = pqrs[0], q = pqrs[1], R = pqrs[2], S = pqrs[3];
+            RationalPowerWindowing rational = new RationalPowerWindowing(p, q, R, S);
+            GenericWindowing generic = new GenericWindowing(new WindowLengthsSequence() {
+                private long k = 1, remaining = R;
+
+                @Override
+                public long nextWindowLength() {
+                    if (remaining == 0) {
+                        ++k;
+                        remaining = R * (long) Math.pow(k, p - 1);
+                    }
+                    --remaining;
+                    return S * (long) Math.pow(k, q);
+                }
+
+                @Override
+                public long maxWindowSize() {
+                    return q == 0 ? S : Long.MAX_VALUE;
+                }
+            });
+            for (long T = 1; T <= 200; ++T) {
+                for (long Tr = 0; Tr < T; ++Tr) {
+                    for (long Tl = Math.max(0, Tr - 40); Tl <= Tr; ++Tl) {
+                        assertEquals("p, q, R, S = " + Arrays.toString(pqrs) + ", Tl = " + Tl + ", Tr = " + Tr + ", T = " + T,
+                                generic.getFirstContainingTime(Tl, Tr, T), rational.getFirstContainingTime(Tl, Tr, T));
+                    }
+                }
+            }
+            assertEquals(generic.getWindowsCoveringUpto(1000), rational.getWindowsCoveringUpto(1000));
+        }
+    }
+
+    @Test
+    public void sharedTables() throws Exception {
+        WindowingRegistry registry = new WindowingRegistry();
+        GenericWindowing a = new GenericWindowing(new ExponentialWindowLengths(2)),
+                b = new GenericWindowing(new ExponentialWindowLengths(2)),
+                c = new GenericWindowing(new ExponentialWindowLengths(3));
+        assertEquals(115, a.getFirstContainingTime(84, 99, 100)); // grows a's tables before sharing
+        for (Windowing w : new Windowing[]{a, b, c, new RationalPowerWindowing(1, 1, 1, 1),
+                new RationalPowerWindowing(1, 1, 1, 1)}) {
+            w.shareTables(registry);
+        }
+        assertEquals(3, registry.size());
+        assertEquals(115, b.getFirstContainingTime(84, 99, 100));
+        assertThat(b.getWindowsCoveringUpto(63), is(Arrays.asList(1L, 2L, 4L, 8L, 16L, 32L)));
+    }
+}
@@ -16,11 +16,20 @@
 package com.samsung.sra.datastore;
 
 import com.samsung.sra.datastore.aggregates.CMSOperator;
+import com.samsung.sra.datastore.aggregates.DoubleMaxOperator;
+import com.samsung.sra.datastore.aggregates.DoubleSumOperator;
 import com.samsung.sra.datastore.aggregates.MaxOperator;
 import com.samsung.sra.datastore.aggregates.SimpleCountOperator;
+import com.samsung.sra.datastore.aggregates.SumOperator;
+import com.samsung.sra.datastore.aggregates.TDigestOperator;
 import com.samsung.sra.datastore.ingest.CountBasedWBMH;
+import com.samsung.sra.datastore.ingest.TimeBasedWBMH;
+import com.samsung.sra.datastore.storage.ColumnFamilyTuning;
+import com.samsung.sra.datastore.storage.RocksDBBackingStore;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.junit.Test;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
 
 import java.util.List;
 import java.util.function.Function;
@@ -30,24 +39,47 @@ import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SummaryStoreTest {
     private static final long streamID = 0;
 
     @Test
     public void exponential() throws Exception {
-        exponentialTest(true);
-        exponentialTest(false);
+        exponentialTest(true, 0, 0, 0);
+        exponentialTest(false, 0, 0, 0);
     }
 
-    private void exponentialTest(boolean withReadIndex) throws Exception {
+    @Test
+    public void sharedIngestThreads() throws Exception {
+        exponentialTest(true, 2, 0, 0);
+    }
+
+    @Test
+    public void writeBackCache() throws Exception {
+        exponentialTest(true, 0, 8, 0);
+        exponentialTest(false, 0, 8, 0);
+    }
+
+    @Test
+    public void deferredMerging() throws Exception {
+        exponentialTest(true, 0, 0, 4);
+        exponentialTest(false, 0, 0, 4);
+        exponentialTest(false, 0, 8, 4);
+    }
+
+    private void exponentialTest(boolean withReadIndex, int ingestThreads, int writeBackCacheSize,
+                                 long batchesPerCompaction) throws Exception {
         String storeLoc = "/tmp/tdstore";
         Runtime.getRuntime().exec(new String[]{"sh", "-c", "rm -rf " + storeLoc}).waitFor();
 
         // create and populate store
-        SummaryStore store = new SummaryStore(storeLoc, new SummaryStore.StoreOptions().setKeepReadIndexes(withReadIndex));
-        Windowing windowing = new GenericWindowing(new ExponentialWindowLengths(2));
-        CountBasedWBMH wbmh = new CountBasedWBMH(windowing).setBufferSize(62);
+        SummaryStore store = new SummaryStore(storeLoc, new SummaryStore.StoreOptions()
+                .setKeepReadIndexes(withReadIndex)
+                .setIngestThreads(ingestThreads)
+                .setWriteBackCacheSizePerStream(writeBackCacheSize));
+        CountBasedWBMH wbmh = exponentialWBMH().setDeferredMerging(batchesPerCompaction);
         store.registerStream(streamID, wbmh,
                 new SimpleCountOperator(),
                 new CMSOperator(5, 100, 0),
@@ -81,12 +113,290 @@ public class SummaryStoreTest {
 
         // close and reopen store (in read-only mode), then check everything still OK
         store.close();
-        store = new SummaryStore(storeLoc, new SummaryStore.StoreOptions().setKeepReadIndexes(withReadIndex).setReadOnly(true));
+        store = new SummaryStore(storeLoc, new SummaryStore.StoreOptions()
+                .setKeepReadIndexes(withReadIndex)
+                .setIngestThreads(ingestThreads)
+                .setReadOnly(true));
         assertStateIsCorrect(store);
 
         store.close();
     }
 
+    /** Exponential windowing with 62-value ingest buffers, so that a few thousand values exercise every stage */
+    private static CountBasedWBMH exponentialWBMH() {
+        return new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2))).setBufferSize(62);
+    }
+
+    /** Both stores must give the same answer, error bounds included, to the query on streamID */
+    private static void assertSameAnswer(SummaryStore expected, SummaryStore actual, long t0, long t1, int op,
+                                         Object... params) throws Exception {
+        assertEquals(expected.query(streamID, t0, t1, op, params).toString(),
+                actual.query(streamID, t0, t1, op, params).toString());
+    }
+
+    @Test
+    public void appendBatch() throws Exception {
+        SummaryStore pointStore = new SummaryStore(null), batchStore = new SummaryStore(null);
+        for (SummaryStore store : new SummaryStore[]{pointStore, batchStore}) {
+            store.registerStream(streamID, exponentialWBMH().setValuesAreLongs(true),
+                    new SimpleCountOperator(), new MaxOperator());
+        }
+        int N = 1022;
+        long[] ts = new long[N], vs = new long[N];
+        for (int i = 0; i < N; ++i) {
+            ts[i] = i;
+            vs[i] = i % 10;
+            pointStore.append(streamID, ts[i], vs[i]);
+        }
+        for (int off = 0; off < N; off += 100) {
+            batchStore.appendBatch(streamID, ts, vs, off, Math.min(100, N - off));
+        }
+        pointStore.flush(streamID);
+        batchStore.flush(streamID);
+
+        List<SummaryWindow> expected = pointStore.streams.get(streamID).windowManager
+                .getSummaryWindowsOverlapping(0, N).collect(Collectors.toList());
+        List<SummaryWindow> actual = batchStore.streams.get(streamID).windowManager
+                .getSummaryWindowsOverlapping(0, N).collect(Collectors.toList());
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(N, batchStore.getStreamStatistics(streamID).getNumValues());
+
+        boolean exceptionThrown = false;
+        try {
+            batchStore.appendBatch(streamID, new long[]{N, N - 1}, new long[]{0, 0}, 0, 2);
+        } catch (StreamException e) {
+            exceptionThrown = true;
+        }
+        assertEquals(true, exceptionThrown);
+        pointStore.close();
+        batchStore.close();
+    }
+
+    /**
+     * The TDigest is sized to keep every value as its own centroid, so its (otherwise randomized) clustering is exact
+     * and the boxed and double-buffered stores must agree on quantiles too
+     */
+    @Test
+    public void appendDoubleBatch() throws Exception {
+        int N = 1022;
+        SummaryStore boxedStore = new SummaryStore(null), doubleStore = new SummaryStore(null);
+        for (SummaryStore store : new SummaryStore[]{boxedStore, doubleStore}) {
+            store.registerStream(streamID, exponentialWBMH().setValuesAreDoubles(store == doubleStore),
+                    new SimpleCountOperator(), new DoubleMaxOperator(), new DoubleSumOperator(),
+                    new TDigestOperator(16 + 60 * 2 * N)); // compression 2N
+        }
+        long[] ts = new long[N];
+        double[] vs = new double[N];
+        double sum = 0;
+        for (int i = 0; i < N; ++i) {
+            ts[i] = i;
+            vs[i] = (i * 37 % N) * 0.5 + 0.25; // distinct values, in scrambled order
+            sum += vs[i];
+            boxedStore.append(streamID, ts[i], vs[i]);
+        }
+        for (int off = 0; off < N; off += 100) {
+            doubleStore.appendBatch(streamID, ts, vs, off, Math.min(100, N - off));
+        }
+        boxedStore.flush(streamID);
+        doubleStore.flush(streamID);
+        for (int op = 0; op < 3; ++op) {
+            assertSameAnswer(boxedStore, doubleStore, 0, N - 1, op);
+        }
+        for (double q : new double[]{0.1, 0.5, 0.9}) {
+            assertSameAnswer(boxedStore, doubleStore, 0, N - 1, 3, q);
+            // exact up to TDigest interpolation, i.e. within a couple of neighbouring values (0.5 apart)
+            assertEquals(q * (N - 1) * 0.5 + 0.25,
+                    (Double) ((ResultError) doubleStore.query(streamID, 0, N - 1, 3, q)).result, 1);
+        }
+        for (SummaryStore store : new SummaryStore[]{boxedStore, doubleStore}) {
+            assertEquals((N - 1) * 0.5 + 0.25, (Double) ((ResultError) store.query(streamID, 0, N - 1, 1)).result, 0);
+            assertEquals(sum, (Double) ((ResultError) store.query(streamID, 0, N - 1, 2)).result, 1e-9);
+        }
+        boxedStore.close();
+        doubleStore.close();
+    }
+
+    /** Sum and max over a double-buffered stream need the double operators; the long ones are rejected up front */
+    @Test
+    public void doubleStreamSumAndMax() throws Exception {
+        SummaryStore store = new SummaryStore(null);
+        for (WindowOperator longOperator : new WindowOperator[]{new SumOperator(), new MaxOperator()}) {
+            try {
+                store.registerStream(streamID, exponentialWBMH().setValuesAreDoubles(true),
+                        new SimpleCountOperator(), longOperator);
+                fail("registering " + longOperator.getClass().getSimpleName() + " on a double stream should fail");
+            } catch (StreamException expected) {
+            }
+        }
+        store.registerStream(streamID, exponentialWBMH().setValuesAreDoubles(true),
+                new SimpleCountOperator(), new DoubleSumOperator(), new DoubleMaxOperator());
+        int N = 1000;
+        for (long t = 0; t < N; ++t) {
+            store.append(streamID, t, t * 0.5);
+        }
+        store.flush(streamID);
+        assertEquals((double) N, (Double) ((ResultError) store.query(streamID, 0, N - 1, 0)).result, 0);
+        assertEquals(0.5 * N * (N - 1) / 2, (Double) ((ResultError) store.query(streamID, 0, N - 1, 1)).result, 0);
+        assertEquals(0.5 * (N - 1), (Double) ((ResultError) store.query(streamID, 0, N - 1, 2)).result, 0);
+        store.close();
+    }
+
+    @Test
+    public void queryFresh() throws Exception {
+        SummaryStore store = new SummaryStore(null);
+        store.registerStream(streamID, exponentialWBMH(), new SimpleCountOperator(), new MaxOperator());
+        int N = 1000;
+        for (long i = 0; i < N; ++i) {
+            store.append(streamID, i, i);
+        }
+        // without a flush, values in the ingest pipeline must still be reflected
+        Object freshCount = store.queryFresh(streamID, 0, N - 1, 0, 0.95);
+        Object freshMax = store.queryFresh(streamID, 0, N - 1, 1);
+        store.flush(streamID);
+        assertEquals(store.query(streamID, 0, N - 1, 0, 0.95).toString(), freshCount.toString());
+        assertEquals(store.query(streamID, 0, N - 1, 1).toString(), freshMax.toString());
+        store.close();
+    }
+
+    @Test
+    public void multiProducer() throws Exception {
+        SummaryStore serialStore = new SummaryStore(null), producerStore = new SummaryStore(null);
+        for (SummaryStore store : new SummaryStore[]{serialStore, producerStore}) {
+            store.registerStream(streamID, exponentialWBMH(), new SimpleCountOperator(), new MaxOperator());
+        }
+        int numProducers = 4, N = 20_000;
+        for (long i = 0; i < N; ++i) {
+            serialStore.append(streamID, i, i % 1000);
+        }
+        // producer p appends timestamps p, p + numProducers, p + 2 * numProducers, ...
+        StreamProducer[] producers = new StreamProducer[numProducers];
+        Thread[] threads = new Thread[numProducers];
+        // create all producers before any starts appending, else early ones could drain past later ones' timestamps
+        for (int p = 0; p < numProducers; ++p) {
+            producers[p] = producerStore.newProducer(streamID, 64);
+        }
+        for (int p = 0; p < numProducers; ++p) {
+            StreamProducer producer = producers[p];
+            long first = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    for (long i = first; i < N; i += numProducers) {
+                        producer.append(i, i % 1000);
+                    }
+                    producer.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (SummaryStore store : new SummaryStore[]{serialStore, producerStore}) {
+            store.flush(streamID);
+        }
+        for (StreamProducer producer : producers) {
+            assertEquals(0, producer.getNumRejected());
+        }
+        // producers hand the stream merged, in-order runs: nothing is reordered or dropped
+        StreamStatistics stats = producerStore.getStreamStatistics(streamID);
+        assertEquals(N, stats.getNumValues());
+        assertEquals(0, stats.getNumReordered());
+        assertEquals(0, stats.getNumDropped());
+        assertSameAnswer(serialStore, producerStore, 0, N - 1, 0, 0.95);
+        assertSameAnswer(serialStore, producerStore, 0, N - 1, 1);
+        serialStore.close();
+        producerStore.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void lateAndIdleProducers() throws Exception {
+        SummaryStore store = new SummaryStore(null);
+        store.registerStream(streamID, exponentialWBMH(), new SimpleCountOperator());
+        StreamProducer idle = store.newProducer(streamID, 16), busy = store.newProducer(streamID, 16);
+        // busy fills its buffer many times over while idle never appends; must not block forever
+        for (long i = 0; i < 100; ++i) {
+            busy.append(i, i);
+        }
+        // appends behind values already in the stream are refused rather than staged and dropped, including from
+        // producers created after the fact
+        StreamProducer late = store.newProducer(streamID, 16);
+        for (StreamProducer producer : new StreamProducer[]{idle, late}) {
+            boolean exceptionThrown = false;
+            try {
+                producer.append(0, 0L);
+            } catch (StreamException e) {
+                exceptionThrown = true;
+            }
+            assertTrue(exceptionThrown);
+        }
+        late.append(1000, 1000L);
+        // so are appends at a timestamp another producer has staged, and ones behind a direct append to the stream
+        boolean exceptionThrown = false;
+        try {
+            busy.append(1000, 1000L);
+        } catch (StreamException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown);
+        store.append(streamID, 2000, 2000L);
+        exceptionThrown = false;
+        try {
+            busy.append(1500, 1500L);
+        } catch (StreamException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown);
+        assertEquals(1, idle.getNumRejected());
+        assertEquals(2, busy.getNumRejected());
+        assertEquals(1, late.getNumRejected());
+        for (StreamProducer producer : new StreamProducer[]{idle, busy, late}) {
+            producer.close();
+        }
+        store.flush(streamID);
+        // every value a producer accepted made it into the stream, and refused ones never reached it
+        StreamStatistics stats = store.getStreamStatistics(streamID);
+        assertEquals(102, stats.getNumValues());
+        assertEquals(0, stats.getNumReordered());
+        assertEquals(0, stats.getNumDropped());
+        store.close();
+    }
+
+    @Test
+    public void lateness() throws Exception {
+        SummaryStore orderedStore = new SummaryStore(null), reorderedStore = new SummaryStore(null);
+        for (SummaryStore store : new SummaryStore[]{orderedStore, reorderedStore}) {
+            store.registerStream(streamID, exponentialWBMH(), new SimpleCountOperator(), new MaxOperator());
+        }
+        reorderedStore.setLateness(streamID, 20);
+        int N = 1000;
+        for (long i = 0; i < N; ++i) {
+            orderedStore.append(streamID, 2 * i, i);
+        }
+        // reverse each block of 8 timestamps (at most 14 time units late)
+        for (long block = 0; block < N; block += 8) {
+            for (long i = Math.min(N, block + 8) - 1; i >= block; --i) {
+                reorderedStore.append(streamID, 2 * i, i);
+            }
+            if (block == 504) {
+                reorderedStore.append(streamID, 101, -1L); // far too late
+            }
+        }
+        for (SummaryStore store : new SummaryStore[]{orderedStore, reorderedStore}) {
+            store.flush(streamID);
+        }
+        StreamStatistics stats = reorderedStore.getStreamStatistics(streamID);
+        assertEquals(N, stats.getNumValues());
+        assertEquals(1, stats.getNumDropped());
+        assertEquals(N / 8 * 7, stats.getNumReordered());
+        assertEquals(0, orderedStore.getStreamStatistics(streamID).getNumReordered());
+        assertSameAnswer(orderedStore, reorderedStore, 0, 2 * N, 0, 0.95);
+        assertSameAnswer(orderedStore, reorderedStore, 0, 2 * N, 1);
+        orderedStore.close();
+        reorderedStore.close();
+    }
+
     /*private void printState(SummaryStore store) throws Exception {
         store.printWindowState(streamID);
         long t0 = 1, t1 = 511;
@@ -212,4 +522,228 @@ public class SummaryStoreTest {
                 .collect(Collectors.toList())
                 .toArray(new Integer[0]));
     }
+
+    @Test
+    public void ingestMemoryBudget() throws Exception {
+        SummaryStore store = new SummaryStore(null);
+        long hotID = 1, coldID = 2, otherColdID = 3;
+        for (long id : new long[]{hotID, coldID, otherColdID}) {
+            store.registerStream(id, exponentialWBMH(), new SimpleCountOperator());
+        }
+        long budget = 1 << 20;
+        try (IngestMemoryManager manager = new IngestMemoryManager(store.streams, budget, Long.MAX_VALUE)) {
+            manager.rebalance(); // establishes baseline counts
+            int N = 100_000;
+            for (long i = 0; i < N; ++i) {
+                store.append(hotID, i, i);
+            }
+            CountBasedWBMH hotWBMH = (CountBasedWBMH) store.streams.get(hotID).wbmh;
+            long hotBufferSize = hotWBMH.getBufferSize();
+            manager.rebalance();
+            long hotCapacity = store.streams.get(hotID).getIngestBufferCapacity();
+            long coldCapacity = store.streams.get(coldID).getIngestBufferCapacity();
+            assertTrue(hotCapacity > 62 * 4);
+            assertTrue(hotCapacity > coldCapacity);
+            // all three streams buffer values of the same size
+            assertTrue((hotCapacity + 2 * coldCapacity) * store.streams.get(hotID).getIngestBytesPerValue() <= budget);
+            // resizes wait for the next buffer boundary instead of flushing
+            assertEquals(hotBufferSize, hotWBMH.getBufferSize());
+            assertTrue(hotCapacity > hotBufferSize * hotWBMH.getNumBuffers());
+            for (long i = N; i < 2 * N; ++i) {
+                store.append(hotID, i, i);
+            }
+            // the Ingester applied the resize, aligned down to window boundaries
+            long appliedCapacity = hotWBMH.getBufferSize() * hotWBMH.getNumBuffers();
+            assertTrue(hotBufferSize * hotWBMH.getNumBuffers() < appliedCapacity && appliedCapacity <= hotCapacity);
+            assertEquals(appliedCapacity, store.streams.get(hotID).getIngestBufferCapacity());
+            store.flush(hotID);
+            assertEquals(2 * N, store.getStreamStatistics(hotID).getNumValues());
+        }
+        // too small for every stream to get MIN_BUFFERED_VALUES: buffers must shrink to fit anyway
+        long tinyBudget = 1 << 14;
+        try (IngestMemoryManager manager = new IngestMemoryManager(store.streams, tinyBudget, Long.MAX_VALUE)) {
+            manager.rebalance();
+            long bytes = 0;
+            for (long id : new long[]{hotID, coldID, otherColdID}) {
+                bytes += store.streams.get(id).getIngestBufferCapacity() * store.streams.get(id).getIngestBytesPerValue();
+            }
+            assertTrue(bytes <= tinyBudget);
+        }
+        store.close();
+    }
+
+    @Test
+    public void timeBasedDecay() throws Exception {
+        // three streams spanning the same 1000 time units (of 10 timestamps each): one value per unit, ten values per
+        // unit, and bursts of one value per timestamp in 10% of the time. Window counts only depend on the time span
+        SummaryStore store = new SummaryStore(null);
+        long steadyID = 1, denseID = 2, burstyID = 3, T = 10_000;
+        for (long id : new long[]{steadyID, denseID, burstyID}) {
+            store.registerStream(id, new TimeBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)), 10),
+                    new SimpleCountOperator(), new SumOperator());
+        }
+        long[] denseTimestamps = new long[(int) T], denseValues = new long[(int) T];
+        for (int i = 0; i < T; ++i) {
+            denseTimestamps[i] = i;
+            denseValues[i] = 1;
+        }
+        for (int off = 0; off < T; off += 999) {
+            store.appendBatch(denseID, denseTimestamps, denseValues, off, (int) Math.min(999, T - off));
+        }
+        for (long ts = 0; ts < T; ++ts) {
+            if (ts % 10 == 0) store.append(steadyID, ts, 1L);
+            if (ts % 2000 < 200 || ts == T - 1) store.append(burstyID, ts, 1L);
+            if (ts == T / 2) store.flush(steadyID); // values arriving after a flush must join the flushed slot
+        }
+        // as many windows as count-based decay keeps for one value per time unit
+        long countBasedID = 4;
+        store.registerStream(countBasedID, new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2))),
+                new SimpleCountOperator(), new SumOperator());
+        for (long ts = 0; ts < T / 10; ++ts) {
+            store.append(countBasedID, ts, 1L);
+        }
+        store.flush(countBasedID);
+        long maxWindows = store.getNumSummaryWindows(countBasedID);
+        for (long id : new long[]{steadyID, denseID, burstyID}) {
+            store.flush(id);
+            assertTrue(store.getNumSummaryWindows(id) <= maxWindows);
+            long N = store.getStreamStatistics(id).getNumValues();
+            assertEquals(N, ((Number) ((ResultError) store.query(id, 0, T - 1, 1)).result).doubleValue(), 0);
+        }
+        assertEquals(store.getNumSummaryWindows(steadyID), store.getNumSummaryWindows(denseID));
+        assertEquals(T, store.getStreamStatistics(denseID).getNumValues());
+        store.close();
+    }
+
+    @Test
+    public void columnFamilyTuning() throws Exception {
+        String storeLoc = "/tmp/tdstore-cf";
+        Runtime.getRuntime().exec(new String[]{"sh", "-c", "rm -rf " + storeLoc}).waitFor();
+        SummaryStore store = new SummaryStore(storeLoc, new SummaryStore.StoreOptions()
+                .setSummaryColumnFamily(new ColumnFamilyTuning(4096, 1 << 20, 1 << 20)
+                        .setCompactionStyle(CompactionStyle.UNIVERSAL)
+                        .setCompressionType(CompressionType.NO_COMPRESSION))
+                .setLandmarkColumnFamily(ColumnFamilyTuning.forLandmarkWindows().setBlockCacheSize(0))
+                .setAuxColumnFamily(ColumnFamilyTuning.forAux().setBlockSize(1024)));
+        store.registerStream(streamID, exponentialWBMH(), new SimpleCountOperator());
+        int N = 10_000;
+        for (long i = 0; i < N; ++i) {
+            if (i == 100) store.startLandmark(streamID, i);
+            store.append(streamID, i, i);
+            if (i == 199) store.endLandmark(streamID, i);
+        }
+        store.close();
+
+        store = new SummaryStore(storeLoc, new SummaryStore.StoreOptions().setReadOnly(true));
+        assertEquals(N, store.getStreamStatistics(streamID).getNumValues());
+        assertEquals(100, ((Number) ((ResultError) store.query(streamID, 100, 199, 0)).result).doubleValue(), 0);
+        store.close();
+    }
+
+    @Test
+    public void prefixScans() throws Exception {
+        // several streams side by side in the summary column family, so that seeks run off the end of one stream's
+        // key prefix into the next one's (or off the end of the DB, for the last stream)
+        String storeLoc = "/tmp/tdstore-prefix";
+        Runtime.getRuntime().exec(new String[]{"sh", "-c", "rm -rf " + storeLoc}).waitFor();
+        SummaryStore.StoreOptions options = new SummaryStore.StoreOptions().setKeepReadIndexes(false);
+        SummaryStore store = new SummaryStore(storeLoc, options), reference = new SummaryStore(null, options);
+        int numStreams = 3;
+        for (long sid = 0; sid < numStreams; ++sid) {
+            for (SummaryStore s : new SummaryStore[]{store, reference}) {
+                s.registerStream(sid, exponentialWBMH(), new SimpleCountOperator());
+                for (long i = 0; i < 1000 * (sid + 1); ++i) {
+                    s.append(sid, i, i);
+                }
+                s.flush(sid);
+            }
+        }
+        store.close();
+
+        store = new SummaryStore(storeLoc, options);
+        for (long sid = 0; sid < numStreams; ++sid) {
+            long T = 1000 * (sid + 1) - 1;
+            assertEquals(reference.getNumSummaryWindows(sid), store.getNumSummaryWindows(sid));
+            for (long t0 : new long[]{0, T / 3, T - 10, T}) {
+                assertEquals(((Number) ((ResultError) reference.query(sid, t0, T, 0)).result).doubleValue(),
+                        ((Number) ((ResultError) store.query(sid, t0, T, 0)).result).doubleValue(), 0);
+            }
+        }
+        store.close();
+        reference.close();
+    }
+
+    @Test
+    public void readCacheReadWrite() throws Exception {
+        // small enough budget that windows are evicted, and shared by two streams; queries interleaved with ingest
+        // must never see windows that merges have since replaced or deleted
+        for (boolean keepReadIndexes : new boolean[]{true, false}) {
+            String storeLoc = "/tmp/tdstore-cache-" + keepReadIndexes;
+            Runtime.getRuntime().exec(new String[]{"sh", "-c", "rm -rf " + storeLoc}).waitFor();
+            SummaryStore store = new SummaryStore(storeLoc, new SummaryStore.StoreOptions()
+                    .setKeepReadIndexes(keepReadIndexes)
+                    .setReadCacheBytes(2 * 1024));
+            SummaryStore reference = new SummaryStore(null, new SummaryStore.StoreOptions());
+            for (long sid = 0; sid < 2; ++sid) {
+                for (SummaryStore s : new SummaryStore[]{store, reference}) {
+                    s.registerStream(sid, new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(2)))
+                            .setBufferSize(0), new SimpleCountOperator(), new SumOperator());
+                }
+            }
+            for (long i = 0; i < 2_000; ++i) {
+                for (long sid = 0; sid < 2; ++sid) {
+                    store.append(sid, i, i);
+                    reference.append(sid, i, i);
+                    if (i % 97 == 96) {
+                        store.flush(sid);
+                        reference.flush(sid);
+                        for (long t0 : new long[]{0, i / 2, i - 5}) {
+                            for (int op = 0; op < 2; ++op) {
+                                assertEquals(((Number) ((ResultError) reference.query(sid, t0, i, op)).result)
+                                                .doubleValue(),
+                                        ((Number) ((ResultError) store.query(sid, t0, i, op)).result).doubleValue(),
+                                        0);
+                            }
+                        }
+                    }
+                }
+            }
+            // the budget holds a fraction of the windows: repeated queries hit, and ingest pushes windows out
+            RocksDBBackingStore backingStore = (RocksDBBackingStore) store.getBackingStore();
+            assertTrue(backingStore.getCacheHits() > 0);
+            assertTrue(backingStore.getCacheEvictions() > 0);
+            store.close();
+            reference.close();
+        }
+    }
+
+    @Test
+    public void indexedBatchReads() throws Exception {
+        // slow decay, so that long queries need more windows than one multiGet fetches and are answered by a scan
+        String storeLoc = "/tmp/tdstore-batchreads";
+        Runtime.getRuntime().exec(new String[]{"sh", "-c", "rm -rf " + storeLoc}).waitFor();
+        SummaryStore store = new SummaryStore(storeLoc), reference = new SummaryStore(null);
+        for (SummaryStore s : new SummaryStore[]{store, reference}) {
+            s.registerStream(streamID, new CountBasedWBMH(new GenericWindowing(new ExponentialWindowLengths(1.05)))
+                    .setBufferSize(0), new SumOperator());
+        }
+        int N = 10_000;
+        for (long i = 0; i < N; ++i) {
+            store.append(streamID, i, i);
+            reference.append(streamID, i, i);
+        }
+        store.flush(streamID);
+        reference.flush(streamID);
+        assertTrue(store.getNumSummaryWindows(streamID) > 64);
+        // shortest queries first, so that the longer ones still have cache misses to fetch
+        RocksDBBackingStore backingStore = (RocksDBBackingStore) store.getBackingStore();
+        for (long t0 : new long[]{N - 2, N - 100, N / 2, 0}) {
+            assertEquals(((Number) ((ResultError) reference.query(streamID, t0, N - 1, 0)).result).doubleValue(),
+                    ((Number) ((ResultError) store.query(streamID, t0, N - 1, 0)).result).doubleValue(), 0);
+        }
+        assertTrue(backingStore.getNumMultiGets() > 0);
+        assertTrue(backingStore.getNumBatchScans() > 0);
+        store.close();
+        reference.close();
+    }
 }
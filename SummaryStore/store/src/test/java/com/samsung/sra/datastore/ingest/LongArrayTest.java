@@ -32,4 +32,26 @@ public class LongArrayTest {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void circularBuffer() throws Exception {
+        int N = 16;
+        try (LongIngestBuffer buffer = new LongIngestBuffer(N)) {
+            long[] ts = new long[2 * N];
+            for (int i = 0; i < ts.length; ++i) {
+                ts[i] = i;
+            }
+            assertEquals(10, buffer.appendBatch(ts, ts, 0, 10));
+            buffer.truncateHead(8);
+            // wraps around the end of the slot arrays, filling the buffer
+            assertEquals(14, buffer.appendBatch(ts, ts, 10, 20));
+            assertEquals(true, buffer.isFull());
+            for (int i = 0; i < N; ++i) {
+                assertEquals(8 + i, buffer.getTimestamp(i));
+                assertEquals(8 + i, buffer.getLongValue(i));
+            }
+            buffer.truncateHead(N);
+            assertEquals(0, buffer.size());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import com.samsung.sra.datastore.storage.BackingStoreException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MergeExecutorTest {
+    /** Two callers with backlogs on a one-thread executor must take turns rather than run one backlog to completion */
+    @Test
+    public void callersTakeTurns() throws Exception {
+        List<Integer> items = Arrays.asList(0, 1, 2, 3, 4);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        try (MergeExecutor executor = new MergeExecutor(1)) {
+            Thread other = new Thread(() -> {
+                try {
+                    executor.runAll(items, 1, item -> order.add("b"));
+                } catch (BackingStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            executor.runAll(items, 1, item -> {
+                if (item == 0) {
+                    // have the other caller queue its first task while the only worker is busy with ours
+                    other.start();
+                    while (other.getState() != Thread.State.WAITING) {
+                        Thread.yield();
+                    }
+                }
+                order.add("a");
+            });
+            other.join();
+        }
+        assertEquals(Arrays.asList("a", "b", "a", "b", "a", "b", "a", "b", "a", "b"), order);
+    }
+}
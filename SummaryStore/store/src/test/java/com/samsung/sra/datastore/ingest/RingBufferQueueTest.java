@@ -0,0 +1,55 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.ingest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RingBufferQueueTest {
+    /** Several producers racing on a small ring: every element arrives exactly once, in order per producer */
+    @Test(timeout = 60_000)
+    public void concurrentProducers() throws Exception {
+        int numProducers = 4, perProducer = 200_000;
+        RingBufferQueue<Long> queue = new RingBufferQueue<>(16, WaitStrategy.YIELD);
+        Thread[] producers = new Thread[numProducers];
+        for (int p = 0; p < numProducers; ++p) {
+            long producer = p;
+            producers[p] = new Thread(() -> {
+                try {
+                    for (long i = 0; i < perProducer; ++i) {
+                        queue.put(producer * perProducer + i);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            producers[p].start();
+        }
+        long[] next = new long[numProducers];
+        for (long n = 0; n < (long) numProducers * perProducer; ++n) {
+            long e = queue.take();
+            int producer = (int) (e / perProducer);
+            assertEquals(next[producer]++, e % perProducer);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.storage;
+
+import com.samsung.sra.datastore.SummaryWindow;
+import com.samsung.sra.datastore.WindowOperator;
+import com.samsung.sra.datastore.aggregates.SimpleCountOperator;
+import com.samsung.sra.datastore.aggregates.SumOperator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RocksDBBackingStoreTest {
+    private static final long streamID = 0;
+    private static final WindowOperator[] operators = {new SimpleCountOperator(), new SumOperator()};
+
+    private static RocksDBBackingStore newStore(String storeLoc, long cacheBytes) throws Exception {
+        Runtime.getRuntime().exec(new String[]{"sh", "-c", "rm -rf " + storeLoc}).waitFor();
+        return new RocksDBBackingStore(storeLoc, cacheBytes, false);
+    }
+
+    /** 200 windows of 10 values each, value v at timestamp v */
+    @SuppressWarnings("unchecked")
+    private static StreamWindowManager populate(RocksDBBackingStore store, boolean keepReadIndex) throws Exception {
+        StreamWindowManager manager = new StreamWindowManager(streamID, operators, keepReadIndex);
+        manager.populateTransientFields(store);
+        for (long ts = 0; ts < 2000; ts += 10) {
+            SummaryWindow window = manager.createEmptySummaryWindow(ts, ts + 9, ts, ts + 9);
+            for (long v = ts; v <= ts + 9; ++v) {
+                manager.insertIntoSummaryWindow(window, v, (Object) v);
+            }
+            manager.putSummaryWindow(window);
+        }
+        return manager;
+    }
+
+    @Test
+    public void repeatedQueriesHitCache() throws Exception {
+        // a long query (answered by a scan with a read index) and a short one (a multiGet), each on one operator
+        long[][] queries = {{0, 1999}, {500, 799}};
+        for (boolean keepReadIndex : new boolean[]{true, false}) {
+            RocksDBBackingStore store = newStore("/tmp/tdstore-rockscache-" + keepReadIndex, 1 << 20);
+            StreamWindowManager manager = populate(store, keepReadIndex);
+            for (int op = 0; op < operators.length; ++op) {
+                for (long[] query : queries) {
+                    long hits = store.getCacheHits();
+                    List<SummaryWindow> windows = manager.getSummaryWindowsOverlapping(query[0], query[1], op)
+                            .filter(w -> w.te >= query[0])
+                            .collect(Collectors.toList());
+                    assertEquals((query[1] - query[0] + 1) / 10, windows.size());
+                    // windows were all read (and cached) by the first query, even though it only decoded operator 0
+                    if (op == 0 && query == queries[0]) {
+                        assertEquals(hits, store.getCacheHits());
+                    } else {
+                        assertTrue(store.getCacheHits() >= hits + windows.size());
+                    }
+                    for (SummaryWindow window : windows) {
+                        assertEquals(10L, window.aggregates[0]);
+                        assertEquals(10 * window.ts + 45, window.aggregates[1]);
+                    }
+                }
+            }
+            store.close();
+        }
+    }
+
+    @Test
+    public void queriesConcurrentWithMerges() throws Exception {
+        // without a read index, queries read from a RocksDB snapshot, and must not combine it with cached windows
+        // written after the snapshot (e.g. a merged window whose tail is still in the snapshot)
+        RocksDBBackingStore store = newStore("/tmp/tdstore-rocksmerge", 1 << 20);
+        StreamWindowManager manager = populate(store, false);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[2];
+        Thread writer = new Thread(() -> {
+            try {
+                List<Long> swids = new ArrayList<>();
+                for (long ts = 0; ts < 2000; ts += 10) {
+                    swids.add(ts);
+                }
+                Random random = new Random(0);
+                while (swids.size() > 1) {
+                    int i = random.nextInt(swids.size() - 1);
+                    SummaryWindow merged = manager.getMergedSummaryWindow(manager.getSummaryWindow(swids.get(i)),
+                            manager.getSummaryWindow(swids.get(i + 1)));
+                    StreamWindowManager.SummaryWindowBatch batch = manager.newSummaryWindowBatch();
+                    batch.put(merged);
+                    batch.delete(swids.remove(i + 1));
+                    batch.commit();
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        for (int r = 0; r < readers.length; ++r) {
+            readers[r] = new Thread(() -> {
+                try {
+                    while (writer.isAlive()) {
+                        long count = manager.getSummaryWindowsOverlapping(0, 1999, 0)
+                                .mapToLong(w -> (Long) w.aggregates[0])
+                                .sum();
+                        assertEquals(2000, count);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        store.close();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.storage;
+
+import com.clearspring.analytics.stream.frequency.CountMinSketch;
+import com.clearspring.analytics.stream.quantile.TDigest;
+import com.samsung.sra.datastore.SummaryWindow;
+import com.samsung.sra.datastore.WindowOperator;
+import com.samsung.sra.datastore.aggregates.CMSOperator;
+import com.samsung.sra.datastore.aggregates.SimpleCountOperator;
+import com.samsung.sra.datastore.aggregates.SumOperator;
+import com.samsung.sra.datastore.aggregates.TDigestOperator;
+import com.samsung.sra.protocol.SummaryStore.ProtoSummaryWindow;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SerDeTest {
+    private static final WindowOperator[] operators = {
+            new SimpleCountOperator(), new SumOperator(), new CMSOperator(5, 100, 0), new TDigestOperator(100)};
+
+    @SuppressWarnings("unchecked")
+    private static SummaryWindow newWindow() {
+        SummaryWindow window = new SummaryWindow(operators, 1_000_000, 1_000_999, 5000, 5999);
+        for (long v = 0; v < 1000; ++v) {
+            for (int op = 0; op < operators.length; ++op) {
+                window.aggregates[op] = operators[op].insert(window.aggregates[op], 1_000_000 + v, v % 37);
+            }
+        }
+        return window;
+    }
+
+    private static void assertWindowsEqual(SummaryWindow expected, SummaryWindow actual) {
+        assertEquals(expected.ts, actual.ts);
+        assertEquals(expected.te, actual.te);
+        assertEquals(expected.cs, actual.cs);
+        assertEquals(expected.ce, actual.ce);
+        assertEquals(expected.aggregates[0], actual.aggregates[0]);
+        assertEquals(expected.aggregates[1], actual.aggregates[1]);
+        CountMinSketch cms = (CountMinSketch) actual.aggregates[2];
+        assertEquals(((CountMinSketch) expected.aggregates[2]).size(), cms.size());
+        for (long v = 0; v < 37; ++v) {
+            assertEquals(((CountMinSketch) expected.aggregates[2]).estimateCount(v), cms.estimateCount(v));
+        }
+        assertEquals(((TDigest) expected.aggregates[3]).quantile(0.5), ((TDigest) actual.aggregates[3]).quantile(0.5),
+                0);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        SerDe serde = new SerDe(operators);
+        SummaryWindow window = newWindow();
+        assertWindowsEqual(window, serde.deserializeSummaryWindow(serde.serializeSummaryWindow(window)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void readsProtobufWindows() throws Exception {
+        SummaryWindow window = newWindow();
+        ProtoSummaryWindow.Builder proto = ProtoSummaryWindow.newBuilder()
+                .setTs(window.ts)
+                .setTe(window.te)
+                .setCs(window.cs)
+                .setCe(window.ce);
+        for (int op = 0; op < operators.length; ++op) {
+            proto.addOperator(operators[op].protofy(window.aggregates[op]));
+        }
+        assertWindowsEqual(window, new SerDe(operators).deserializeSummaryWindow(proto.build().toByteArray()));
+    }
+
+    @Test
+    public void projection() throws Exception {
+        SerDe serde = new SerDe(operators);
+        SummaryWindow window = newWindow();
+        SummaryWindow projected = serde.projectedTo(1).deserializeSummaryWindow(serde.serializeSummaryWindow(window));
+        assertEquals(window.ce, projected.ce);
+        assertEquals(window.aggregates[1], projected.aggregates[1]);
+        assertNull(projected.aggregates[0]);
+        assertNull(projected.aggregates[2]);
+        assertNull(projected.aggregates[3]);
+    }
+}
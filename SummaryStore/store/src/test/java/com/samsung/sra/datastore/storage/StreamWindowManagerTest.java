@@ -0,0 +1,137 @@
+/*
+* Copyright 2016 Samsung Research America. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.samsung.sra.datastore.storage;
+
+import com.samsung.sra.datastore.SummaryWindow;
+import com.samsung.sra.datastore.WindowOperator;
+import com.samsung.sra.datastore.aggregates.SimpleCountOperator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StreamWindowManagerTest {
+    private static final long streamID = 0;
+
+    /** Main memory store whose atomic batch writes can be made to fail (without applying any of the batch) */
+    private static class FailingBackingStore extends MainMemoryBackingStore {
+        private boolean failWrites = false;
+
+        @Override
+        void writeSummaryWindows(long streamID, SerDe serDe, LongList swids, List<SummaryWindow> windows)
+                throws BackingStoreException {
+            if (failWrites) throw new BackingStoreException("injected write failure");
+            super.writeSummaryWindows(streamID, serDe, swids, windows);
+        }
+    }
+
+    /** 10 windows of 10 values each, value v at timestamp v */
+    private static StreamWindowManager populate(BackingStore store, boolean keepReadIndex) throws Exception {
+        StreamWindowManager manager = new StreamWindowManager(
+                streamID, new WindowOperator[]{new SimpleCountOperator()}, keepReadIndex);
+        manager.populateTransientFields(store);
+        for (long ts = 0; ts < 100; ts += 10) {
+            manager.putSummaryWindow(newWindow(manager, ts));
+        }
+        return manager;
+    }
+
+    private static SummaryWindow newWindow(StreamWindowManager manager, long ts) {
+        SummaryWindow window = manager.createEmptySummaryWindow(ts, ts + 9, ts, ts + 9);
+        for (long v = ts; v <= ts + 9; ++v) {
+            manager.insertIntoSummaryWindow(window, v, (Object) v);
+        }
+        return window;
+    }
+
+    /** "swid:count" for every window the manager returns */
+    private static List<String> describe(StreamWindowManager manager) throws Exception {
+        return manager.getSummaryWindowsOverlapping(0, 1000)
+                .map(w -> w.ts + ":" + w.aggregates[0])
+                .collect(Collectors.toList());
+    }
+
+    private static void commitExpectingFailure(StreamWindowManager.SummaryWindowBatch batch) {
+        try {
+            batch.commit();
+            fail("commit should have failed");
+        } catch (BackingStoreException expected) {
+        }
+    }
+
+    /** A commit that fails in the backing store must leave the read index agreeing with the store, and be retryable */
+    @Test
+    public void failedCommitKeepsReadIndex() throws Exception {
+        FailingBackingStore store = new FailingBackingStore();
+        StreamWindowManager manager = populate(store, true);
+        List<String> before = describe(manager);
+
+        StreamWindowManager.SummaryWindowBatch batch = manager.newSummaryWindowBatch();
+        batch.put(manager.getMergedSummaryWindow(
+                manager.getSummaryWindow(0), manager.getSummaryWindow(10), manager.getSummaryWindow(20)));
+        batch.delete(10);
+        batch.delete(20);
+        store.failWrites = true;
+        commitExpectingFailure(batch);
+        assertEquals(before, describe(manager));
+        assertEquals(10, manager.getNumSummaryWindows());
+
+        store.failWrites = false;
+        batch.commit();
+        assertEquals(Arrays.asList("0:30", "30:10", "40:10", "50:10", "60:10", "70:10", "80:10", "90:10"),
+                describe(manager));
+        assertEquals(8, manager.getNumSummaryWindows());
+    }
+
+    /** Same with a write-back cache: a failed commit must not have changed the cache or aged windows out of it */
+    @Test
+    public void failedCommitKeepsWriteBackCache() throws Exception {
+        FailingBackingStore store = new FailingBackingStore();
+        StreamWindowManager manager = new StreamWindowManager(
+                streamID, new WindowOperator[]{new SimpleCountOperator()}, false);
+        manager.setWriteBackCacheSize(4);
+        manager.populateTransientFields(store);
+        for (long ts = 0; ts < 100; ts += 10) {
+            manager.putSummaryWindow(newWindow(manager, ts));
+        }
+        List<String> before = describe(manager); // windows 60 to 90 are cached, older ones persisted
+
+        // merge a persisted window with a cached one, and add two windows, which ages window 70 out of the cache
+        StreamWindowManager.SummaryWindowBatch batch = manager.newSummaryWindowBatch();
+        batch.put(manager.getMergedSummaryWindow(manager.getSummaryWindow(50), manager.getSummaryWindow(60)));
+        batch.delete(60);
+        batch.put(newWindow(manager, 100));
+        batch.put(newWindow(manager, 110));
+        store.failWrites = true;
+        commitExpectingFailure(batch);
+        assertEquals(before, describe(manager));
+        assertEquals(10, manager.getNumSummaryWindows());
+
+        store.failWrites = false;
+        batch.commit();
+        assertEquals(Arrays.asList("0:10", "10:10", "20:10", "30:10", "40:10", "50:20", "70:10", "80:10", "90:10",
+                "100:10", "110:10"), describe(manager));
+        assertEquals(11, manager.getNumSummaryWindows());
+        assertEquals(7, store.getNumSummaryWindows(streamID, null)); // 0 to 50, and 70
+        manager.flushToDisk();
+        assertEquals(11, store.getNumSummaryWindows(streamID, null));
+    }
+}